@@ -0,0 +1,87 @@
+//jTDS JDBC Driver for Microsoft SQL Server and Sybase
+//Copyright (C) 2004 The jTDS Project
+//
+//This library is free software; you can redistribute it and/or
+//modify it under the terms of the GNU Lesser General Public
+//License as published by the Free Software Foundation; either
+//version 2.1 of the License, or (at your option) any later version.
+//
+//This library is distributed in the hope that it will be useful,
+//but WITHOUT ANY WARRANTY; without even the implied warranty of
+//MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//Lesser General Public License for more details.
+//
+//You should have received a copy of the GNU Lesser General Public
+//License along with this library; if not, write to the Free Software
+//Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The encodability check of <code>CharsetInfo</code> compared to the
+ * conversion round trip it replaces, for ASCII, mostly ASCII and non-ASCII
+ * values of 200 characters. Run with <code>ant bench</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CharsetInfoBenchmark {
+
+    /** The server charset, a single and a multi byte one. */
+    @Param({"CP1252", "CP936"})
+    public String serverCharset;
+
+    /** The value: pure ASCII, ASCII ending in a few other chars, or Latin-1. */
+    @Param({"ascii", "mixed", "latin1"})
+    public String workload;
+
+    private CharsetInfo info;
+    private String charset;
+    private String value;
+
+    @Setup
+    public void setUp() {
+        info = CharsetInfo.getCharset(serverCharset);
+        charset = info.getCharset();
+
+        StringBuilder ascii = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            ascii.append((char) ('a' + i % 26));
+        }
+        if ("ascii".equals(workload)) {
+            value = ascii.toString();
+        } else if ("mixed".equals(workload)) {
+            value = ascii.substring(0, 190) + "\u00E9\u00E8 \u20AC";
+        } else {
+            value = ascii.toString().replace('e', '\u00E9');
+        }
+    }
+
+    @Benchmark
+    public boolean canEncode() {
+        return info.canEncode(value);
+    }
+
+    @Benchmark
+    public boolean roundTrip() throws UnsupportedEncodingException {
+        return new String(value.getBytes(charset), charset).equals(value);
+    }
+}
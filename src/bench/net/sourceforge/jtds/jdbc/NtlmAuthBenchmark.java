@@ -0,0 +1,78 @@
+//jTDS JDBC Driver for Microsoft SQL Server and Sybase
+//Copyright (C) 2004 The jTDS Project
+//
+//This library is free software; you can redistribute it and/or
+//modify it under the terms of the GNU Lesser General Public
+//License as published by the Free Software Foundation; either
+//version 2.1 of the License, or (at your option) any later version.
+//
+//This library is distributed in the hope that it will be useful,
+//but WITHOUT ANY WARRANTY; without even the implied warranty of
+//MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//Lesser General Public License for more details.
+//
+//You should have received a copy of the GNU Lesser General Public
+//License along with this library; if not, write to the Free Software
+//Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * CPU cost of the NTLM login computations: NTLMv2 with the password hash
+ * cached by a previous login and with a fresh password, and NTLMv1 with
+ * its DES encryptions. Run with <code>ant bench</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NtlmAuthBenchmark {
+
+    private final String password = "a rather long password, as recommended";
+    private final byte[] challenge = hexToBytes("d990edaf941736af");
+    private final byte[] target = hexToBytes("02000c0042004500410045004e0047000000000000000000");
+    private final byte[] clientNonce = hexToBytes("ffffff0011223344");
+
+    @Benchmark
+    public byte[] ntlmv2CachedHash() throws UnsupportedEncodingException {
+        return NtlmAuth.answerNtlmv2Challenge("DOMAIN", "user", password,
+                challenge, target, clientNonce, 0L);
+    }
+
+    @Benchmark
+    public byte[] ntlmv2UncachedHash() throws UnsupportedEncodingException {
+        // an equal but distinct password misses the hash cache
+        return NtlmAuth.answerNtlmv2Challenge("DOMAIN", "user", new String(password),
+                challenge, target, clientNonce, 0L);
+    }
+
+    @Benchmark
+    public void ntlmv1(Blackhole bh) throws UnsupportedEncodingException {
+        bh.consume(NtlmAuth.answerLmChallenge(password, challenge));
+        bh.consume(NtlmAuth.answerNtChallenge(password, challenge));
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
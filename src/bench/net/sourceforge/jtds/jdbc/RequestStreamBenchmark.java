@@ -0,0 +1,73 @@
+//jTDS JDBC Driver for Microsoft SQL Server and Sybase
+//Copyright (C) 2004 The jTDS Project
+//
+//This library is free software; you can redistribute it and/or
+//modify it under the terms of the GNU Lesser General Public
+//License as published by the Free Software Foundation; either
+//version 2.1 of the License, or (at your option) any later version.
+//
+//This library is distributed in the hope that it will be useful,
+//but WITHOUT ANY WARRANTY; without even the implied warranty of
+//MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//Lesser General Public License for more details.
+//
+//You should have received a copy of the GNU Lesser General Public
+//License along with this library; if not, write to the Free Software
+//Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing strings to a <code>RequestStream</code> whose packets are
+ * discarded instead of being sent. Run with <code>ant bench</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestStreamBenchmark {
+
+    /** Length of the string written. */
+    @Param({"11", "2000"})
+    public int length;
+
+    private RequestStream out;
+    private String value;
+
+    @Setup
+    public void setUp() {
+        out = new RequestStream(new SharedSocket(null, Driver.TDS70, Driver.SQLSERVER) {
+            byte[] sendNetPacket(VirtualSocket vsock, byte[] buffer) {
+                return buffer;
+            }
+        }, null, 4096, 38);
+        out.setPacketType(TdsCore.QUERY_PKT);
+
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        value = new String(chars);
+    }
+
+    @Benchmark
+    public void writeString() throws IOException {
+        out.write(value);
+    }
+}
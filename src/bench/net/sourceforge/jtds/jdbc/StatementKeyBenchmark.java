@@ -0,0 +1,106 @@
+//jTDS JDBC Driver for Microsoft SQL Server and Sybase
+//Copyright (C) 2004 The jTDS Project
+//
+//This library is free software; you can redistribute it and/or
+//modify it under the terms of the GNU Lesser General Public
+//License as published by the Free Software Foundation; either
+//version 2.1 of the License, or (at your option) any later version.
+//
+//This library is distributed in the hope that it will be useful,
+//but WITHOUT ANY WARRANTY; without even the implied warranty of
+//MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//Lesser General Public License for more details.
+//
+//You should have received a copy of the GNU Lesser General Public
+//License along with this library; if not, write to the Free Software
+//Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Statement cache lookups with the structured <code>StatementKey</code>
+ * compared to the string key formerly built by concatenating catalog, SQL
+ * and parameter types. Run with <code>ant bench</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatementKeyBenchmark {
+
+    /** Number of columns in the select list, 200 give about 5000 chars. */
+    @Param({"10", "200"})
+    public int columns;
+
+    private String sql;
+    private ParamInfo[] params;
+    private HashMap<Object,String> structured;
+    private HashMap<Object,String> concatenated;
+
+    @Setup
+    public void setUp() {
+        StringBuilder buf = new StringBuilder(columns * 25 + 100);
+        buf.append("SELECT ");
+        for (int i = 0; i < columns; i++) {
+            buf.append("t0.some_column_").append(i).append(", ");
+        }
+        buf.append("t0.id FROM some_schema.some_table t0 WHERE t0.id = ? AND t0.version = ?");
+        sql = buf.toString();
+        params = params("int", "bigint");
+
+        structured = new HashMap<Object,String>();
+        structured.put(new StatementKey(sql, params, Driver.SQLSERVER, "db", true, false), "x");
+        concatenated = new HashMap<Object,String>();
+        concatenated.put(concatenatedKey(sql, params, "db"), "x");
+    }
+
+    @Benchmark
+    public String structuredKey() {
+        return structured.get(new StatementKey(sql, params, Driver.SQLSERVER, "db", true, false));
+    }
+
+    @Benchmark
+    public String concatenatedKey() {
+        return concatenated.get(concatenatedKey(sql, params, "db"));
+    }
+
+    /**
+     * The key formerly generated by <code>Support.getStatementKey()</code>.
+     */
+    private static String concatenatedKey(String sql, ParamInfo[] params, String catalog) {
+        StringBuilder key = new StringBuilder(1 + catalog.length() + sql.length() + 11 * params.length);
+        key.append('X');
+        key.append(catalog);
+        key.append(sql);
+        for (int i = 0; i < params.length; i++) {
+            key.append(params[i].sqlType);
+        }
+        return key.toString();
+    }
+
+    private static ParamInfo[] params(String... types) {
+        ParamInfo[] params = new ParamInfo[types.length];
+        for (int i = 0; i < types.length; i++) {
+            params[i] = new ParamInfo(i, true);
+            params[i].sqlType = types[i];
+        }
+        return params;
+    }
+}
@@ -40,6 +40,8 @@ public class BlobImpl implements Blob {
 
     /** The underlying <code>BlobBuffer</code>. */
     private final BlobBuffer blobBuffer;
+    /** The locator of a value not loaded into the buffer yet, or <code>null</code>. */
+    private LobLocator locator;
 
     /**
      * Constructs a new empty <code>Blob</code> instance.
@@ -65,35 +67,68 @@ public class BlobImpl implements Blob {
         blobBuffer.setBuffer(bytes, false);
     }
 
+    /**
+     * Constructs a new <code>Blob</code> instance reading its data through a
+     * locator.
+     *
+     * @param connection a reference to the parent connection object
+     * @param locator    the locator of the value
+     */
+    BlobImpl(JtdsConnection connection, LobLocator locator) {
+        this(connection);
+        this.locator = locator;
+    }
+
+    /**
+     * Obtain this object's backing <code>BlobBuffer</code> object, loading
+     * the value first if it is read through a locator.
+     *
+     * @return the underlying <code>BlobBuffer</code>
+     * @throws SQLException if the value cannot be loaded
+     */
+    private BlobBuffer getBlobBuffer() throws SQLException {
+        if (locator != null) {
+            locator.load(blobBuffer);
+            locator = null;
+        }
+        return blobBuffer;
+    }
+
     //
     // ------ java.sql.Blob interface methods from here -------
     //
 
     public InputStream getBinaryStream() throws SQLException {
-        return blobBuffer.getBinaryStream(false);
+        return getBlobBuffer().getBinaryStream(false);
     }
 
     public byte[] getBytes(long pos, int length) throws SQLException {
+        if (locator != null) {
+            return locator.getBytes(pos, length);
+        }
         return blobBuffer.getBytes(pos, length);
     }
 
     public long length() throws SQLException {
+        if (locator != null) {
+            return locator.length();
+        }
         return blobBuffer.getLength();
     }
 
     public long position(byte[] pattern, long start) throws SQLException {
-        return blobBuffer.position(pattern, start);
+        return getBlobBuffer().position(pattern, start);
     }
 
     public long position(Blob pattern, long start) throws SQLException {
         if (pattern == null) {
             throw new SQLException(Messages.get("error.blob.badpattern"), "HY009");
         }
-        return blobBuffer.position(pattern.getBytes(1, (int) pattern.length()), start);
+        return getBlobBuffer().position(pattern.getBytes(1, (int) pattern.length()), start);
     }
 
     public OutputStream setBinaryStream(final long pos) throws SQLException {
-        return blobBuffer.setBinaryStream(pos, false);
+        return getBlobBuffer().setBinaryStream(pos, false);
     }
 
     public int setBytes(long pos, byte[] bytes) throws SQLException {
@@ -111,11 +146,11 @@ public class BlobImpl implements Blob {
         // Force BlobBuffer to take a copy of the byte array
         // In many cases this is wasteful but the user may
         // reuse the byte buffer corrupting the original set
-        return blobBuffer.setBytes(pos, bytes, offset, len, true);
+        return getBlobBuffer().setBytes(pos, bytes, offset, len, true);
     }
 
     public void truncate(long len) throws SQLException {
-        blobBuffer.truncate(len);
+        getBlobBuffer().truncate(len);
     }
 
     /////// JDBC4 demarcation, do NOT put any JDBC3 code below this line ///////
@@ -17,7 +17,9 @@
 //
 package net.sourceforge.jtds.jdbc;
 
+import java.nio.charset.Charset;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Properties;
 import java.util.Enumeration;
@@ -211,6 +213,16 @@ public final class CharsetInfo {
     private final String charset;
     /** Indicates whether current charset is wide (ie multi-byte). */
     private final boolean wideChars;
+    /** The Java charset, resolved on first use. */
+    private volatile Charset javaCharset;
+    /** Indicates whether {@link #javaCharset} has been resolved. */
+    private volatile boolean resolved;
+    /** Indicates whether ASCII characters are encoded as single ASCII bytes. */
+    private boolean asciiCompatible;
+    /** The characters of all 256 bytes, <code>null</code> unless single-byte. */
+    private char[] decodeTable;
+    /** The bytes of all characters, <code>null</code> unless single-byte. */
+    private byte[] encodeTable;
 
     /**
      * Constructs a <code>CharsetInfo</code> object from a character set
@@ -239,6 +251,183 @@ public final class CharsetInfo {
         return wideChars;
     }
 
+    /**
+     * Retrieves the Java charset, avoiding a lookup by name for every
+     * conversion.
+     *
+     * @return the charset or <code>null</code> if not supported by the JVM
+     */
+    Charset getJavaCharset() {
+        resolve();
+        return javaCharset;
+    }
+
+    /**
+     * Retrieves whether ASCII characters (below 0x80) are encoded as the
+     * identical single bytes, so that pure ASCII strings need no conversion.
+     */
+    boolean isAsciiCompatible() {
+        resolve();
+        return asciiCompatible;
+    }
+
+    /**
+     * Retrieves the characters of all 256 byte values of a single-byte
+     * charset, for decoding without a <code>CharsetDecoder</code>.
+     *
+     * @return the table or <code>null</code> for multi-byte charsets
+     */
+    char[] getDecodeTable() {
+        resolve();
+        return decodeTable;
+    }
+
+    /**
+     * Retrieves the bytes of all 65536 characters in a single-byte charset,
+     * for encoding without a <code>CharsetEncoder</code>. Characters that
+     * cannot be mapped are replaced by the charset's replacement byte.
+     *
+     * @return the table or <code>null</code> for multi-byte charsets
+     */
+    byte[] getEncodeTable() {
+        resolve();
+        return encodeTable;
+    }
+
+    /**
+     * Checks whether a String can be sent in this charset without loss, i.e.
+     * whether it converts back to the same String.
+     * <p>
+     * The ASCII part of the String is skipped by a fast scan, the rest is
+     * checked through the conversion tables in single-byte charsets. Only
+     * non-ASCII Strings in multi-byte charsets are actually converted.
+     *
+     * @param value the String to check
+     * @return <code>true</code> if the String can be converted
+     */
+    boolean canEncode(String value) {
+        if (value == null || "UTF-8".equals(charset)) {
+            return true;
+        }
+
+        resolve();
+        if (javaCharset == null) {
+            return false;
+        }
+
+        int len = value.length();
+        int i = asciiCompatible ? asciiPrefix(value) : 0;
+        if (i == len) {
+            return true;
+        }
+
+        if (encodeTable != null) {
+            for (; i < len; i++) {
+                char c = value.charAt(i);
+                if (decodeTable[encodeTable[c] & 0xFF] != c) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        return new String(value.getBytes(javaCharset), javaCharset).equals(value);
+    }
+
+    /**
+     * Retrieves the length of the ASCII prefix of a String.
+     * <p>
+     * Characters are combined in blocks of 8 so that the common case of an
+     * all-ASCII String takes one branch per block, a loop the JIT compiler
+     * can unroll and vectorize.
+     *
+     * @param s the String to scan
+     * @return the index of the first non-ASCII character or the length of
+     *         the String if there is none
+     */
+    static int asciiPrefix(String s) {
+        int len = s.length();
+        int i = 0;
+
+        for (; i + 8 <= len; i += 8) {
+            if ((s.charAt(i) | s.charAt(i + 1) | s.charAt(i + 2)
+                    | s.charAt(i + 3) | s.charAt(i + 4) | s.charAt(i + 5)
+                    | s.charAt(i + 6) | s.charAt(i + 7)) >= 0x80) {
+                break;
+            }
+        }
+        while (i < len && s.charAt(i) < 0x80) {
+            i++;
+        }
+
+        return i;
+    }
+
+    /**
+     * Resolves the Java charset and builds the conversion tables once. The
+     * instances are shared by all connections, so once resolved no lock is
+     * taken; the tables are published by the volatile {@link #resolved}.
+     */
+    private void resolve() {
+        if (!resolved) {
+            resolveOnce();
+        }
+    }
+
+    /**
+     * Does the work of {@link #resolve()} under the instance lock.
+     */
+    private synchronized void resolveOnce() {
+        if (resolved) {
+            return;
+        }
+
+        try {
+            Charset cs = Charset.forName(charset);
+
+            byte[] ascii = new byte[0x80];
+            for (int i = 0; i < ascii.length; i++) {
+                ascii[i] = (byte) i;
+            }
+            String chars = new String(ascii, cs);
+            asciiCompatible = chars.length() == ascii.length
+                    && Arrays.equals(ascii, chars.getBytes(cs));
+
+            if (!wideChars && cs.canEncode()
+                    && cs.newEncoder().maxBytesPerChar() == 1) {
+                byte[] bytes = new byte[256];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = (byte) i;
+                }
+                char[] table = new String(bytes, cs).toCharArray();
+
+                // Encode all characters exactly as String.getBytes() would,
+                // split so that no surrogate pair is formed
+                char[] all = new char[0x10000];
+                for (int i = 0; i < all.length; i++) {
+                    all[i] = (char) i;
+                }
+                byte[] low = new String(all, 0, 0xDC00).getBytes(cs);
+                byte[] high = new String(all, 0xDC00, 0x2400).getBytes(cs);
+
+                if (table.length == bytes.length
+                        && low.length + high.length == all.length) {
+                    byte[] enc = Arrays.copyOf(low, all.length);
+                    System.arraycopy(high, 0, enc, low.length, high.length);
+                    decodeTable = table;
+                    encodeTable = enc;
+                }
+            }
+
+            javaCharset = cs;
+        } catch (IllegalArgumentException e) {
+            // Not supported by the JVM, conversions fall back to the default
+            Logger.logException(e);
+        }
+
+        resolved = true;
+    }
+
     public boolean equals(Object o) {
         if (this == o) {
             return true;
@@ -58,6 +58,8 @@ public class ClobImpl implements Clob {
 
     /** The underlying <code>BlobBuffer</code>. */
     private final BlobBuffer blobBuffer;
+    /** The locator of a value not loaded into the buffer yet, or <code>null</code>. */
+    private LobLocator locator;
 
     /**
      * Constructs a new empty <code>Clob</code> instance.
@@ -89,26 +91,55 @@ public class ClobImpl implements Clob {
     }
 
     /**
-     * Obtain this object's backing <code>BlobBuffer</code> object.
+     * Constructs a new <code>Clob</code> instance reading its data through a
+     * locator.
+     *
+     * @param connection a reference to the parent connection object
+     * @param locator    the locator of the value
+     */
+    ClobImpl(JtdsConnection connection, LobLocator locator) {
+        this(connection);
+        this.locator = locator;
+    }
+
+    /**
+     * Obtain this object's backing <code>BlobBuffer</code> object, to fill in
+     * a new value.
      *
      * @return the underlying <code>BlobBuffer</code>
+     * @see #loadBlobBuffer()
      */
     BlobBuffer getBlobBuffer() {
         return this.blobBuffer;
     }
 
+    /**
+     * Obtain this object's backing <code>BlobBuffer</code> object, loading
+     * the value first if it is read through a locator.
+     *
+     * @return the underlying <code>BlobBuffer</code>
+     * @throws SQLException if the value cannot be loaded
+     */
+    BlobBuffer loadBlobBuffer() throws SQLException {
+        if (locator != null) {
+            locator.load(blobBuffer);
+            locator = null;
+        }
+        return blobBuffer;
+    }
+
     //
     // ---- java.sql.Blob interface methods from here ----
     //
 
     public InputStream getAsciiStream() throws SQLException {
-        return blobBuffer.getBinaryStream(true);
+        return loadBlobBuffer().getBinaryStream(true);
     }
 
     public Reader getCharacterStream() throws SQLException {
         try {
             return new BufferedReader(new InputStreamReader(
-                    blobBuffer.getBinaryStream(false), "UTF-16LE"));
+                    loadBlobBuffer().getBinaryStream(false), "UTF-16LE"));
         } catch (UnsupportedEncodingException e) {
             // This should never happen!
             throw new IllegalStateException(
@@ -120,6 +151,9 @@ public class ClobImpl implements Clob {
         if (length == 0) {
             return EMPTY_CLOB;
         }
+        if (locator != null) {
+            return locator.getSubString(pos, length);
+        }
         try {
             byte data[] = blobBuffer.getBytes((pos - 1) * 2 + 1, length * 2);
             return new String(data, "UTF-16LE");
@@ -131,6 +165,9 @@ public class ClobImpl implements Clob {
     }
 
     public long length() throws SQLException {
+        if (locator != null) {
+            return locator.length();
+        }
         return blobBuffer.getLength() / 2;
     }
 
@@ -141,7 +178,7 @@ public class ClobImpl implements Clob {
         }
         try {
             byte[] pattern = searchStr.getBytes("UTF-16LE");
-            int pos = blobBuffer.position(pattern, (start - 1) * 2 + 1);
+            long pos = loadBlobBuffer().position(pattern, (start - 1) * 2 + 1, true);
             return (pos < 0) ? pos : (pos - 1) / 2 + 1;
         } catch (UnsupportedEncodingException e) {
             // This should never happen!
@@ -155,20 +192,20 @@ public class ClobImpl implements Clob {
             throw new SQLException(
                     Messages.get("error.clob.searchnull"), "HY009");
         }
-        BlobBuffer bbuf = ((ClobImpl) searchStr).getBlobBuffer();
+        BlobBuffer bbuf = ((ClobImpl) searchStr).loadBlobBuffer();
         byte[] pattern = bbuf.getBytes(1, (int) bbuf.getLength());
-        int pos = blobBuffer.position(pattern, (start - 1) * 2 + 1);
+        long pos = loadBlobBuffer().position(pattern, (start - 1) * 2 + 1, true);
         return (pos < 0) ? pos : (pos - 1) / 2 + 1;
     }
 
     public OutputStream setAsciiStream(final long pos) throws SQLException {
-        return blobBuffer.setBinaryStream((pos - 1) * 2 + 1, true);
+        return loadBlobBuffer().setBinaryStream((pos - 1) * 2 + 1, true);
     }
 
     public Writer setCharacterStream(final long pos) throws SQLException {
         try {
             return new BufferedWriter(new OutputStreamWriter(
-                    blobBuffer.setBinaryStream((pos - 1) * 2 + 1, false),
+                    loadBlobBuffer().setBinaryStream((pos - 1) * 2 + 1, false),
                     "UTF-16LE"));
         } catch (UnsupportedEncodingException e) {
             // Should never happen
@@ -199,7 +236,7 @@ public class ClobImpl implements Clob {
                     .getBytes("UTF-16LE");
             // No need to force BlobBuffer to copy the bytes as this is a local
             // buffer and cannot be corrupted by the user.
-            return blobBuffer.setBytes(
+            return loadBlobBuffer().setBytes(
                     (pos - 1) * 2 + 1, data, 0, data.length, false);
         } catch (UnsupportedEncodingException e) {
             // This should never happen!
@@ -209,7 +246,7 @@ public class ClobImpl implements Clob {
     }
 
     public void truncate(long len) throws SQLException {
-        blobBuffer.truncate(len * 2);
+        loadBlobBuffer().truncate(len * 2);
     }
 
     /////// JDBC4 demarcation, do NOT put any JDBC3 code below this line ///////
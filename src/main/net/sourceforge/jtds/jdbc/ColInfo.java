@@ -97,6 +97,25 @@ public class ColInfo implements Cloneable
     */
    boolean     isHidden;
 
+   /**
+    * Column is computed by an expression
+    */
+   boolean     isExpression;
+
+   /**
+    * Column has been identified as a column of a base table by a COLINFO
+    * token, i.e. {@link #tableName} and {@link #realName} are its table and
+    * real name
+    */
+   boolean     isBaseColumn;
+
+   /**
+    * Whether the LOB values of this column can be read by their text pointer,
+    * one of the state constants of {@link LobLocator}; not part of the meta
+    * data compared by {@link #equals(Object)}
+    */
+   int         locatorState;
+
    /**
     * Database ID for UDT
     */
@@ -180,6 +199,8 @@ public class ColInfo implements Cloneable
           && isIdentity      == o.isIdentity
           && isKey           == o.isKey
           && isHidden        == o.isHidden
+          && isExpression    == o.isExpression
+          && isBaseColumn    == o.isBaseColumn
 
           // compare non-primitive fields
           && compare( realName   , o.realName    )
@@ -143,6 +143,18 @@ public final class DefaultProperties {
     public static final String SOCKET_KEEPALIVE = "false";
     /** Default <code>processId</code> property. */
     public static final String PROCESS_ID = "123";
+    /** Default <code>parserCacheSize</code> property. */
+    public static final String PARSER_CACHE_SIZE = "1000";
+    /** Default <code>multiSubnetFailover</code> property. */
+    public static final String MULTISUBNETFAILOVER = "false";
+    /** Default <code>connectionRecovery</code> property. */
+    public static final String CONNECTIONRECOVERY = "false";
+    /** Default <code>streamLOBs</code> property. */
+    public static final String STREAM_LOBS = "false";
+    /** Default <code>lobMemory</code> property. */
+    public static final String LOB_MEMORY = "16384";
+    /** Default <code>lobLocators</code> property. */
+    public static final String LOB_LOCATORS = "false";
 
     /** Default <code>serverType</code> property for SQL Server. */
     public static final String SERVER_TYPE_SQLSERVER = "sqlserver";
@@ -260,6 +272,12 @@ public final class DefaultProperties {
         addDefaultPropertyIfNotSet(props, Driver.BINDADDRESS, BIND_ADDRESS);
         addDefaultPropertyIfNotSet(props, Driver.USEJCIFS, USEJCIFS);
         addDefaultPropertyIfNotSet(props, Driver.BUFFERDIR, BUFFER_DIR);
+        addDefaultPropertyIfNotSet(props, Driver.PARSERCACHESIZE, PARSER_CACHE_SIZE);
+        addDefaultPropertyIfNotSet(props, Driver.MULTISUBNETFAILOVER, MULTISUBNETFAILOVER);
+        addDefaultPropertyIfNotSet(props, Driver.CONNECTIONRECOVERY, CONNECTIONRECOVERY);
+        addDefaultPropertyIfNotSet(props, Driver.STREAMLOBS, STREAM_LOBS);
+        addDefaultPropertyIfNotSet(props, Driver.LOBMEMORY, LOB_MEMORY);
+        addDefaultPropertyIfNotSet(props, Driver.LOBLOCATORS, LOB_LOCATORS);
 
         return props;
     }
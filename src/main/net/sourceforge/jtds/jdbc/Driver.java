@@ -118,6 +118,12 @@ public class Driver implements java.sql.Driver {
     public static final String SENDSTRINGPARAMETERSASUNICODE = "prop.useunicode";
     public static final String WSID          = "prop.wsid";
     public static final String XAEMULATION   = "prop.xaemulation";
+    public static final String PARSERCACHESIZE = "prop.parsercachesize";
+    public static final String MULTISUBNETFAILOVER = "prop.multisubnetfailover";
+    public static final String CONNECTIONRECOVERY = "prop.connectionrecovery";
+    public static final String STREAMLOBS   = "prop.streamlobs";
+    public static final String LOBMEMORY    = "prop.lobmemory";
+    public static final String LOBLOCATORS  = "prop.loblocators";
 
     static {
         try {
@@ -281,6 +287,7 @@ public class Driver implements java.sql.Driver {
             String.valueOf(TdsCore.TEMPORARY_STORED_PROCEDURES),
             String.valueOf(TdsCore.EXECUTE_SQL),
             String.valueOf(TdsCore.PREPARE),
+            String.valueOf(TdsCore.PREPEXEC),
         };
         choicesMap.put(Messages.get(Driver.PREPARESQL), prepareSqlChoices);
 
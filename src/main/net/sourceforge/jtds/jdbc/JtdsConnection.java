@@ -22,14 +22,17 @@ import java.sql.*;
 import java.net.UnknownHostException;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.HashSet;
 import java.util.Random;
+import java.util.Set;
 
 import net.sourceforge.jtds.jdbc.cache.*;
 import net.sourceforge.jtds.util.*;
@@ -82,16 +85,54 @@ public class JtdsConnection implements java.sql.Connection {
      * SQL Server initial connection string. Also contains a
      * <code>SELECT @@MAX_PRECISION</code> query to retrieve
      * the maximum precision for DECIMAL/NUMERIC data. */
+    /**
+     * SQL making SQL Server describe the base table and column of every
+     * result column with TABNAME and COLINFO tokens, as needed by
+     * {@link LobLocator}s.
+     */
+    private static final String NO_BROWSETABLE_SQL = "SET NO_BROWSETABLE ON";
     private static final String SQL_SERVER_INITIAL_SQL = "SELECT @@MAX_PRECISION\r\n" +
                                                          "SET TRANSACTION ISOLATION LEVEL READ COMMITTED\r\n" +
                                                          "SET IMPLICIT_TRANSACTIONS OFF\r\n" +
                                                          "SET QUOTED_IDENTIFIER ON\r\n"+
                                                          "SET TEXTSIZE 2147483647";
+    /**
+     * Number of obsolete statement handles that are collected before they are
+     * unprepared in a single request.
+     */
+    private static final int UNPREPARE_BATCH_SIZE = 32;
+    /**
+     * Number of SQL statements remembered as returning only LOB values that
+     * can be read by {@link LobLocator}s.
+     */
+    private static final int LOB_LOCATOR_SQL_CACHE_SIZE = 256;
+
+    /**
+     * Time in milliseconds a connection has to be idle before it is checked
+     * for a network failure when <code>connectionRecovery</code> is enabled.
+     */
+    private static final int RECOVERY_IDLE_TIME = 10000;
+
+    /**
+     * Time in milliseconds after the last network activity during which
+     * {@link #isValid(int)} considers the connection valid without checking.
+     */
+    private static final int VALIDATION_IDLE_TIME = 1000;
+
     /**
      * SQL Server custom transaction isolation level.
      */
     public static final int TRANSACTION_SNAPSHOT = 4096;
 
+    /**
+     * Names of the connection setup phases timed by
+     * {@link #getLoginTimes()}: SQL Server instance lookup, TCP/IP or named
+     * pipe connect, prelogin and SSL negotiation, login and authentication,
+     * and the initial SQL batch.
+     */
+    public static final String[] LOGIN_PHASES =
+            {"lookup", "connect", "prelogin", "login", "initialize"};
+
     /*
      * Conection attributes
      */
@@ -110,6 +151,8 @@ public class JtdsConnection implements java.sql.Connection {
     private String databaseName;
     /** The current database name. */
     private String currentDatabase;
+    /** The database selected by the login, restored by a session reset. */
+    private String loginDatabase;
     /** The Windows Domain name. */
     private String domainName;
     /** The database user ID. */
@@ -130,10 +173,10 @@ public class JtdsConnection implements java.sql.Connection {
     private String macAddress;
     /** The server protocol version. */
     private int tdsVersion;
-    /** The network TCP/IP socket. */
-    private final SharedSocket socket;
+    /** The network TCP/IP socket, replaced when recovering the connection. */
+    private volatile SharedSocket socket;
     /** The cored TDS protocol object. */
-    private final TdsCore baseTds;
+    private TdsCore baseTds;
     /** The initial network packet size. */
     private int netPacketSize = TdsCore.MIN_PKT_SIZE;
     /** User requested packet size. */
@@ -152,6 +195,21 @@ public class JtdsConnection implements java.sql.Connection {
     private int databaseMinorVersion;
     /** True if this connection is closed. */
     private volatile boolean closed;
+    /** Matches a <code>SET</code> statement, capturing the option names. */
+    private static final java.util.regex.Pattern SET_OPTION = java.util.regex.Pattern.compile(
+            "(?is)SET\\s+([A-Z_][A-Z_0-9]*(?:\\s*,\\s*[A-Z_][A-Z_0-9]*)*)\\s+\\S.*");
+    /** <code>SET</code> options managed by the driver, never replayed. */
+    private static final Set<String> DRIVER_OPTIONS = new HashSet<String>(Arrays.asList(
+            "TRANSACTION", "ROWCOUNT", "TEXTSIZE", "IMPLICIT_TRANSACTIONS", "CHAINED",
+            "NO_BROWSETABLE"));
+
+    /** True if the network connection failed and has to be recovered. */
+    private volatile boolean broken;
+    /**
+     * The <code>SET</code> statements sent by the application, by option, to
+     * be replayed when recovering the connection.
+     */
+    private final Map<String,String> setOptions = new LinkedHashMap<String,String>();
     /** True if this connection is read only. */
     private boolean readOnly;
     /** List of statements associated with this connection. */
@@ -162,6 +220,8 @@ public class JtdsConnection implements java.sql.Connection {
     private volatile boolean autoCommit = true;
     /** Diagnostc messages for this connection. */
     private final SQLDiagnostic messages;
+    /** Duration of the connection setup phases in microseconds. */
+    private final long[] loginTimes = new long[LOGIN_PHASES.length];
     /** Connection's current rowcount limit. */
     private int rowCount;
     /** Connection's current maximum field size limit. */
@@ -184,6 +244,10 @@ public class JtdsConnection implements java.sql.Connection {
     private int maxStatements;
     /** Statement cache.*/
     private StatementCache statementCache;
+    /** SQL to drop obsolete procedures and statement handles (SQL Server). */
+    private final StringBuilder unprepareSql = new StringBuilder();
+    /** Number of statements to drop in {@link #unprepareSql}. */
+    private int unprepareCount;
     /** Send parameters as unicode. */
     private boolean useUnicode = true;
     /** Use named pipe IPC instead of TCP/IP sockets. */
@@ -210,6 +274,20 @@ public class JtdsConnection implements java.sql.Connection {
     private int socketTimeout;
     /** True to enable socket keep alive. */
     private boolean socketKeepAlive;
+    /** True to connect to all addresses of the server in parallel. */
+    private boolean multiSubnetFailover;
+    /** True to recover broken idle connections. */
+    private boolean connectionRecovery;
+    /** True to stream large LOB values of forward-only result sets. */
+    private boolean streamLOBs;
+    /** True to read large LOB values on demand by their text pointer. */
+    private boolean lobLocators;
+    /**
+     * Whether SQL statements return only LOB values that can be read by
+     * {@link LobLocator}s, by SQL.
+     */
+    private final ConcurrentLRUCache<String,Boolean> lobLocatorSql =
+            new ConcurrentLRUCache<String,Boolean>(LOB_LOCATOR_SQL_CACHE_SIZE);
     /** The process ID to report to a server when connecting. */
     private static Integer processId;
     /** SSL setting. */
@@ -226,6 +304,10 @@ public class JtdsConnection implements java.sql.Connection {
     private int bufferMaxMemory;
     /** The minimum number of packets per statement to buffer to memory. */
     private int bufferMinPackets;
+    /** The global off-heap memory limit for LOB data of all connections (in kilobytes). */
+    private int lobMemory;
+    /** The requested size of the parser cache shared by all connections, 0 to bypass it. */
+    private int parserCacheSize;
     /** Map large types (IMAGE and TEXT/NTEXT) to LOBs by default. */
     private boolean useLOBs;
     /** A cached <code>TdsCore</code> instance to reuse on new statements. */
@@ -281,15 +363,39 @@ public class JtdsConnection implements java.sql.Connection {
         //
         unpackProperties(info);
         messages = new SQLDiagnostic(serverType);
+
+        SharedSocket.setMemoryBudget(bufferMaxMemory * 1024);
+        SharedSocket.setMinMemPkts(bufferMinPackets);
+        LobArena.requestBudget(lobMemory * 1024L);
+        SQLParser.setCacheSize(parserCacheSize);
+
+        open(false);
+    }
+
+    /**
+     * Opens the network connection, logs in and initializes the session.
+     * Called by the constructor and to recover a broken connection.
+     *
+     * @param recovering <code>true</code> if called to recover a broken
+     *                   connection, which is left open on failure so that
+     *                   the recovery can be retried
+     * @throws SQLException if the connection can't be established; the
+     *         connection is closed then, unless the SQL Server instance
+     *         lookup failed or the connection is being recovered
+     */
+    private void open(boolean recovering) throws SQLException {
+        long phaseStart = System.nanoTime();
         //
         // Get the instance port, if it is specified.
         // Named pipes use instance names differently.
         //
+        boolean lookedUp = false;
         if (instanceName.length() > 0 && !namedPipe) {
             try {
-                final MSSqlServerInfo msInfo = new MSSqlServerInfo(serverName);
+                final MSSqlServerInfo msInfo = MSSqlServerInfo.lookup(serverName);
 
                 portNumber = msInfo.getPortForInstance(instanceName);
+                lookedUp = true;
             } catch (SQLException e) {
                // may already have a valid portNumber but Microsoft SQL Server Browser disabled
                if (portNumber <= 0) {
@@ -298,18 +404,21 @@ public class JtdsConnection implements java.sql.Connection {
             }
 
             if (portNumber == -1) {
+                // The cached information may predate the instance
+                MSSqlServerInfo.invalidate(serverName);
                 throw new SQLException(
                                       Messages.get("error.msinfo.badinst", serverName, instanceName),
                                       "08003");
             }
         }
 
-        SharedSocket.setMemoryBudget(bufferMaxMemory * 1024);
-        SharedSocket.setMinMemPkts(bufferMinPackets);
+        phaseStart = endLoginPhase(0, phaseStart);
+
         SQLWarning warn;
 
         Object timer = null;
         boolean loginError = false;
+        boolean connected = false;
         try {
             if (loginTimeout > 0) {
                 // Start a login timer
@@ -344,6 +453,9 @@ public class JtdsConnection implements java.sql.Connection {
                 throw new IOException("Login timed out");
             }
 
+            connected = true;
+            phaseStart = endLoginPhase(1, phaseStart);
+
             if ( charsetSpecified ) {
                 loadCharset(serverCharset);
             } else {
@@ -357,6 +469,7 @@ public class JtdsConnection implements java.sql.Connection {
             // Create TDS protocol object
             //
             baseTds = new TdsCore(this, messages);
+            baseTds.disableLobLocators();
 
             //
             // Negotiate SSL connection if required
@@ -365,6 +478,8 @@ public class JtdsConnection implements java.sql.Connection {
                 baseTds.negotiateSSL(instanceName, ssl);
             }
 
+            phaseStart = endLoginPhase(2, phaseStart);
+
             //
             // Now try to login
             //
@@ -381,6 +496,8 @@ public class JtdsConnection implements java.sql.Connection {
                           macAddress,
                           packetSize);
 
+            phaseStart = endLoginPhase(3, phaseStart);
+
             //
             // Save any login warnings so that they will not be overwritten by
             // the internal configuration SQL statements e.g. setCatalog() etc.
@@ -391,36 +508,21 @@ public class JtdsConnection implements java.sql.Connection {
             // the TDS version for the socket and there are no other objects
             // with cached TDS versions at this point.
             tdsVersion = baseTds.getTdsVersion();
-            if (tdsVersion < Driver.TDS70 && databaseName.length() > 0) {
-                // Need to select the default database
-                setCatalog(databaseName);
-            }
 
-            // If charset is still unknown and the collation is not set either,
-            // determine the charset by querying (we're using Sybase or SQL Server
-            // 6.5)
-            if ((serverCharset == null || serverCharset.length() == 0)
-                    && collation == null) {
-                loadCharset(determineServerCharset());
-            }
+            // Initial database settings, in a single request if any
+            initialize();
 
-            // Initial database settings.
-            // Sets: auto commit mode  = true
-            //       transaction isolation = read committed.
-            if (serverType == Driver.SYBASE) {
-                baseTds.submitSQL(SYBASE_INITIAL_SQL);
-            } else {
-                // Also discover the maximum decimal precision:  28 (default)
-                // or 38 for MS SQL Server 6.5/7, or 38 for 2000 and later.
-                Statement stmt = this.createStatement();
-                ResultSet rs = stmt.executeQuery(SQL_SERVER_INITIAL_SQL);
+            loginDatabase = currentDatabase;
 
-                if (rs.next()) {
-                    maxPrecision = rs.getByte(1);
-                }
+            endLoginPhase(4, phaseStart);
 
-                rs.close();
-                stmt.close();
+            if (Logger.isActive()) {
+                StringBuilder buf = new StringBuilder("Login times (us):");
+                for (int i = 0; i < LOGIN_PHASES.length; i++) {
+                    buf.append(' ').append(LOGIN_PHASES[i]);
+                    buf.append('=').append(loginTimes[i]);
+                }
+                Logger.println(buf.toString());
             }
         } catch (UnknownHostException e) {
             loginError = true;
@@ -429,6 +531,10 @@ public class JtdsConnection implements java.sql.Connection {
                             e.getMessage()), "08S03"), e);
         } catch (IOException e) {
             loginError = true;
+            if (lookedUp) {
+                // The instance may have been restarted on another port
+                MSSqlServerInfo.invalidate(serverName);
+            }
             if (loginTimeout > 0 && e.getMessage().indexOf("timed out") >= 0) {
                 throw Support.linkException(
                         new SQLException(Messages.get("error.connection.timeout"), "HYT01"), e);
@@ -448,8 +554,19 @@ public class JtdsConnection implements java.sql.Connection {
             throw e;
         }
         finally {
+            if (loginError && lookedUp && !connected) {
+                // Whatever the reason, the looked up port could not be used
+                MSSqlServerInfo.invalidate(serverName);
+            }
             // fix for bug [1755448], socket not closed after login error
-            if (loginError) {
+            if (loginError && recovering) {
+                if (timer != null) {
+                    TimerThread.getInstance().cancelTimer(timer);
+                }
+                if (socket != null) {
+                    socket.forceClose();
+                }
+            } else if (loginError) {
                  close();
             } else if (timer != null) {
                 // Cancel loginTimer
@@ -556,6 +673,30 @@ public class JtdsConnection implements java.sql.Connection {
     }
 
 
+    /**
+     * Records the duration of a connection setup phase.
+     *
+     * @param phase the index of the phase in {@link #LOGIN_PHASES}
+     * @param start the start time of the phase, as returned by
+     *              <code>System.nanoTime()</code>
+     * @return the end time of the phase
+     */
+    private long endLoginPhase(int phase, long start) {
+        long now = System.nanoTime();
+        loginTimes[phase] = (now - start) / 1000;
+        return now;
+    }
+
+    /**
+     * Retrieves the time spent in each phase of the connection setup, in the
+     * order of {@link #LOGIN_PHASES}.
+     *
+     * @return the phase durations in microseconds
+     */
+    public long[] getLoginTimes() {
+        return loginTimes.clone();
+    }
+
     /**
      * Retrive the shared socket.
      *
@@ -632,6 +773,33 @@ public class JtdsConnection implements java.sql.Connection {
                                    boolean returnKeys,
                                    boolean cursorNeeded)
             throws SQLException {
+        return prepareSQL(pstmt, sql, params, returnKeys, cursorNeeded, false);
+    }
+
+    /**
+     * Try to convert the SQL statement into a statement prepare, optionally
+     * for a batch. Batch executions need the handle before the execution, so
+     * with <code>prepareSql=4</code> they prepare the statement with
+     * <code>sp_prepare</code> as with <code>prepareSql=3</code>.
+     *
+     * @param pstmt        the target prepared statement
+     * @param sql          the SQL statement to prepare
+     * @param params       the parameters
+     * @param returnKeys   indicates whether the statement will return
+     *                     generated keys
+     * @param cursorNeeded indicates whether a cursor prepare is needed
+     * @param batch        indicates whether the statement is executed as
+     *                     part of a batch
+     * @return the SQL procedure name as a <code>String</code> or null if the
+     *         SQL cannot be prepared
+     */
+    synchronized String prepareSQL(JtdsPreparedStatement pstmt,
+                                   String sql,
+                                   ParamInfo[] params,
+                                   boolean returnKeys,
+                                   boolean cursorNeeded,
+                                   boolean batch)
+            throws SQLException {
         if (prepareSql == TdsCore.UNPREPARED
                 || prepareSql == TdsCore.EXECUTE_SQL) {
             return null; // User selected not to use procs
@@ -676,9 +844,13 @@ public class JtdsConnection implements java.sql.Connection {
             }
         }
 
-        String key = Support.getStatementKey(sql, params, serverType,
+        StatementKey key = Support.getStatementKey(sql, params, serverType,
                 getCatalog(), autoCommit, cursorNeeded);
 
+        // Whether the statement's TdsCore prepares the SQL by sp_prepexec
+        boolean deferred = serverType == Driver.SQLSERVER
+                && prepareSql == TdsCore.PREPEXEC && !cursorNeeded && !batch;
+
         //
         // See if we have already built this one
         //
@@ -694,6 +866,15 @@ public class JtdsConnection implements java.sql.Connection {
                 proc.release();
             }
 
+            if (!deferred && proc.startPrepare()) {
+                // Not prepared by sp_prepexec yet but the handle is needed now
+                proc.prepared(baseTds.microsoftPrepare(sql, params, false,
+                        pstmt.getResultSetType(),
+                        pstmt.getResultSetConcurrency()));
+                // Meta data may be returned by sp_prepare
+                proc.setColMetaData(baseTds.getColumns());
+            }
+
             pstmt.setColMetaData(proc.getColMetaData());
             if (serverType == Driver.SYBASE) {
                 pstmt.setParamMetaData(proc.getParamMetaData());
@@ -704,7 +885,10 @@ public class JtdsConnection implements java.sql.Connection {
             //
             proc = new ProcEntry();
 
-            if (serverType == Driver.SQLSERVER) {
+            if (deferred) {
+                // Prepared by sp_prepexec on first execution
+                proc.setType(ProcEntry.PREPEXEC);
+            } else if (serverType == Driver.SQLSERVER) {
                 proc.setName(
                         baseTds.microsoftPrepare(
                                 sql, params, cursorNeeded,
@@ -748,6 +932,12 @@ public class JtdsConnection implements java.sql.Connection {
 
         pstmt.handles.add(proc);
 
+        if (deferred) {
+            // Let the statement's TdsCore prepare the SQL or pick up a lost
+            // handle
+            pstmt.getTds().setProcEntry(proc);
+        }
+
         // Give the user the name will be null if prepare failed
         return proc.toString();
     }
@@ -761,7 +951,7 @@ public class JtdsConnection implements java.sql.Connection {
      * @param key The signature of the procedure to cache.
      * @param proc The stored procedure descriptor.
      */
-    void addCachedProcedure(String key, ProcEntry proc) {
+    void addCachedProcedure(StatementKey key, ProcEntry proc) {
         statementCache.put(key, proc);
 
         if (!autoCommit
@@ -785,7 +975,7 @@ public class JtdsConnection implements java.sql.Connection {
      *
      * @param key The signature of the procedure to remove from the cache.
      */
-    void removeCachedProcedure(String key) {
+    void removeCachedProcedure(StatementKey key) {
         statementCache.remove(key);
 
         if (!autoCommit) {
@@ -944,6 +1134,67 @@ public class JtdsConnection implements java.sql.Connection {
         return useLOBs;
     }
 
+    /**
+     * Indicates whether LOB values larger than <code>lobBuffer</code> should
+     * be read directly from the network by forward-only result sets rather
+     * than buffered in memory or on disk.
+     *
+     * @return <code>true</code> if large LOB values are streamed
+     */
+    boolean getStreamLOBs() {
+        return streamLOBs;
+    }
+
+    /**
+     * Indicates whether LOB values larger than <code>lobBuffer</code> should
+     * be read on demand by their text pointer rather than buffered with the
+     * row.
+     *
+     * @return <code>true</code> if large LOB values are read on demand
+     */
+    boolean getLobLocators() {
+        return lobLocators;
+    }
+
+    /**
+     * Retrieves the <code>TEXTSIZE</code> statements are executed with if they
+     * return only LOB values that can be read by {@link LobLocator}s, i.e.
+     * <code>lobBuffer</code> rounded down to whole NTEXT characters.
+     *
+     * @return the text size or 0 if values are never cut off
+     */
+    int getLobTextSize() {
+        if (!lobLocators || serverType != Driver.SQLSERVER
+                || lobBuffer < 2 || lobBuffer >= Integer.MAX_VALUE) {
+            return 0;
+        }
+        return (int) lobBuffer & ~1;
+    }
+
+    /**
+     * Indicates whether a SQL statement has been found to return only LOB
+     * values that can be read by {@link LobLocator}s.
+     *
+     * @param sql the SQL statement
+     * @return <code>true</code> if the statement may be executed with a
+     *         <code>TEXTSIZE</code> limit
+     */
+    boolean isLobLocatable(String sql) {
+        return Boolean.TRUE.equals(lobLocatorSql.get(sql));
+    }
+
+    /**
+     * Records whether a SQL statement returns only LOB values that can be read
+     * by {@link LobLocator}s.
+     *
+     * @param sql       the SQL statement
+     * @param locatable <code>true</code> if the statement may be executed with
+     *                  a <code>TEXTSIZE</code> limit
+     */
+    void setLobLocatable(String sql, boolean locatable) {
+        lobLocatorSql.put(sql, Boolean.valueOf(locatable));
+    }
+
     /**
      * Indicates whether, when doing Windows authentication to an MS SQL server,
      * NTLMv2 should be used. When this is set to "false", LM and NTLM responses
@@ -999,6 +1250,16 @@ public class JtdsConnection implements java.sql.Connection {
         return bufferMaxMemory;
     }
 
+    /**
+     * Retrieves the maximum amount of off-heap memory in Kb to use for LOB
+     * data of <em>all</em> connections.
+     *
+     * @return the off-heap LOB memory limit in Kb
+     */
+    int getLobMemory() {
+        return lobMemory;
+    }
+
     /**
      * Retrieves the minimum number of packets to buffer per {@link Statement} for this connection.
      *
@@ -1008,6 +1269,39 @@ public class JtdsConnection implements java.sql.Connection {
         return bufferMinPackets;
     }
 
+    /**
+     * Retrieves the size of the parser cache requested by this connection.
+     * The cache is shared by all connections and sized to the largest value
+     * requested; <code>0</code> means this connection does not use it.
+     *
+     * @return the parser cache size
+     */
+    int getParserCacheSize() {
+        return parserCacheSize;
+    }
+
+    /**
+     * Retrieves the number of SQL parser cache hits. The parser cache is
+     * shared by all connections, so the value is not specific to this
+     * connection.
+     *
+     * @return the number of SQL statements found in the parser cache
+     */
+    public long getParserCacheHits() {
+        return SQLParser.getCache().getHits();
+    }
+
+    /**
+     * Retrieves the number of SQL parser cache misses. The parser cache is
+     * shared by all connections, so the value is not specific to this
+     * connection.
+     *
+     * @return the number of SQL statements that had to be parsed
+     */
+    public long getParserCacheMisses() {
+        return SQLParser.getCache().getMisses();
+    }
+
     /**
      * Retrieves the database name for this connection.
      *
@@ -1062,6 +1356,16 @@ public class JtdsConnection implements java.sql.Connection {
         return socketKeepAlive;
     }
 
+    /**
+     * Retrieves whether to connect to all addresses of the server in
+     * parallel.
+     *
+     * @return <code>true</code> if parallel connects are enabled
+     */
+    boolean getMultiSubnetFailover() {
+        return multiSubnetFailover;
+    }
+
     /**
      * Retrieves the process ID to send to a server when a connection is
      * established.
@@ -1239,6 +1543,10 @@ public class JtdsConnection implements java.sql.Connection {
         loginTimeout = parseIntegerProperty(info, Driver.LOGINTIMEOUT);
         socketTimeout = parseIntegerProperty(info, Driver.SOTIMEOUT);
         socketKeepAlive = parseBooleanProperty(info,Driver.SOKEEPALIVE);
+        multiSubnetFailover = parseBooleanProperty(info,Driver.MULTISUBNETFAILOVER);
+        connectionRecovery = parseBooleanProperty(info,Driver.CONNECTIONRECOVERY);
+        streamLOBs = parseBooleanProperty(info,Driver.STREAMLOBS);
+        lobLocators = parseBooleanProperty(info,Driver.LOBLOCATORS);
         autoCommit = parseBooleanProperty(info,Driver.AUTOCOMMIT);
 
         String pid = info.getProperty(Messages.get(Driver.PROCESSID));
@@ -1260,11 +1568,12 @@ public class JtdsConnection implements java.sql.Connection {
         prepareSql = parseIntegerProperty(info, Driver.PREPARESQL);
         if (prepareSql < 0) {
             prepareSql = 0;
-        } else if (prepareSql > 3) {
-            prepareSql = 3;
+        } else if (prepareSql > 4) {
+            prepareSql = 4;
         }
         // For Sybase use equivalent of sp_executesql.
-        if (tdsVersion < Driver.TDS70 && prepareSql == TdsCore.PREPARE) {
+        if (tdsVersion < Driver.TDS70 && (prepareSql == TdsCore.PREPARE
+                || prepareSql == TdsCore.PREPEXEC)) {
             prepareSql = TdsCore.EXECUTE_SQL;
         }
         // For SQL 6.5 sp_executesql not available so use stored procedures.
@@ -1299,6 +1608,18 @@ public class JtdsConnection implements java.sql.Connection {
             throw new SQLException(Messages.get("error.connection.badprop",
                     Messages.get(Driver.BUFFERMINPACKETS)), "08001");
         }
+
+        lobMemory = parseIntegerProperty(info, Driver.LOBMEMORY);
+        if (lobMemory < 0) {
+            throw new SQLException(Messages.get("error.connection.badprop",
+                    Messages.get(Driver.LOBMEMORY)), "08001");
+        }
+
+        parserCacheSize = parseIntegerProperty(info, Driver.PARSERCACHESIZE);
+        if (parserCacheSize < 0) {
+            throw new SQLException(Messages.get("error.connection.badprop",
+                    Messages.get(Driver.PARSERCACHESIZE)), "08001");
+        }
     }
 
     /**
@@ -1482,20 +1803,109 @@ public class JtdsConnection implements java.sql.Connection {
     }
 
     /**
-     * Discovers the server charset for server versions that do not send
-     * <code>ENVCHANGE</code> packets on login ack, by executing a DB
-     * vendor/version specific query.
+     * Brings the session into the initial state expected by the driver:
+     * selects the default database (TDS 4.2/5.0), sets auto commit mode and
+     * the transaction isolation level, discovers the maximum decimal precision
+     * and, if not already known from the login, the server charset.
+     * <p>
+     * Everything that still needs to be done is sent as a single batch. With
+     * SQL Server 2000 and later over TDS 7.0+ nothing is sent at all: the
+     * server already applies the defaults of an ODBC client (no implicit
+     * transactions, quoted identifiers, 2GB text size, read committed) on
+     * login, the maximum precision is always 38 and the charset is known from
+     * the collation sent with the login acknowledgement.
+     * <p>
+     * Should only be called from the constructor.
+     *
+     * @throws SQLException if an error condition occurs
+     */
+    private void initialize() throws SQLException {
+        StringBuilder sql = new StringBuilder();
+
+        if (tdsVersion < Driver.TDS70 && databaseName.length() > 0
+                && !databaseName.equals(currentDatabase)) {
+            // Need to select the default database
+            sql.append("use ").append(databaseName).append("\r\n");
+        }
+
+        // Also discover the maximum decimal precision:  28 (default)
+        // or 38 for MS SQL Server 6.5/7, or 38 for 2000 and later.
+        boolean precisionQuery = false;
+
+        if (serverType == Driver.SYBASE) {
+            sql.append(SYBASE_INITIAL_SQL);
+        } else if (tdsVersion < Driver.TDS70 || databaseMajorVersion < 8) {
+            sql.append(SQL_SERVER_INITIAL_SQL);
+            precisionQuery = true;
+        } else {
+            maxPrecision = TdsData.DEFAULT_PRECISION_38;
+        }
+
+        // If charset is still unknown and the collation is not set either,
+        // determine the charset by querying (we're using Sybase or SQL Server
+        // 6.5)
+        boolean charsetQuery = (serverCharset == null || serverCharset.length() == 0)
+                && collation == null;
+
+        if (charsetQuery) {
+            sql.append("\r\n").append(getServerCharsetQuery());
+        }
+
+        if (lobLocators && serverType == Driver.SQLSERVER) {
+            // Describe the base table and column of every result column
+            sql.append("\r\n").append(NO_BROWSETABLE_SQL);
+        }
+
+        if (sql.length() == 0) {
+            return;
+        }
+
+        Statement stmt = this.createStatement();
+
+        try {
+            boolean isResultSet = stmt.execute(sql.toString());
+            String charset = null;
+
+            while (isResultSet || stmt.getUpdateCount() != -1) {
+                if (isResultSet) {
+                    ResultSet rs = stmt.getResultSet();
+
+                    if (rs.next()) {
+                        if (precisionQuery) {
+                            // The first result
+                            maxPrecision = rs.getByte(1);
+                            precisionQuery = false;
+                        } else {
+                            charset = rs.getString(1);
+                        }
+                    }
+
+                    rs.close();
+                }
+
+                isResultSet = stmt.getMoreResults();
+            }
+
+            if (charsetQuery) {
+                loadCharset(charset);
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Retrieves the query that discovers the server charset for server
+     * versions that do not send <code>ENVCHANGE</code> packets on login ack.
      * <p>
      * Will throw an <code>SQLException</code> if used on SQL Server 7.0 or
      * 2000; the idea is that the charset should already be determined from
      * <code>ENVCHANGE</code> packets for these DB servers.
-     * <p>
-     * Should only be called from the constructor.
      *
-     * @return the default server charset
+     * @return the DB vendor/version specific query
      * @throws SQLException if an error condition occurs
      */
-    private String determineServerCharset() throws SQLException {
+    private String getServerCharsetQuery() throws SQLException {
         String queryStr = null;
 
         switch (serverType) {
@@ -1515,14 +1925,7 @@ public class JtdsConnection implements java.sql.Connection {
                 break;
         }
 
-        Statement stmt = this.createStatement();
-        ResultSet rs = stmt.executeQuery(queryStr);
-        rs.next();
-        String charset = rs.getString(1);
-        rs.close();
-        stmt.close();
-
-        return charset;
+        return queryStr;
     }
 
     /**
@@ -1588,7 +1991,10 @@ public class JtdsConnection implements java.sql.Connection {
      */
     protected void setDatabase(final String newDb, final String oldDb)
             throws SQLException {
-        if (currentDatabase != null && !oldDb.equalsIgnoreCase(currentDatabase)) {
+        // A change to the database already known as current is reported by
+        // the server after a session reset; there's nothing to check then
+        if (currentDatabase != null && !oldDb.equalsIgnoreCase(currentDatabase)
+                && !newDb.equalsIgnoreCase(currentDatabase)) {
             throw new SQLException(Messages.get("error.connection.dbmismatch",
                                                       oldDb, databaseName),
                                    "HY096");
@@ -1680,18 +2086,20 @@ public class JtdsConnection implements java.sql.Connection {
 
             if (handles != null) {
                 if (serverType == Driver.SQLSERVER) {
-                    // SQL Server unprepare
-                    StringBuilder cleanupSql = new StringBuilder(handles.size() * 32);
+                    // SQL Server unprepare, deferred until enough handles
+                    // have been collected or sent with the next transaction end
                     for (Iterator iterator = handles.iterator(); iterator.hasNext(); ) {
                         ProcEntry pe = (ProcEntry) iterator.next();
+                        int length = unprepareSql.length();
                         // Could get put back if in a transaction that is
                         // rolled back
-                        pe.appendDropSQL(cleanupSql);
+                        pe.appendDropSQL(unprepareSql);
+                        if (unprepareSql.length() > length) {
+                            unprepareCount++;
+                        }
                     }
-                    if (cleanupSql.length() > 0) {
-                        baseTds.executeSQL(cleanupSql.toString(), null, null, true, 0,
-                                            -1, -1, true);
-                        baseTds.clearResponseQueue();
+                    if (unprepareCount >= UNPREPARE_BATCH_SIZE) {
+                        flushUnprepareSQL();
                     }
                 } else {
                     // Sybase unprepare
@@ -1707,6 +2115,42 @@ public class JtdsConnection implements java.sql.Connection {
         }
     }
 
+    /**
+     * Sends the SQL to drop obsolete procedures and statement handles in a
+     * request of its own. Errors are ignored, the statements are obsolete
+     * anyway.
+     * <p>
+     * Not explicitly synchronized because it's only called by synchronized
+     * methods.
+     *
+     * @throws SQLException if the request cannot be sent
+     */
+    private void flushUnprepareSQL() throws SQLException {
+        String sql = takeUnprepareSQL();
+        if (sql.length() > 0) {
+            baseTds.executeSQL(sql, null, null, true, 0, -1, -1, true);
+            baseTds.clearResponseQueue();
+        }
+    }
+
+    /**
+     * Retrieves and clears the SQL to drop obsolete procedures and statement
+     * handles, to be appended to a request the connection sends anyway, such
+     * as a <code>COMMIT</code>.
+     *
+     * @return the SQL, starting with a line break, or an empty string
+     */
+    private String takeUnprepareSQL() {
+        if (unprepareCount == 0) {
+            return "";
+        }
+
+        String sql = "\r\n" + unprepareSql;
+        unprepareSql.setLength(0);
+        unprepareCount = 0;
+        return sql;
+    }
+
     /**
      * Adds a statement object to the list maintained by the connection.
      * <p/>
@@ -1744,6 +2188,145 @@ public class JtdsConnection implements java.sql.Connection {
             throw new SQLException(
                                   Messages.get("error.generic.closed", "Connection"), "HY010");
         }
+
+        if (connectionRecovery && (broken || isIdleBroken())) {
+            recover();
+        }
+    }
+
+    /**
+     * Checks whether the network connection of an idle connection has been
+     * closed or reset, e.g. by the server or a load balancer. Only checked
+     * in auto commit mode and after {@link #RECOVERY_IDLE_TIME} milliseconds
+     * without network activity.
+     *
+     * @return <code>true</code> if the connection has been marked as broken
+     */
+    private boolean isIdleBroken() {
+        SharedSocket sock = socket;
+
+        if (!autoCommit || xaTransaction
+                || System.currentTimeMillis() - sock.getLastActivity() < RECOVERY_IDLE_TIME
+                || sock.isAlive()) {
+            return false;
+        }
+
+        if (Logger.isActive()) {
+            Logger.println("Idle connection found broken");
+        }
+
+        setClosed(sock);
+        return broken;
+    }
+
+    /**
+     * Reopens a broken connection and restores the session state known to
+     * the driver: the current database, the transaction isolation level and
+     * the <code>SET</code> options sent by the application. Temporary tables
+     * and prepared statements are lost, as are statements created before the
+     * failure, which have to be recreated. If the connection can't be
+     * reopened it stays broken and recovery is retried on its next use.
+     *
+     * @throws SQLException if the connection can't be reopened
+     */
+    private synchronized void recover() throws SQLException {
+        if (!broken || closed) {
+            return;
+        }
+
+        if (Logger.isActive()) {
+            Logger.println("Recovering broken connection");
+        }
+
+        String database = currentDatabase;
+        int isolation = transactionIsolation;
+
+        socket.forceClose();
+
+        if (cachedTds != null) {
+            cachedTds.close();
+            cachedTds = null;
+        }
+
+        // The state of a new session
+        currentDatabase = null;
+        collation = null;
+        transactionIsolation = java.sql.Connection.TRANSACTION_READ_COMMITTED;
+        rowCount = 0;
+        textSize = 0;
+        statementCache = new ProcedureCache(maxStatements);
+        unprepareSql.setLength(0);
+        unprepareCount = 0;
+        procInTran.clear();
+        clearSavepoints();
+
+        broken = false;
+
+        try {
+            open(true);
+        } catch (SQLException e) {
+            // Retry on next use, unless the connection has been closed
+            broken = !closed;
+            throw e;
+        }
+
+        if (database != null && !database.equalsIgnoreCase(currentDatabase)) {
+            setCatalog(database);
+        }
+
+        setTransactionIsolation(isolation);
+
+        StringBuilder options = new StringBuilder();
+        synchronized (setOptions) {
+            for (String option : setOptions.values()) {
+                options.append(option).append("\r\n");
+            }
+        }
+        if (options.length() > 0) {
+            // Options that failed before will fail again, ignore the errors
+            baseTds.executeSQL(options.toString(), null, null, true, 0, -1, -1, true);
+            baseTds.clearResponseQueue();
+        }
+    }
+
+    /**
+     * Records the <code>SET</code> statements of a SQL batch sent to the
+     * server, to be replayed when recovering the connection. Only batches
+     * consisting of nothing but <code>SET</code> statements are recorded;
+     * options managed by the driver itself (isolation level, auto commit,
+     * row count and text size) are ignored.
+     *
+     * @param sql the SQL batch
+     */
+    void trackSetOptions(String sql) {
+        if (!connectionRecovery || sql.length() < 4
+                || !sql.regionMatches(true, 0, "SET", 0, 3)) {
+            return;
+        }
+
+        Map<String,String> found = new LinkedHashMap<String,String>();
+        for (String part : sql.split("[;\r\n]+")) {
+            part = part.trim();
+            if (part.length() == 0) {
+                continue;
+            }
+            java.util.regex.Matcher m = SET_OPTION.matcher(part);
+            if (!m.matches()) {
+                return;
+            }
+            String option = m.group(1).replaceAll("\\s+", "").toUpperCase();
+            if (!DRIVER_OPTIONS.contains(option)) {
+                found.put(option, part);
+            }
+        }
+
+        synchronized (setOptions) {
+            for (Map.Entry<String,String> e : found.entrySet()) {
+                // Keep the order the options have been set in
+                setOptions.remove(e.getKey());
+                setOptions.put(e.getKey(), e.getValue());
+            }
+        }
     }
 
     /**
@@ -1827,11 +2410,26 @@ public class JtdsConnection implements java.sql.Connection {
     }
 
     /**
-     * Forces the closed status on the statement if an I/O error has occurred.
+     * Forces the closed status on the connection if an I/O error has occurred.
+     * <p>
+     * If <code>connectionRecovery</code> is enabled and the connection is in
+     * auto commit mode, i.e. there is no transaction that could get lost, the
+     * connection is only marked as broken and will be reopened on next use.
+     *
+     * @param failed the socket the I/O error occurred on
      */
-    void setClosed() {
-        if (!closed) {
-            closed = true;
+    void setClosed(SharedSocket failed) {
+        if (failed != socket) {
+            // A statement still using a socket replaced by a recovery
+            return;
+        }
+
+        if (!closed && !broken) {
+            if (connectionRecovery && autoCommit && !xaTransaction) {
+                broken = true;
+            } else {
+                closed = true;
+            }
 
             // Make sure we release the socket and all data buffered at the socket
             // level
@@ -1843,6 +2441,80 @@ public class JtdsConnection implements java.sql.Connection {
         }
     }
 
+    /**
+     * Reads part of a TEXT, NTEXT or IMAGE value by its text pointer, using
+     * <code>READTEXT</code>.
+     * <p/>
+     * Synchronized because it accesses the <code>baseTds</code>.
+     *
+     * @param column  the qualified column name, i.e. <code>table.column</code>
+     * @param textPtr the text pointer of the value
+     * @param offset  the offset to start reading at, in bytes for TEXT and
+     *                IMAGE or in characters for NTEXT values
+     * @param size    the amount of data to read, in the same unit
+     * @return the data as a <code>byte[]</code> or <code>BlobImpl</code> for
+     *         IMAGE, a <code>String</code> or <code>ClobImpl</code> for TEXT
+     *         and NTEXT values, or <code>null</code>
+     * @throws SQLException if an error condition occurs
+     */
+    synchronized Object readText(String column, byte[] textPtr, long offset,
+                                 int size)
+            throws SQLException {
+        checkOpen();
+
+        String sql = "READTEXT " + column + " 0x" + Support.toHex(textPtr)
+                + ' ' + offset + ' ' + size;
+        baseTds.executeSQL(sql, null, null, false, 0, -1, -1, true);
+
+        Object value = null;
+        while (!baseTds.isEndOfResponse()) {
+            if (baseTds.getMoreResults()) {
+                while (baseTds.getNextRow()) {
+                    value = baseTds.getRowData()[0];
+                }
+            }
+        }
+        messages.checkErrors();
+
+        return value;
+    }
+
+    /**
+     * Determines the length of a TEXT, NTEXT or IMAGE value by its text
+     * pointer, using <code>DATALENGTH</code>.
+     * <p/>
+     * Synchronized because it accesses the <code>baseTds</code>.
+     *
+     * @param table   the qualified table name
+     * @param column  the quoted column name
+     * @param textPtr the text pointer of the value
+     * @return the length in bytes or -1 if the value doesn't exist anymore
+     * @throws SQLException if an error condition occurs
+     */
+    synchronized long getTextLength(String table, String column, byte[] textPtr)
+            throws SQLException {
+        checkOpen();
+
+        String sql = "SELECT DATALENGTH(" + column + ") FROM " + table
+                + " WHERE TEXTPTR(" + column + ")=0x" + Support.toHex(textPtr);
+        baseTds.executeSQL(sql, null, null, false, 0, -1, -1, true);
+
+        long length = -1;
+        while (!baseTds.isEndOfResponse()) {
+            if (baseTds.getMoreResults()) {
+                while (baseTds.getNextRow()) {
+                    Object value = baseTds.getRowData()[0];
+                    if (value != null) {
+                        length = ((Number) value).longValue();
+                    }
+                }
+            }
+        }
+        messages.checkErrors();
+
+        return length;
+    }
+
     /**
      * Invokes the <code>xp_jtdsxa</code> extended stored procedure on the
      * server.
@@ -2155,7 +2827,7 @@ public class JtdsConnection implements java.sql.Connection {
                     "25000");
         }
 
-        baseTds.submitSQL("IF @@TRANCOUNT > 0 COMMIT TRAN");
+        baseTds.submitSQL("IF @@TRANCOUNT > 0 COMMIT TRAN" + takeUnprepareSQL());
         procInTran.clear();
         clearSavepoints();
     }
@@ -2170,10 +2842,10 @@ public class JtdsConnection implements java.sql.Connection {
                     "25000");
         }
 
-        baseTds.submitSQL("IF @@TRANCOUNT > 0 ROLLBACK TRAN");
+        baseTds.submitSQL("IF @@TRANCOUNT > 0 ROLLBACK TRAN" + takeUnprepareSQL());
 
         for (int i = 0; i < procInTran.size(); i++) {
-            String key = (String) procInTran.get(i);
+            StatementKey key = (StatementKey) procInTran.get(i);
             if (key != null) {
                 statementCache.remove(key);
             }
@@ -2183,6 +2855,74 @@ public class JtdsConnection implements java.sql.Connection {
         clearSavepoints();
     }
 
+    /**
+     * Requests the server to reset the session to the state right after the
+     * login. Used by connection pools when a connection is returned.
+     * <p>
+     * Usually no request is sent by this method; the reset connection status
+     * bit is set on the next request packet instead, so the server resets the
+     * session (rolls back open transactions, drops temporary tables and
+     * prepared statement handles, restores the database and
+     * <code>SET</code> options) before processing that request. The client
+     * side state of the connection is restored right away. If the
+     * transaction isolation level has been changed, which the server does not
+     * reset before SQL Server 2014, a request restoring it is sent at once.
+     * <p>
+     * The reset is only supported by SQL Server 2000 and later (TDS 8.0).
+     *
+     * @return <code>true</code> if the reset was scheduled, <code>false</code>
+     *         if the server doesn't support it or the connection is enlisted
+     *         in a distributed transaction
+     * @throws SQLException if the connection is closed or the isolation
+     *         level cannot be restored
+     */
+    synchronized public boolean resetConnection() throws SQLException {
+        checkOpen();
+
+        if (serverType != Driver.SQLSERVER || tdsVersion < Driver.TDS80
+                || xaTransaction) {
+            return false;
+        }
+
+        socket.setResetConnection();
+
+        StringBuilder sql = new StringBuilder();
+        if (transactionIsolation != java.sql.Connection.TRANSACTION_READ_COMMITTED) {
+            // sp_reset_connection keeps the isolation level before SQL Server
+            // 2014, so restore it explicitly
+            sql.append("SET TRANSACTION ISOLATION LEVEL READ COMMITTED\r\n");
+        }
+        if (lobLocators) {
+            // Reset like all other SET options
+            sql.append(NO_BROWSETABLE_SQL);
+        }
+        if (sql.length() > 0) {
+            // The request carries the reset
+            baseTds.submitSQL(sql.toString());
+        }
+
+        // The login defaults of an ODBC client
+        autoCommit = true;
+        transactionIsolation = java.sql.Connection.TRANSACTION_READ_COMMITTED;
+        rowCount = 0;
+        textSize = 0;
+        readOnly = false;
+        currentDatabase = loginDatabase;
+
+        // Temporary procedures and statement handles are gone with the session
+        statementCache = new ProcedureCache(maxStatements);
+        unprepareSql.setLength(0);
+        unprepareCount = 0;
+        procInTran.clear();
+        clearSavepoints();
+        clearWarnings();
+        synchronized (setOptions) {
+            setOptions.clear();
+        }
+
+        return true;
+    }
+
    public boolean getAutoCommit()
       throws SQLException
    {
@@ -2312,6 +3052,7 @@ public class JtdsConnection implements java.sql.Connection {
             }
         }
 
+        sql.append(takeUnprepareSQL());
         baseTds.submitSQL(sql.toString());
         this.autoCommit = autoCommit;
     }
@@ -2697,7 +3438,7 @@ public class JtdsConnection implements java.sql.Connection {
              }
 
              for (Iterator iterator = keys.iterator(); iterator.hasNext();) {
-                 String key = (String) iterator.next();
+                 StatementKey key = (StatementKey) iterator.next();
 
                  removeCachedProcedure(key);
              }
@@ -2757,7 +3498,7 @@ public class JtdsConnection implements java.sql.Connection {
       *
       * @param key The signature of the procedure to cache.
       */
-     synchronized void addCachedProcedure(String key) {
+     synchronized void addCachedProcedure(StatementKey key) {
          if (savepoints == null || savepoints.size() == 0) {
              return;
          }
@@ -2851,8 +3592,42 @@ public class JtdsConnection implements java.sql.Connection {
      * @see java.sql.Connection#isValid(int)
      */
     public boolean isValid(int timeout) throws SQLException {
-	    // TODO Auto-generated method stub
-        throw new AbstractMethodError();
+        if (timeout < 0) {
+            throw new SQLException(
+                    Messages.get("error.generic.badparam",
+                            Integer.toString(timeout), "timeout"), "HY092");
+        }
+
+        try {
+            // Recovers a broken connection, if enabled
+            checkOpen();
+        } catch (SQLException e) {
+            return false;
+        }
+
+        SharedSocket sock = socket;
+
+        // A response received just now proves that the connection works
+        if (System.currentTimeMillis() - sock.getLastActivity() < VALIDATION_IDLE_TIME) {
+            return true;
+        }
+
+        // Detects connections closed or reset by the server or the network
+        // without sending anything
+        if (!sock.isAlive()) {
+            setClosed(sock);
+            return isValid(timeout);
+        }
+
+        // Half open connections only show when sending a request
+        try {
+            synchronized (this) {
+                baseTds.ping(timeout);
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
     }
 
     /* (non-Javadoc)
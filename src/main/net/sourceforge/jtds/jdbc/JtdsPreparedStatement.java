@@ -17,10 +17,13 @@
 //
 package net.sourceforge.jtds.jdbc;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.reflect.Constructor;
 import java.math.BigDecimal;
 import java.net.URL;
@@ -41,6 +44,7 @@ import java.sql.Time;
 import java.sql.Timestamp;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 
@@ -444,11 +448,12 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
 
         // Prepare any statements before executing the batch
         if (connection.getPrepareSql() == TdsCore.TEMPORARY_STORED_PROCEDURES ||
-                connection.getPrepareSql() == TdsCore.PREPARE) {
+                connection.getPrepareSql() == TdsCore.PREPARE ||
+                connection.getPrepareSql() == TdsCore.PREPEXEC) {
             procHandle = new String[size];
             for (int i = 0; i < size; i++) {
                 // Prepare the statement
-                procHandle[i] = connection.prepareSQL(this, sql, (ParamInfo[]) batchValues.get(i), false, false);
+                procHandle[i] = connection.prepareSQL(this, sql, (ParamInfo[]) batchValues.get(i), false, false, true);
             }
         }
 
@@ -1200,8 +1205,15 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
     @Override
     public void setAsciiStream(int parameterIndex, InputStream x)
             throws SQLException {
-        // TODO Auto-generated method stub
-        throw new AbstractMethodError();
+        if (x == null) {
+            setParameter(parameterIndex, null, java.sql.Types.LONGVARCHAR, 0, 0);
+        } else {
+            try {
+                setCharacterStream(parameterIndex, new InputStreamReader(x, "US-ASCII"));
+            } catch (UnsupportedEncodingException e) {
+                // Should never happen!
+            }
+        }
     }
 
     /* (non-Javadoc)
@@ -1220,8 +1232,20 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
     @Override
     public void setBinaryStream(int parameterIndex, InputStream x)
             throws SQLException {
-        // TODO Auto-generated method stub
-        throw new AbstractMethodError();
+        checkOpen();
+
+        if (x == null) {
+            setBytes(parameterIndex, null);
+            return;
+        }
+
+        Object value = loadStream(x);
+
+        if (value instanceof byte[]) {
+            setParameter(parameterIndex, value, java.sql.Types.LONGVARBINARY, 0, 0);
+        } else {
+            setBlob(parameterIndex, (Blob) value);
+        }
     }
 
     /* (non-Javadoc)
@@ -1243,8 +1267,7 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
     @Override
     public void setBlob(int parameterIndex, InputStream inputStream)
             throws SQLException {
-        // TODO Auto-generated method stub
-        throw new AbstractMethodError();
+        setBinaryStream(parameterIndex, inputStream);
     }
 
     /* (non-Javadoc)
@@ -1266,8 +1289,20 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
     @Override
     public void setCharacterStream(int parameterIndex, Reader reader)
             throws SQLException {
-        // TODO Auto-generated method stub
-        throw new AbstractMethodError();
+        checkOpen();
+
+        if (reader == null) {
+            setParameter(parameterIndex, null, java.sql.Types.LONGVARCHAR, 0, 0);
+            return;
+        }
+
+        Object value = loadReader(reader);
+
+        if (value instanceof String) {
+            setParameter(parameterIndex, value, java.sql.Types.LONGVARCHAR, 0, 0);
+        } else {
+            setClob(parameterIndex, (Clob) value);
+        }
     }
 
     /* (non-Javadoc)
@@ -1288,8 +1323,7 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
      */
     @Override
     public void setClob(int parameterIndex, Reader reader) throws SQLException {
-        // TODO Auto-generated method stub
-        throw new AbstractMethodError();
+        setCharacterStream(parameterIndex, reader);
     }
 
     /* (non-Javadoc)
@@ -1382,4 +1416,92 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
         throw new AbstractMethodError();
     }
 
+    /**
+     * Reads an <code>InputStream</code> of unknown length for use as a
+     * parameter value.
+     * <p>
+     * TEXT and IMAGE parameters are sent with their length up front, so the
+     * data has to be read before the request can be sent. Up to
+     * <code>lobBuffer</code> bytes are read into memory, longer streams are
+     * copied into a <code>BlobImpl</code>, which spills to disk.
+     *
+     * @param in the stream to read
+     * @return the data as a <code>byte[]</code> or <code>Blob</code>
+     * @throws SQLException if an I/O error occurs
+     */
+    private Object loadStream(InputStream in) throws SQLException {
+        try {
+            long lobBuffer = Math.min(connection.getLobBuffer(), Integer.MAX_VALUE - 8);
+            byte[] buf = new byte[connection.getNetPacketSize()];
+            int pos = 0, res;
+
+            while ((res = in.read(buf, pos, buf.length - pos)) >= 0) {
+                pos += res;
+
+                if (pos == buf.length) {
+                    if (pos >= lobBuffer) {
+                        // Too big to keep in memory
+                        BlobImpl blob = new BlobImpl(connection);
+                        OutputStream out = blob.setBinaryStream(1);
+                        out.write(buf, 0, pos);
+                        while ((res = in.read(buf)) >= 0) {
+                            out.write(buf, 0, res);
+                        }
+                        out.close();
+                        return blob;
+                    }
+
+                    buf = Arrays.copyOf(buf, (int) Math.min(pos * 2L, Math.max(lobBuffer, pos + 1)));
+                }
+            }
+
+            return Arrays.copyOf(buf, pos);
+        } catch (IOException e) {
+            throw new SQLException(Messages.get("error.generic.ioerror",
+                                                e.getMessage()), "HY000");
+        }
+    }
+
+    /**
+     * Reads a <code>Reader</code> of unknown length for use as a parameter
+     * value, see {@link #loadStream(InputStream)}.
+     *
+     * @param in the reader to read
+     * @return the data as a <code>String</code> or <code>Clob</code>
+     * @throws SQLException if an I/O error occurs
+     */
+    private Object loadReader(Reader in) throws SQLException {
+        try {
+            // lobBuffer is in bytes, CLOBs are buffered as UTF-16
+            long lobBuffer = Math.min(connection.getLobBuffer() / 2, Integer.MAX_VALUE - 8);
+            char[] buf = new char[connection.getNetPacketSize() / 2];
+            int pos = 0, res;
+
+            while ((res = in.read(buf, pos, buf.length - pos)) >= 0) {
+                pos += res;
+
+                if (pos == buf.length) {
+                    if (pos >= lobBuffer) {
+                        // Too big to keep in memory
+                        ClobImpl clob = new ClobImpl(connection);
+                        Writer out = clob.setCharacterStream(1);
+                        out.write(buf, 0, pos);
+                        while ((res = in.read(buf)) >= 0) {
+                            out.write(buf, 0, res);
+                        }
+                        out.close();
+                        return clob;
+                    }
+
+                    buf = Arrays.copyOf(buf, (int) Math.min(pos * 2L, Math.max(lobBuffer, pos + 1)));
+                }
+            }
+
+            return new String(buf, 0, pos);
+        } catch (IOException e) {
+            throw new SQLException(Messages.get("error.generic.ioerror",
+                                                e.getMessage()), "HY000");
+        }
+    }
+
 }
\ No newline at end of file
@@ -285,13 +285,62 @@ public class JtdsResultSet implements ResultSet {
             throw new SQLException(Messages.get("error.resultset.norow"), "24000");
         }
 
+        if (rowData == null) {
+            TdsCore tds = statement.getTds();
+
+            if (tds.isRowPending()) {
+                // Read up to the column, buffering streamed LOB values
+                tds.readRowData(index, true);
+            }
+        }
+
         Object data = currentRow[index - 1];
 
+        if (data instanceof StreamedLob) {
+            throw new SQLException(Messages.get("error.resultset.streamed",
+                                                      Integer.toString(index)),
+                                                       "HY010");
+        }
+
         wasNull = data == null;
 
         return data;
     }
 
+    /**
+     * Get a LOB column value of the current row that can still be read
+     * directly from the server response.
+     *
+     * @param index the column index
+     * @return the <code>StreamedLob</code> or <code>null</code> if the value
+     *         is not streamed
+     * @throws SQLException if an error occurs
+     */
+    private StreamedLob getStreamedLob(int index) throws SQLException {
+        checkOpen();
+
+        if (rowData != null || currentRow == null
+                || index < 1 || index > columnCount) {
+            return null;
+        }
+
+        TdsCore tds = statement.getTds();
+
+        if (!tds.isRowPending()) {
+            return null;
+        }
+
+        tds.readRowData(index, false);
+        Object data = currentRow[index - 1];
+
+        if (data instanceof StreamedLob && ((StreamedLob) data).isAvailable()) {
+            wasNull = false;
+            return (StreamedLob) data;
+        }
+
+        return null;
+    }
+
     /**
      * Check that this connection is still open.
      *
@@ -394,6 +443,10 @@ public class JtdsResultSet implements ResultSet {
      * @throws SQLException
      */
     protected void cacheResultSetRows() throws SQLException {
+        if (rowData == null && currentRow != null) {
+            // Read the rest of the current row, it may be partially read
+            statement.getTds().getRowData();
+        }
         if (rowData == null) {
             rowData = new ArrayList(INITIAL_ROW_COUNT);
         }
@@ -613,7 +666,7 @@ public class JtdsResultSet implements ResultSet {
                     pos = POS_AFTER_LAST;
                     currentRow = null;
                 } else {
-                    currentRow = statement.getTds().getRowData();
+                    currentRow = statement.getTds().getStreamingRowData();
                     pos++;
                     rowsInResult = pos;
                 }
@@ -794,6 +847,12 @@ public class JtdsResultSet implements ResultSet {
     }
 
     public InputStream getBinaryStream(int columnIndex) throws SQLException {
+        StreamedLob lob = getStreamedLob(columnIndex);
+
+        if (lob != null && lob.isBinary()) {
+            return lob.getBinaryStream();
+        }
+
         Blob blob = getBlob(columnIndex);
 
         if (blob == null) {
@@ -810,7 +869,7 @@ public class JtdsResultSet implements ResultSet {
             return null;
         }
 
-        return clob.getBlobBuffer().getUnicodeStream();
+        return clob.loadBlobBuffer().getUnicodeStream();
     }
 
     public void updateAsciiStream(int columnIndex, InputStream inputStream, int length)
@@ -838,6 +897,18 @@ public class JtdsResultSet implements ResultSet {
     }
 
     public Reader getCharacterStream(int columnIndex) throws SQLException {
+        StreamedLob lob = getStreamedLob(columnIndex);
+
+        if (lob != null && !lob.isBinary()) {
+            try {
+                return lob.getCharacterStream();
+            } catch (UnsupportedEncodingException e) {
+                throw new SQLException(Messages.get("error.generic.encoding",
+                                                          e.getMessage()),
+                                                           "HY000");
+            }
+        }
+
         Clob clob = getClob(columnIndex);
 
         if (clob == null) {
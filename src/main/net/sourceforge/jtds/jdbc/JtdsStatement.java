@@ -481,7 +481,8 @@ public class JtdsStatement implements java.sql.Statement
         //
         if (spName != null
                 && connection.getUseMetadataCache()
-                && connection.getPrepareSql() == TdsCore.PREPARE
+                && (connection.getPrepareSql() == TdsCore.PREPARE
+                    || connection.getPrepareSql() == TdsCore.PREPEXEC)
                 && colMetaData != null
                 && connection.getServerType() == Driver.SQLSERVER) {
             // There is cached meta data available for this
@@ -490,6 +491,9 @@ public class JtdsStatement implements java.sql.Statement
             tds.executeSQL(sql, spName, params, true, queryTimeout, maxRows,
                     maxFieldSize, true);
         } else {
+            if (spName == null && params == null) {
+                connection.trackSetOptions(sql);
+            }
             tds.executeSQL(sql, spName, params, false, queryTimeout, maxRows,
                     maxFieldSize, true);
         }
@@ -560,6 +564,9 @@ public class JtdsStatement implements java.sql.Statement
         // We are talking to a Sybase server or we could not open a cursor
         // or we did not have a SELECT so just execute the SQL normally.
         //
+        if (spName == null && params == null) {
+            connection.trackSetOptions(sql);
+        }
         tds.executeSQL(sql, spName, params, false, queryTimeout, maxRows,
                 maxFieldSize, true);
 
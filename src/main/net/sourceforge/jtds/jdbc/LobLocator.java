@@ -0,0 +1,331 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import net.sourceforge.jtds.util.BlobBuffer;
+
+/**
+ * A TEXT, NTEXT or IMAGE column value of which only the start has been
+ * kept, read on demand by its text pointer.
+ * <p>
+ * Used when <code>lobLocators</code> is enabled: instead of copying a value
+ * larger than <code>lobBuffer</code> into a <code>BlobBuffer</code> when the
+ * row is read, only its first <code>lobBuffer</code> bytes are kept together
+ * with the text pointer. Ranges within that prefix are served from memory,
+ * ranges beyond it are fetched with <code>READTEXT</code>. Operations that
+ * need the whole value load it into the <code>BlobImpl</code>'s or
+ * <code>ClobImpl</code>'s buffer, after which the locator is dropped.
+ * <p>
+ * <code>READTEXT</code> needs the base table and column of the value, which
+ * SQL Server only describes for every <code>SELECT</code> with
+ * <code>SET NO_BROWSETABLE ON</code>; the connection sets it when locators
+ * are enabled. Values of expressions and MAX columns, which have no usable
+ * text pointer, and of TEXT columns in multi byte character sets are always
+ * read in full.
+ * <p>
+ * Once all LOB columns returned by a SQL statement have been found to be
+ * readable this way, the statement is executed with a <code>TEXTSIZE</code>
+ * of <code>lobBuffer</code>, so that the server only sends the prefix. The
+ * length of a value cut off by the server is unknown until requested, it is
+ * then determined with <code>DATALENGTH</code>.
+ * <p>
+ * Positions and lengths are in bytes for IMAGE values and in characters for
+ * TEXT and NTEXT values, as for <code>READTEXT</code>.
+ *
+ * @see TdsData#readData(JtdsConnection, ResponseStream, ColInfo, boolean, boolean, int)
+ */
+final class LobLocator {
+
+    /** No non-null value of the column has been read yet. */
+    static final int UNKNOWN = 0;
+    /** The values of the column can be read by their text pointer. */
+    static final int LOCATABLE = 1;
+    /** The values of the column can't be read by their text pointer. */
+    static final int NOT_LOCATABLE = 2;
+    /**
+     * The values of the column can't be read by their text pointer and one
+     * has been cut off by the <code>TEXTSIZE</code> of the statement.
+     */
+    static final int TRUNCATED = 3;
+
+    /** The amount of data fetched by one READTEXT when loading a value. */
+    private static final int FETCH_SIZE = 1024 * 1024;
+
+    /** The connection the value is read through. */
+    private final JtdsConnection connection;
+    /** The qualified table name. */
+    private final String table;
+    /** The quoted column name. */
+    private final String column;
+    /** The text pointer of the value. */
+    private final byte[] textPtr;
+    /** The charset of a TEXT or NTEXT value, <code>null</code> for IMAGE. */
+    private final String charset;
+    /** The first bytes of the value, in the server's encoding. */
+    private final byte[] prefix;
+    /** The number of bytes per character of {@link #prefix}. */
+    private final int charSize;
+    /** The length of the value in bytes or characters, -1 if unknown. */
+    private long length;
+
+    /**
+     * Creates a locator for a value.
+     *
+     * @param connection the current connection
+     * @param ci         the column descriptor
+     * @param textPtr    the text pointer of the value
+     * @param charset    the charset of a TEXT or NTEXT value,
+     *                   <code>null</code> for IMAGE
+     * @param prefix     the first bytes of the value
+     * @param length     the length of the value in bytes or characters, -1
+     *                   if the server only sent the prefix
+     */
+    LobLocator(JtdsConnection connection, ColInfo ci, byte[] textPtr,
+               String charset, byte[] prefix, long length) {
+        this.connection = connection;
+        this.table = getTableName(connection, ci);
+        this.column = quote(connection, ci.realName);
+        this.textPtr = textPtr;
+        this.charset = charset;
+        this.prefix = prefix;
+        this.charSize = "UTF-16LE".equals(charset) ? 2 : 1;
+        this.length = length;
+    }
+
+    /**
+     * Checks whether the values of a column can be read by text pointer,
+     * i.e. whether the base table and column are known.
+     *
+     * @param ci the column descriptor
+     * @return <code>true</code> if the column is a column of a base table
+     */
+    static boolean isBaseColumn(ColInfo ci) {
+        return ci.isBaseColumn
+                && ci.tableName != null && ci.tableName.length() > 0
+                && ci.realName != null && ci.realName.length() > 0;
+    }
+
+    /**
+     * Builds the qualified name of the base table of a column.
+     */
+    private static String getTableName(JtdsConnection connection, ColInfo ci) {
+        StringBuilder buf = new StringBuilder();
+        if (ci.catalog != null && ci.catalog.length() > 0) {
+            buf.append(quote(connection, ci.catalog)).append('.');
+            if (ci.schema == null || ci.schema.length() == 0) {
+                buf.append('.');
+            }
+        }
+        if (ci.schema != null && ci.schema.length() > 0) {
+            buf.append(quote(connection, ci.schema)).append('.');
+        }
+        buf.append(quote(connection, ci.tableName));
+        return buf.toString();
+    }
+
+    /**
+     * Quotes a name for SQL Server, unless already quoted.
+     */
+    private static String quote(JtdsConnection connection, String name) {
+        if (connection.getServerType() == Driver.SYBASE || name.startsWith("[")) {
+            return name;
+        }
+        return '[' + name.replace("]", "]]") + ']';
+    }
+
+    /**
+     * Checks whether a text pointer can be used to read a value. Values of
+     * <code>varchar(max)</code>, <code>nvarchar(max)</code> and
+     * <code>varbinary(max)</code> columns, which SQL Server sends as TEXT,
+     * NTEXT or IMAGE over TDS 8.0 and below, carry a dummy pointer of 16
+     * identical bytes (<code>0x64</code>) that <code>READTEXT</code> rejects.
+     *
+     * @param textPtr the text pointer of the value
+     * @return <code>true</code> if the value is a genuine TEXT, NTEXT or
+     *         IMAGE value
+     */
+    static boolean isValidTextPtr(byte[] textPtr) {
+        if (textPtr.length != 16) {
+            return false;
+        }
+        for (int i = 1; i < textPtr.length; i++) {
+            if (textPtr[i] != textPtr[0]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Retrieves the length of the value, querying it if the server only
+     * sent the prefix.
+     *
+     * @return the length in bytes or characters
+     * @throws SQLException if the length cannot be determined
+     */
+    long length() throws SQLException {
+        if (length < 0) {
+            long bytes = connection.getTextLength(table, column, textPtr);
+            if (bytes < 0) {
+                throw new SQLException(Messages.get("error.loblocator.notfound",
+                        table + '.' + column), "HY000");
+            }
+            length = bytes / charSize;
+        }
+        return length;
+    }
+
+    /**
+     * Retrieves part of an IMAGE value.
+     *
+     * @param pos the position of the first byte (from 1)
+     * @param len the number of bytes
+     * @return the bytes, fewer if the value ends before
+     * @throws SQLException if the range is invalid or cannot be read
+     */
+    byte[] getBytes(long pos, int len) throws SQLException {
+        long offset = checkRange(pos, len);
+        if (offset + len <= prefix.length) {
+            return Arrays.copyOfRange(prefix, (int) offset, (int) offset + len);
+        }
+        len = (int) Math.min(len, length() - offset);
+
+        byte[] bytes = new byte[len];
+        int done = 0;
+        while (done < len) {
+            // READTEXT may return less if limited by the TEXTSIZE
+            Object value = connection.readText(table + '.' + column, textPtr,
+                    offset + done, len - done);
+            byte[] part;
+            if (value instanceof BlobImpl) {
+                BlobImpl blob = (BlobImpl) value;
+                part = blob.getBytes(1, (int) blob.length());
+            } else {
+                part = (value == null) ? new byte[0] : (byte[]) value;
+            }
+            if (part.length == 0) {
+                return Arrays.copyOf(bytes, done);
+            }
+            System.arraycopy(part, 0, bytes, done, part.length);
+            done += part.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Retrieves part of a TEXT or NTEXT value.
+     *
+     * @param pos the position of the first character (from 1)
+     * @param len the number of characters
+     * @return the characters, fewer if the value ends before
+     * @throws SQLException if the range is invalid or cannot be read
+     */
+    String getSubString(long pos, int len) throws SQLException {
+        long offset = checkRange(pos, len);
+        if ((offset + len) * charSize <= prefix.length) {
+            try {
+                return new String(prefix, (int) offset * charSize,
+                        len * charSize, charset);
+            } catch (UnsupportedEncodingException e) {
+                throw new SQLException(Messages.get("error.charset.nomapping",
+                        charset), "2C000");
+            }
+        }
+        len = (int) Math.min(len, length() - offset);
+
+        StringBuilder chars = new StringBuilder(len);
+        while (chars.length() < len) {
+            // READTEXT may return less if limited by the TEXTSIZE
+            Object value = connection.readText(table + '.' + column, textPtr,
+                    offset + chars.length(), len - chars.length());
+            String part;
+            if (value instanceof ClobImpl) {
+                ClobImpl clob = (ClobImpl) value;
+                part = clob.getSubString(1, (int) clob.length());
+            } else {
+                part = (value == null) ? "" : (String) value;
+            }
+            if (part.length() == 0) {
+                break;
+            }
+            chars.append(part);
+        }
+        return chars.toString();
+    }
+
+    /**
+     * Loads the whole value into a buffer, as binary data for IMAGE and as
+     * UTF-16LE for TEXT and NTEXT values.
+     *
+     * @param buffer the empty buffer of the <code>BlobImpl</code> or
+     *               <code>ClobImpl</code>
+     * @throws SQLException if the value cannot be read
+     */
+    void load(BlobBuffer buffer) throws SQLException {
+        try {
+            long length = length();
+            OutputStream out = buffer.setBinaryStream(1, false);
+            long loaded = Math.min(prefix.length / charSize, length);
+            if (charset == null) {
+                out.write(prefix, 0, (int) loaded);
+            } else {
+                out.write(new String(prefix, 0, (int) loaded * charSize,
+                        charset).getBytes("UTF-16LE"));
+            }
+
+            while (loaded < length) {
+                int size = (int) Math.min(FETCH_SIZE, length - loaded);
+                if (charset == null) {
+                    out.write(getBytes(loaded + 1, size));
+                } else {
+                    out.write(getSubString(loaded + 1, size).getBytes("UTF-16LE"));
+                }
+                loaded += size;
+            }
+            out.close();
+        } catch (IOException e) {
+            throw new SQLException(Messages.get("error.generic.ioerror",
+                    e.getMessage()), "HY000");
+        }
+    }
+
+    /**
+     * Checks the arguments of a range request. The length of the value is
+     * only determined if the range doesn't lie within the prefix.
+     *
+     * @return the offset of the range (from 0)
+     */
+    private long checkRange(long pos, int len) throws SQLException {
+        if (pos < 1) {
+            throw new SQLException(Messages.get("error.blobclob.badpos"), "HY090");
+        }
+        if (len < 0) {
+            throw new SQLException(Messages.get("error.blobclob.badlen"), "HY090");
+        }
+        if ((pos - 1 + len) * charSize > prefix.length && pos - 1 > length()) {
+            throw new SQLException(Messages.get("error.blobclob.badposlen"), "HY090");
+        }
+        return pos - 1;
+    }
+}
@@ -468,7 +468,7 @@ public class MSCursorResultSet extends JtdsResultSet {
         // Setup statement handle param
         //
         ParamInfo pStmtHand = null;
-        if (prepareSql == TdsCore.PREPARE) {
+        if (prepareSql == TdsCore.PREPARE || prepareSql == TdsCore.PREPEXEC) {
             pStmtHand = new ParamInfo(Types.INTEGER, prepStmtHandle, ParamInfo.OUTPUT);
         }
         //
@@ -492,7 +492,8 @@ public class MSCursorResultSet extends JtdsResultSet {
         //
         // OK now open the Cursor
         //
-        if (prepareSql == TdsCore.PREPARE && prepStmtHandle != null) {
+        if ((prepareSql == TdsCore.PREPARE || prepareSql == TdsCore.PREPEXEC)
+                && prepStmtHandle != null) {
             // Use sp_cursorexecute approach
             procName = "sp_cursorexecute";
             if (parameters == null) {
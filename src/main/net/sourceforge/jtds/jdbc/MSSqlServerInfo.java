@@ -20,6 +20,9 @@ package net.sourceforge.jtds.jdbc;
 import java.io.InterruptedIOException;
 import java.sql.SQLException;
 import java.net.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.sourceforge.jtds.util.Logger;
 
@@ -46,43 +49,121 @@ import net.sourceforge.jtds.util.Logger;
  * < 000000d0 45 59 5c 70 69 70 65 5c 4d 53 53 51 4c 24 44 4f # EY\pipe\MSSQL$DO
  * < 000000e0 47 5c 73 71 6c 5c 71 75 65 72 79 3b 3b          # G\sql\query;;
  * </pre>
+ * <p>
+ * Instances obtained through {@link #lookup(String)} are cached JVM-wide for
+ * {@link #CACHE_TTL} milliseconds, so that opening a connection to a named
+ * instance doesn't need a round trip to the SQL Browser service each time.
+ * Cached information older than {@link #CACHE_REFRESH} milliseconds is
+ * refreshed in the background while the cached ports are still used.
  *
  * @author Matt Brinkley
  * @version $Id: MSSqlServerInfo.java,v 1.8.2.1 2009-07-30 10:50:05 ickzon Exp $
  */
 public class MSSqlServerInfo {
-    private final int numRetries = 3;
-    private final int timeout = 2000;
-    private String[] serverInfoStrings;
+    private static final int numRetries = 3;
+    private static final int timeout = 2000;
+    /** The SQL Browser service port. */
+    private static final int BROWSER_PORT = 1434;
+    /** Maximum size of a UDP datagram, the largest possible response. */
+    private static final int MAX_RESPONSE = 65535;
+
+    /** Time in milliseconds for which the server information is cached. */
+    static final long CACHE_TTL = 5 * 60 * 1000;
+    /** Age in milliseconds after which cached information is refreshed. */
+    static final long CACHE_REFRESH = 60 * 1000;
+
+    /** Cached server information, keyed by lower case host name. */
+    private static final ConcurrentMap<String,CacheEntry> cache =
+            new ConcurrentHashMap<String,CacheEntry>();
+
+    private final String[] serverInfoStrings;
 
     public MSSqlServerInfo(String host) throws SQLException {
+        serverInfoStrings = query(host);
+    }
+
+    private MSSqlServerInfo(String[] serverInfoStrings) {
+        this.serverInfoStrings = serverInfoStrings;
+    }
+
+    /**
+     * Retrieves the instance information of a server, from the cache if
+     * possible.
+     *
+     * @param host the server host name
+     * @return the server information
+     * @throws SQLException if the SQL Browser service can't be reached
+     */
+    static MSSqlServerInfo lookup(final String host) throws SQLException {
+        final String key = host.toLowerCase();
+        final CacheEntry entry = cache.get(key);
+        final long age = entry == null
+                ? Long.MAX_VALUE : System.currentTimeMillis() - entry.time;
+
+        if (age > CACHE_TTL) {
+            String[] info = query(host);
+            cache.put(key, new CacheEntry(info));
+            return new MSSqlServerInfo(info);
+        }
+
+        if (age > CACHE_REFRESH && entry.refreshing.compareAndSet(false, true)) {
+            Thread refresh = new Thread("jTDS instance lookup") {
+                public void run() {
+                    try {
+                        cache.replace(key, entry, new CacheEntry(query(host)));
+                    } catch (SQLException e) {
+                        // Keep the cached information until it expires
+                        entry.refreshing.set(false);
+                    }
+                }
+            };
+            refresh.setDaemon(true);
+            refresh.start();
+        }
+
+        return new MSSqlServerInfo(entry.info);
+    }
+
+    /**
+     * Removes the cached information for a server, e.g. because connecting
+     * to the cached port failed.
+     *
+     * @param host the server host name
+     */
+    static void invalidate(String host) {
+        cache.remove(host.toLowerCase());
+    }
+
+    /**
+     * Queries the SQL Browser service of a server. If the host name resolves
+     * to several addresses (e.g. a cluster or availability group listener),
+     * all of them are probed in parallel and the first response is used.
+     *
+     * @param host the server host name
+     * @return the information strings of all instances
+     * @throws SQLException if no response was received
+     */
+    private static String[] query(String host) throws SQLException {
         DatagramSocket socket = null;
         try {
-            InetAddress addr = InetAddress.getByName(host);
+            InetAddress[] addrs = InetAddress.getAllByName(host);
             socket = new DatagramSocket();
             byte[] msg = new byte[] {0x02};
-            DatagramPacket requestp = new DatagramPacket(msg, msg.length, addr, 1434);
+            byte[] buf = new byte[MAX_RESPONSE];
 
             socket.setSoTimeout(timeout);
 
             for (int i = 0; i < numRetries; i++) {
                 try {
-                    DatagramPacket responsep;
-                    byte[] buf = new byte[0]; // init with an array of length 0, will be expanded with every iteration
-                    int length;
-
-                    do {
-                        buf = new byte[buf.length + 4096];
-                        responsep = new DatagramPacket(buf, buf.length);
-                        socket.send(requestp);
-                        socket.receive(responsep);
-                        length = responsep.getLength();
-                    } while(length==buf.length); // retry until the whole server response can be buffered
-
-                    String infoString = extractString(buf, length);
-                    serverInfoStrings = split(infoString, ';');
-
-                    return;
+                    for (int j = 0; j < addrs.length; j++) {
+                        socket.send(new DatagramPacket(msg, msg.length, addrs[j], BROWSER_PORT));
+                    }
+
+                    DatagramPacket responsep = new DatagramPacket(buf, buf.length);
+                    socket.receive(responsep);
+
+                    String infoString = extractString(buf, responsep.getLength());
+                    return split(infoString, ';');
                 } catch (InterruptedIOException toEx) {
                     if (Logger.isActive()) {
                         Logger.logException(toEx);
@@ -167,6 +248,19 @@ public class MSSqlServerInfo {
         return -1;
     }
 
+    /**
+     * Cached server information.
+     */
+    private static final class CacheEntry {
+        final String[] info;
+        final long time = System.currentTimeMillis();
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        CacheEntry(String[] info) {
+            this.info = info;
+        }
+    }
+
     private static final String extractString(byte[] buf, int len) {
         // the first three bytes are unknown; after that, it should be a narrow string...
         final int headerLength = 3;
@@ -17,25 +17,63 @@
 //
 package net.sourceforge.jtds.jdbc;
 
+import net.sourceforge.jtds.jdbc.cache.ConcurrentLRUCache;
 import net.sourceforge.jtds.util.MD4Digest;
 import net.sourceforge.jtds.util.DESEngine;
 import net.sourceforge.jtds.util.MD5Digest;
 
 import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.Arrays;
 
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
 /**
  * This class calculates the two "responses" to the nonce supplied by the server
  * as a part of NTLM authentication.
  *
  * Much gratitude to the authors of this page, esp. for NTLMv2 info:
  *     http://davenport.sourceforge.net/ntlm.html
+ * <p>
+ * The digest and cipher implementations of the JCA are used if available,
+ * otherwise the bundled pure Java implementations. The NT password hash is
+ * cached for the password <code>String</code> instance it was computed from,
+ * so that connections opened with the same configured password (e.g. by a
+ * <code>DataSource</code>) don't have to compute it again.
  *
  * @author Matt Brinkley
  * @version $Id: NtlmAuth.java,v 1.7 2006-06-23 18:00:56 matt_brinkley Exp $
  */
 public class NtlmAuth {
 
+    /** Maximum number of cached NT password hashes. */
+    private static final int HASH_CACHE_SIZE = 64;
+
+    /**
+     * Cached NT password hashes, keyed by the identity hash code of the
+     * password <code>String</code>.
+     */
+    private static final ConcurrentLRUCache<Integer,CachedHash> hashCache =
+            new ConcurrentLRUCache<Integer,CachedHash>(HASH_CACHE_SIZE);
+
+    /** Random mask the cached hashes are XORed with. */
+    private static final byte[] hashMask = new byte[21];
+
+    static {
+        new SecureRandom().nextBytes(hashMask);
+    }
+
+    /** JCA algorithms found to be available. */
+    private static final boolean jcaMd4  = isAvailable("MD4");
+    private static final boolean jcaMd5  = isAvailable("MD5");
+    private static final boolean jcaHmac = isAvailable("HmacMD5");
+    private static final boolean jcaDes  = isAvailable("DES/ECB/NoPadding");
+
     //-------------------------------------------------------------------------
     // LM/NTLM - public interface
     //-------------------------------------------------------------------------
@@ -49,13 +87,12 @@ public class NtlmAuth {
         throws UnsupportedEncodingException {
         byte[] password = convertPassword(pwd);
 
-        DESEngine d1 = new DESEngine(true, makeDESkey(password,  0));
-        DESEngine d2 = new DESEngine(true, makeDESkey(password,  7));
         byte[] encrypted = new byte[21];
         Arrays.fill(encrypted, (byte)0);
 
-        d1.processBlock(nonce, 0, encrypted, 0);
-        d2.processBlock(nonce, 0, encrypted, 8);
+        Cipher cipher = desCipher();
+        des(cipher, makeDESkey(password,  0), nonce, encrypted, 0);
+        des(cipher, makeDESkey(password,  7), nonce, encrypted, 8);
 
         return encryptNonce(encrypted, nonce);
     }
@@ -156,6 +193,16 @@ public class NtlmAuth {
      */
     private static byte[] hmacMD5(byte[] data, byte[] key)
     {
+        if (jcaHmac) {
+            try {
+                Mac mac = Mac.getInstance("HmacMD5");
+                mac.init(new SecretKeySpec(key, "HmacMD5"));
+                return mac.doFinal(data);
+            } catch (GeneralSecurityException e) {
+                // Fall back to the bundled implementation
+            }
+        }
+
         byte[] ipad = new byte[64];
         byte[] opad = new byte[64];
         for (int i = 0; i < 64; i++) {
@@ -178,6 +225,14 @@ public class NtlmAuth {
 
     private static byte[] md5(byte[] data)
     {
+        if (jcaMd5) {
+            try {
+                return MessageDigest.getInstance("MD5").digest(data);
+            } catch (GeneralSecurityException e) {
+                // Fall back to the bundled implementation
+            }
+        }
+
         MD5Digest md5 = new MD5Digest();
         md5.update(data, 0, data.length);
         byte[] hash = new byte[16];
@@ -186,21 +241,6 @@ public class NtlmAuth {
     }
 
 
-    /**
-     * Implementation of HMAC-MD5 that uses the JDK's crypto API
-     * We don't use this because of JTDS's support of JDK 1.3.
-     */
-    /*
-    private static byte[] hmacMD5(byte[] data, byte[] key)
-            throws NoSuchAlgorithmException, InvalidKeyException
-    {
-        SecretKey md5key = new SecretKeySpec( key, "HmacMD5" );
-        Mac mac = Mac.getInstance(md5key.getAlgorithm());
-        mac.init(md5key);
-        return  mac.doFinal(data);
-    }
-    */
-
     /**
      * Creates a timestamp in the format used in NTLMv2 responses.
      * Public so it could be unit tested.
@@ -279,31 +319,91 @@ public class NtlmAuth {
     private static byte[] encryptNonce(byte[] key, byte[] nonce) {
         byte[] out = new byte[24];
 
-        DESEngine d1 = new DESEngine(true, makeDESkey(key,  0));
-        DESEngine d2 = new DESEngine(true, makeDESkey(key,  7));
-        DESEngine d3 = new DESEngine(true, makeDESkey(key,  14));
-
-        d1.processBlock(nonce, 0, out, 0);
-        d2.processBlock(nonce, 0, out, 8);
-        d3.processBlock(nonce, 0, out, 16);
+        Cipher cipher = desCipher();
+        des(cipher, makeDESkey(key,  0), nonce, out, 0);
+        des(cipher, makeDESkey(key,  7), nonce, out, 8);
+        des(cipher, makeDESkey(key,  14), nonce, out, 16);
 
         return out;
     }
 
+    /**
+     * Creates a JCA DES cipher, to be reused for all blocks of one hash.
+     *
+     * @return the cipher or <code>null</code> if the bundled implementation
+     *         has to be used
+     */
+    private static Cipher desCipher() {
+        if (jcaDes) {
+            try {
+                return Cipher.getInstance("DES/ECB/NoPadding");
+            } catch (GeneralSecurityException e) {
+                // Fall back to the bundled implementation
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Encrypts a single 8 byte block with DES.
+     *
+     * @param des the cipher returned by {@link #desCipher()}, may be
+     *            <code>null</code>
+     */
+    private static void des(Cipher des, byte[] key, byte[] in, byte[] out, int outOff) {
+        if (des != null) {
+            try {
+                des.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "DES"));
+                des.doFinal(in, 0, 8, out, outOff);
+                return;
+            } catch (GeneralSecurityException e) {
+                // Fall back to the bundled implementation
+            }
+        }
+
+        new DESEngine(true, key).processBlock(in, 0, out, outOff);
+    }
+
     /**
      * Creates the md4 hash of the unicode password. This is used as the DES
      * key when encrypting the nonce for NTLM challenge-response
      */
     private static byte[] ntHash(String password)
             throws UnsupportedEncodingException {
+        Integer id = Integer.valueOf(System.identityHashCode(password));
+        CachedHash cached = hashCache.get(id);
+
+        if (cached != null && cached.password.get() == password) {
+            return cached.getHash();
+        }
+
         byte[] key = new byte[21];
         Arrays.fill(key, (byte)0);
         byte[] pwd = password.getBytes("UnicodeLittleUnmarked");
 
         // do the md4 hash of the unicode passphrase...
-        MD4Digest md4 = new MD4Digest();
-        md4.update(pwd, 0, pwd.length);
-        md4.doFinal(key, 0);
+        boolean done = false;
+
+        if (jcaMd4) {
+            try {
+                MessageDigest md4 = MessageDigest.getInstance("MD4");
+                md4.update(pwd);
+                md4.digest(key, 0, 16);
+                done = true;
+            } catch (GeneralSecurityException e) {
+                // Fall back to the bundled implementation
+            }
+        }
+
+        if (!done) {
+            MD4Digest md4 = new MD4Digest();
+            md4.update(pwd, 0, pwd.length);
+            md4.doFinal(key, 0);
+        }
+
+        Arrays.fill(pwd, (byte) 0);
+        hashCache.put(id, new CachedHash(password, key));
+
         return key;
     }
 
@@ -325,6 +425,50 @@ public class NtlmAuth {
         return rtn;
     }
 
+    /**
+     * Checks whether the JCA provides an algorithm.
+     */
+    private static boolean isAvailable(String algorithm) {
+        try {
+            if (algorithm.startsWith("Hmac")) {
+                Mac.getInstance(algorithm);
+            } else if (algorithm.indexOf('/') > 0) {
+                Cipher.getInstance(algorithm);
+            } else {
+                MessageDigest.getInstance(algorithm);
+            }
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * An NT password hash, masked in memory. Only valid for the password
+     * <code>String</code> instance referenced; the password itself is not
+     * kept alive by the cache.
+     */
+    private static final class CachedHash {
+        final WeakReference<String> password;
+        private final byte[] masked;
+
+        CachedHash(String password, byte[] hash) {
+            this.password = new WeakReference<String>(password);
+            masked = new byte[hash.length];
+            for (int i = 0; i < hash.length; i++) {
+                masked[i] = (byte) (hash[i] ^ hashMask[i]);
+            }
+        }
+
+        byte[] getHash() {
+            byte[] hash = new byte[masked.length];
+            for (int i = 0; i < hash.length; i++) {
+                hash[i] = (byte) (masked[i] ^ hashMask[i]);
+            }
+            return hash;
+        }
+    }
+
     /**
      * Turns a 7-byte DES key into an 8-byte one by adding parity bits. All
      * implementations of DES seem to want an 8-byte key.
@@ -19,6 +19,11 @@ package net.sourceforge.jtds.jdbc;
 
 /**
  * Stores information about a cached stored procedure or statement handle.
+ * <p>
+ * Entries are shared by all statements of a connection with the same SQL.
+ * The transitions of a handle prepared by <code>sp_prepexec</code>, which
+ * happen while the statement's response is processed rather than under the
+ * connection lock, are synchronized.
  *
  * @version $Id: ProcEntry.java,v 1.1 2005-05-25 09:24:03 alin_sinpalean Exp $
  */
@@ -31,15 +36,19 @@ public class ProcEntry {
     public static final int CURSOR      = 3;
     /** The entry references a failed prepare. */
     public static final int PREP_FAILED = 4;
+    /** The entry has no handle yet, it's prepared by <code>sp_prepexec</code>. */
+    public static final int PREPEXEC    = 5;
+    /** An <code>sp_prepexec</code> call for the entry is in progress. */
+    public static final int PREPARING   = 6;
 
     /** Stored procedure name or statement handle. */
-    private String name;
+    private volatile String name;
     /** Column meta data (Sybase only). */
     private ColInfo[] colMetaData;
     /** Parameter meta data (Sybase only). */
     private ParamInfo[] paramMetaData;
     /** Type of statement referenced by this entry. */
-    private int type;
+    private volatile int type;
     /** Usage count for this statement. */
     private int refCount;
 
@@ -62,12 +71,53 @@ public class ProcEntry {
     }
 
     /**
-     * Sets the prepared statement handle.
+     * Claims an entry without handle for preparing it. Only one statement
+     * can prepare the entry at a time, others execute unprepared meanwhile.
      *
-     * @param handle the <code>sp_prepare</code> handle value
+     * @return <code>true</code> if the caller has to prepare the entry
      */
-    public void setHandle(int handle) {
-        name = Integer.toString(handle);
+    public synchronized boolean startPrepare() {
+        if (type != PREPEXEC) {
+            return false;
+        }
+        type = PREPARING;
+        return true;
+    }
+
+    /**
+     * Completes a prepare started by {@link #startPrepare()}.
+     *
+     * @param handle the statement handle or <code>null</code> if the
+     *               prepare failed
+     */
+    public synchronized void prepared(String handle) {
+        name = handle;
+        type = (handle == null) ? PREP_FAILED : PREPARE;
+    }
+
+    /**
+     * Gives up a prepare started by {@link #startPrepare()} without a
+     * handle having been returned, so that the next execution tries again.
+     */
+    public synchronized void cancelPrepare() {
+        if (type == PREPARING) {
+            type = PREPEXEC;
+        }
+    }
+
+    /**
+     * Discards the statement handle, e.g. because the server doesn't know it
+     * anymore. The statement will be prepared again by
+     * <code>sp_prepexec</code> on its next execution.
+     *
+     * @param handle the handle found invalid; the entry is left alone if it
+     *               has been prepared again meanwhile
+     */
+    public synchronized void invalidate(String handle) {
+        if (type == PREPARE && handle != null && handle.equals(name)) {
+            name = null;
+            type = PREPEXEC;
+        }
     }
 
     /**
@@ -109,7 +159,7 @@ public class ProcEntry {
     /**
      * Sets the statement implementation type.
      *
-     * @param type the type code (one of PROCEDURE,PREPARE,CURSOR)
+     * @param type the type code (one of PROCEDURE,PREPARE,CURSOR,PREPEXEC)
      */
     public void setType(int type) {
         this.type = type;
@@ -125,12 +175,16 @@ public class ProcEntry {
     }
 
     /**
-     * Retrieves the SQL to drop this statement.
+     * Retrieves the SQL to drop this statement. The SQL doesn't fail if a
+     * temporary procedure is already gone, e.g. because the transaction that
+     * created it has been rolled back, so it can be sent along with a
+     * <code>COMMIT</code> or <code>ROLLBACK</code>.
      */
     public void appendDropSQL(StringBuilder sql) {
         switch (type) {
             case PROCEDURE:
-                sql.append("DROP PROC ").append(name).append('\n');
+                sql.append("IF OBJECT_ID('tempdb..").append(name)
+                        .append("') IS NOT NULL DROP PROC ").append(name).append('\n');
                 break;
             case PREPARE:
                 sql.append("EXEC sp_unprepare ").append(name).append('\n');
@@ -139,6 +193,8 @@ public class ProcEntry {
                 sql.append("EXEC sp_cursorunprepare ").append(name).append('\n');
                 break;
             case PREP_FAILED:
+            case PREPEXEC:
+            case PREPARING:
                 break;
             default:
                 throw new IllegalStateException("Invalid cached statement type " + type);
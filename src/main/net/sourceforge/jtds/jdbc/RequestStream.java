@@ -18,11 +18,16 @@
 package net.sourceforge.jtds.jdbc;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 import net.sourceforge.jtds.jdbc.SharedSocket.VirtualSocket;
 import net.sourceforge.jtds.util.*;
@@ -53,10 +58,22 @@ public class RequestStream {
     private final VirtualSocket _VirtualSocket;
     /** True if stream is closed. */
     private boolean isClosed;
+    /** True if the next packet is the first one of a request. */
+    private boolean newRequest = true;
     /** The current output buffer size*/
     private final int bufferSize;
     /** The maximum decimal precision. */
     private final int maxPrecision;
+    /** The string prepared by {@link #encode}, if converted while written. */
+    private String pendingString;
+    /** The encode table for {@link #pendingString}, <code>null</code> for ASCII. */
+    private byte[] pendingTable;
+    /** The encoder for multi-byte charsets, reused while the charset is unchanged. */
+    private CharsetEncoder encoder;
+    /** The bytes prepared by {@link #encode} for multi-byte charsets. */
+    private ByteBuffer encoded;
+    /** The reusable buffer for {@link #encoded}, kept up to a few packets. */
+    private ByteBuffer encodeBuffer;
 
     /**
      * Construct a RequestStream object.
@@ -309,20 +326,29 @@ public class RequestStream {
         if (socket.getTdsVersion() >= Driver.TDS70) {
             int len = s.length();
 
-            for (int i = 0; i < len; ++i) {
-                int c = s.charAt(i);
-
+            for (int i = 0; i < len;) {
                 if (bufferPtr == buffer.length) {
                     putPacket(0);
                 }
 
-                buffer[bufferPtr++] = (byte) c;
+                // As many characters as fit into the packet in one loop
+                int p = bufferPtr;
+                int end = Math.min(len, i + ((buffer.length - p) >> 1));
 
-                if (bufferPtr == buffer.length) {
-                    putPacket(0);
+                for (; i < end; i++) {
+                    char c = s.charAt(i);
+                    buffer[p++] = (byte) c;
+                    buffer[p++] = (byte) (c >> 8);
                 }
 
-                buffer[bufferPtr++] = (byte) (c >> 8);
+                bufferPtr = p;
+
+                if (i < len && p == buffer.length - 1) {
+                    // Character spans two packets
+                    char c = s.charAt(i++);
+                    write((byte) c);
+                    write((byte) (c >> 8));
+                }
             }
         } else {
             writeAscii(s);
@@ -339,20 +365,29 @@ public class RequestStream {
         int i = off;
         int limit = (off + len) > s.length ? s.length : off + len;
 
-        for ( ; i < limit; i++) {
-            char c = s[i];
-
+        while (i < limit) {
             if (bufferPtr == buffer.length) {
                 putPacket(0);
             }
 
-            buffer[bufferPtr++] = (byte) c;
+            // As many characters as fit into the packet in one loop
+            int p = bufferPtr;
+            int end = Math.min(limit, i + ((buffer.length - p) >> 1));
 
-            if (bufferPtr == buffer.length) {
-                putPacket(0);
+            for (; i < end; i++) {
+                char c = s[i];
+                buffer[p++] = (byte) c;
+                buffer[p++] = (byte) (c >> 8);
             }
 
-            buffer[bufferPtr++] = (byte) (c >> 8);
+            bufferPtr = p;
+
+            if (i < limit && p == buffer.length - 1) {
+                // Character spans two packets
+                char c = s[i++];
+                write((byte) c);
+                write((byte) (c >> 8));
+            }
         }
     }
 
@@ -363,43 +398,151 @@ public class RequestStream {
      * @throws IOException
      */
     void writeAscii(String s) throws IOException {
-        String charsetName = socket.getCharset();
+        encode(s, socket.getCharsetInfo());
+        writeEncoded();
+    }
 
-        if (charsetName != null) {
-            try {
-                write(s.getBytes(charsetName));
-            } catch (UnsupportedEncodingException e) {
-                write(s.getBytes());
+    /**
+     * Prepares a String to be written as translated bytes and returns their
+     * number, so that the length can be sent before the data.
+     * <p>
+     * Strings in single-byte charsets and pure ASCII strings in ASCII
+     * compatible charsets are converted while being written by
+     * {@link #writeEncoded()}, without an intermediate byte array; others are
+     * encoded into a reusable buffer. Characters that cannot be mapped are
+     * replaced with the charset's replacement, as by
+     * <code>String.getBytes()</code> (except that a supplementary character
+     * becomes two replacement bytes in a single-byte charset).
+     *
+     * @param s    the String to encode
+     * @param info the charset to encode in
+     * @return the number of bytes {@link #writeEncoded()} will write
+     */
+    int encode(String s, CharsetInfo info) {
+        byte[] table = info.getEncodeTable();
+
+        if (table != null || info.isAsciiCompatible()
+                && CharsetInfo.asciiPrefix(s) == s.length()) {
+            pendingString = s;
+            pendingTable = table;
+            return s.length();
+        }
+
+        pendingString = null;
+        Charset cs = info.getJavaCharset();
+
+        if (cs == null) {
+            encoded = ByteBuffer.wrap(s.getBytes());
+            return encoded.remaining();
+        }
+
+        if (encoder == null || !encoder.charset().equals(cs)) {
+            encoder = cs.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        int size = (int) Math.min(Integer.MAX_VALUE,
+                (long) (s.length() * (double) encoder.maxBytesPerChar()) + 16);
+        CharBuffer in = CharBuffer.wrap(s);
+
+        while (true) {
+            if (encodeBuffer != null && encodeBuffer.capacity() >= size) {
+                encoded = encodeBuffer;
+                encoded.clear();
+            } else {
+                encoded = ByteBuffer.allocate(size);
+                if (size <= bufferSize * 4) {
+                    encodeBuffer = encoded;
+                }
             }
-        } else {
-            write(s.getBytes());
+
+            encoder.reset();
+            in.rewind();
+            CoderResult cr = encoder.encode(in, encoded, true);
+            if (!cr.isOverflow()) {
+                cr = encoder.flush(encoded);
+            }
+            if (!cr.isOverflow()) {
+                break;
+            }
+            size *= 2;
+        }
+
+        encoded.flip();
+        return encoded.remaining();
+    }
+
+    /**
+     * Writes the String prepared by the last {@link #encode} call.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void writeEncoded() throws IOException {
+        String s = pendingString;
+
+        if (s == null) {
+            write(encoded.array(), encoded.position(), encoded.remaining());
+            encoded = null;
+            return;
+        }
+
+        byte[] table = pendingTable;
+        pendingString = null;
+        pendingTable = null;
+
+        int len = s.length();
+        for (int i = 0; i < len;) {
+            if (bufferPtr == buffer.length) {
+                putPacket(0);
+            }
+
+            int end = Math.min(len, i + buffer.length - bufferPtr);
+            int p = bufferPtr;
+
+            if (table == null) {
+                for (; i < end; i++) {
+                    buffer[p++] = (byte) s.charAt(i);
+                }
+            } else {
+                for (; i < end; i++) {
+                    buffer[p++] = table[s.charAt(i)];
+                }
+            }
+
+            bufferPtr = p;
         }
     }
 
     /**
      * Copy the contents of an InputStream to the server.
+     * <p>
+     * The data is read directly into the packet buffer.
      *
      * @param in The InputStream to read.
      * @param length The length of the stream.
      * @throws IOException
      */
     void writeStreamBytes(InputStream in, int length) throws IOException {
-        byte buffer[] = new byte[1024];
-
         while (length > 0) {
-            int res = in.read(buffer);
+            if (bufferPtr == buffer.length) {
+                putPacket(0);
+            }
+
+            int res = in.read(buffer, bufferPtr,
+                    Math.min(buffer.length - bufferPtr, length));
 
             if (res < 0) {
                 throw new java.io.IOException(
                         "Data in stream less than specified by length");
             }
 
-            write(buffer, 0, res);
+            bufferPtr += res;
             length -= res;
         }
 
         // XXX Not sure that this is actually an error
-        if (length < 0 || in.read() >= 0) {
+        if (in.read() >= 0) {
             throw new java.io.IOException(
                     "More data in stream than specified by length");
         }
@@ -407,34 +550,43 @@ public class RequestStream {
 
     /**
      * Copy the contents of a Reader stream to the server.
+     * <p>
+     * The characters are read a packet at a time and encoded directly into
+     * the packet buffer.
      *
      * @param in The Reader object with the data.
      * @param length The length of the data in characters.
      * @throws IOException
      */
     void writeReaderChars(Reader in, int length) throws IOException {
-        char cbuffer[] = new char[512];
-        byte bbuffer[] = new byte[1024];
+        char cbuffer[] = new char[Math.min(length, bufferSize / 2)];
 
         while (length > 0) {
-            int res = in.read(cbuffer);
+            int res = in.read(cbuffer, 0, Math.min(cbuffer.length, length));
 
             if (res < 0) {
                 throw new java.io.IOException(
                         "Data in stream less than specified by length");
             }
 
-            for (int i = 0, j = -1; i < res; i++) {
-                bbuffer[++j] = (byte) cbuffer[i];
-                bbuffer[++j] = (byte) (cbuffer[i] >> 8);
+            for (int i = 0; i < res; i++) {
+                char c = cbuffer[i];
+
+                if (buffer.length - bufferPtr < 2) {
+                    // Character spans two packets
+                    write((byte) c);
+                    write((byte) (c >> 8));
+                } else {
+                    buffer[bufferPtr++] = (byte) c;
+                    buffer[bufferPtr++] = (byte) (c >> 8);
+                }
             }
 
-            write(bbuffer, 0, res * 2);
             length -= res;
         }
 
         // XXX Not sure that this is actually an error
-        if (length < 0 || in.read() >= 0) {
+        if (in.read() >= 0) {
             throw new java.io.IOException(
                     "More data in stream than specified by length");
         }
@@ -450,7 +602,7 @@ public class RequestStream {
      * @throws IOException
      */
     void writeReaderBytes(Reader in, int length) throws IOException {
-        char buffer[] = new char[1024];
+        char buffer[] = new char[Math.min(length, bufferSize)];
 
         for (int i = 0; i < length;) {
             int result = in.read(buffer);
@@ -463,7 +615,8 @@ public class RequestStream {
                         "More data in stream than specified by length");
             }
 
-            write(Support.encodeString(socket.getCharset(), new String(buffer, 0, result)));
+            encode(new String(buffer, 0, result), socket.getCharsetInfo());
+            writeEncoded();
             i += result;
         }
     }
@@ -554,8 +707,19 @@ public class RequestStream {
             throw new IOException("RequestStream is closed");
         }
 
+        int status = last; // last segment indicator
+
+        // A pending session reset is signalled on the first packet of the
+        // next SQL batch or RPC request
+        if (newRequest
+                && (pktType == TdsCore.QUERY_PKT || pktType == TdsCore.RPC_PKT)
+                && socket.takeResetConnection()) {
+            status |= TdsCore.STATUS_RESETCONNECTION;
+        }
+        newRequest = last != 0;
+
         buffer[0] = pktType;
-        buffer[1] = (byte) last; // last segment indicator
+        buffer[1] = (byte) status;
         buffer[2] = (byte) (bufferPtr >> 8);
         buffer[3] = (byte) bufferPtr;
         buffer[4] = 0;
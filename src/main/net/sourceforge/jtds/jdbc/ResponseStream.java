@@ -20,7 +20,7 @@ package net.sourceforge.jtds.jdbc;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 
 import net.sourceforge.jtds.jdbc.SharedSocket.VirtualSocket;
 import net.sourceforge.jtds.util.*;
@@ -295,16 +295,23 @@ public class ResponseStream {
      * @throws IOException if an I/O error occurs
      */
     String readString(int len, CharsetInfo info) throws IOException {
-        String charsetName = info.getCharset();
         byte[] bytes = (len > byteBuffer.length) ? new byte[len] : byteBuffer;
 
         read(bytes, 0, len);
 
-        try {
-            return new String(bytes, 0, len, charsetName);
-        } catch (UnsupportedEncodingException e) {
-            return new String(bytes, 0, len);
+        char[] table = info.getDecodeTable();
+        if (table != null) {
+            // Single-byte charset, decode by lookup
+            char[] chars = (len > charBuffer.length) ? new char[len] : charBuffer;
+            for (int i = 0; i < len; i++) {
+                chars[i] = table[bytes[i] & 0xFF];
+            }
+            return new String(chars, 0, len);
         }
+
+        Charset cs = info.getJavaCharset();
+        return (cs == null) ? new String(bytes, 0, len)
+                : new String(bytes, 0, len, cs);
     }
 
     /**
@@ -21,8 +21,8 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 
+import net.sourceforge.jtds.jdbc.cache.ConcurrentLRUCache;
 import net.sourceforge.jtds.jdbc.cache.SQLCacheKey;
-import net.sourceforge.jtds.jdbc.cache.SimpleLRUCache;
 
 /**
  * Process JDBC escape strings and parameter markers in the SQL string.
@@ -89,9 +89,75 @@ class SQLParser {
     }
 
    /**
-    * a LRU cache for the last 500 parsed SQL statements
+    * cache of parsed SQL statements shared by all connections
     */
-   private final static SimpleLRUCache<SQLCacheKey,CachedSQLQuery> _Cache = new SimpleLRUCache( 1000 );
+   private static volatile ConcurrentLRUCache<SQLCacheKey,CachedSQLQuery> _Cache = new ConcurrentLRUCache<SQLCacheKey,CachedSQLQuery>( Integer.parseInt( DefaultProperties.PARSER_CACHE_SIZE ) );
+
+   /**
+    * cache of {@link SQLTemplate}s, keyed by the parsed SQL statement
+    */
+   private static volatile ConcurrentLRUCache<String,SQLTemplate> _Templates = new ConcurrentLRUCache<String,SQLTemplate>( Integer.parseInt( DefaultProperties.PARSER_CACHE_SIZE ) );
+
+   /**
+    * <p> Requests a minimum number of entries in the parser cache. The cache
+    * is shared by all connections in the JVM, so it only ever grows to the
+    * largest size requested; it is replaced (and thus cleared) only when a
+    * connection requests a larger size than any before. </p>
+    *
+    * @param size
+    *    the number of parsed SQL statements to cache
+    */
+   static void setCacheSize( int size )
+   {
+      if( _Cache.getLimit() < size )
+      {
+         synchronized( SQLParser.class )
+         {
+            if( _Cache.getLimit() < size )
+            {
+               _Cache = new ConcurrentLRUCache<SQLCacheKey,CachedSQLQuery>( size );
+               _Templates = new ConcurrentLRUCache<String,SQLTemplate>( size );
+            }
+         }
+      }
+   }
+
+   /**
+    * @return
+    *    the cache of parsed SQL statements
+    */
+   static ConcurrentLRUCache<SQLCacheKey,?> getCache()
+   {
+      return _Cache;
+   }
+
+   /**
+    * <p> Get the template of a parsed SQL statement, i.e. its literal SQL
+    * fragments and parameter slots. Templates are cached, so the SQL is only
+    * split up the first time a statement is executed. </p>
+    *
+    * @param sql
+    *    the parsed SQL statement, as returned by {@link #parse}
+    *
+    * @param params
+    *    the parameters of the statement, holding the marker positions
+    *
+    * @return
+    *    the template of the SQL statement
+    */
+   static SQLTemplate getTemplate( String sql, ParamInfo[] params )
+   {
+      ConcurrentLRUCache<String,SQLTemplate> cache = _Templates;
+      SQLTemplate template = cache.get( sql );
+
+      if( template == null || ! template.matches( sql, params ) )
+      {
+         template = new SQLTemplate( sql, params );
+         cache.put( sql, template );
+      }
+
+      return template;
+   }
 
     /** Original SQL string */
     private final String sql;
@@ -142,8 +208,8 @@ class SQLParser {
    {
       String[] ret;
 
-      // don't cache extract table parse requests
-      if( extractTable )
+      // don't cache extract table parse requests or if disabled for the connection
+      if( extractTable || connection != null && connection.getParserCacheSize() == 0 )
       {
          ret = new SQLParser( sql, paramList, connection ).parse( extractTable );
       }
@@ -153,19 +219,19 @@ class SQLParser {
          // of multiple parses of the same statement can occur. However, it is
          //   1) unlikely under normal usage, and
          //   2) harmless to the cache.
-         // By avoiding a synchronization block around the get()-parse()-put(), we
-         // reduce the contention greatly in the nominal case.
+         // Lookups never block, only the (rare) updates are synchronized.
 
+         ConcurrentLRUCache<SQLCacheKey,CachedSQLQuery> cache = _Cache;
          SQLCacheKey cacheKey = new SQLCacheKey( sql, connection );
-         CachedSQLQuery cachedQuery = _Cache.get( cacheKey );
+         CachedSQLQuery cachedQuery = cache.get( cacheKey );
 
          if( cachedQuery == null )
          {
             // parse statement
             ret = new SQLParser( sql, paramList, connection ).parse( extractTable );
 
-            // update LRU cache
-            _Cache.put( cacheKey, new CachedSQLQuery( ret, paramList ) );
+            // update cache, one-off statements may not be admitted
+            cache.put( cacheKey, new CachedSQLQuery( ret, paramList ) );
          }
          else
          {
@@ -0,0 +1,172 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+import java.sql.SQLException;
+
+/**
+ * Compact form of a parsed SQL statement: the literal SQL fragments between
+ * the parameter markers plus the parameter slots.
+ * <p>
+ * The marker positions are taken from the <code>ParamInfo</code> objects
+ * produced by {@link SQLParser}, so the SQL text is never scanned again. A
+ * template is built once per distinct parsed statement and cached by the
+ * parser; afterwards the SQL with <code>@P<i>n</i></code> markers is
+ * available without any work and parameter values are substituted by
+ * concatenating the fragments.
+ *
+ * @see SQLParser#getTemplate(String, ParamInfo[])
+ */
+final class SQLTemplate {
+
+    /** The parsed SQL statement. */
+    private final String sql;
+    /** The literal SQL fragments, one more than the number of slots. */
+    private final String[] fragments;
+    /** The parameter index of each slot. */
+    private final int[] slotParam;
+    /** The marker position of each slot in the parsed SQL. */
+    private final int[] slotPos;
+    /** The number of parameters the template was built for. */
+    private final int paramCount;
+    /** The SQL with <code>@P<i>n</i></code> markers, built on first use. */
+    private volatile String markerSql;
+
+    /**
+     * Builds a template from a parsed SQL statement and its parameters.
+     *
+     * @param sql    the parsed SQL statement
+     * @param params the parameters, holding the marker positions
+     */
+    SQLTemplate(String sql, ParamInfo[] params) {
+        int slots = 0;
+
+        for (int i = 0; i < params.length; i++) {
+            if (params[i].markerPos > 0) {
+                slots++;
+            }
+        }
+
+        this.sql        = sql;
+        this.paramCount = params.length;
+        this.fragments  = new String[slots + 1];
+        this.slotParam  = new int[slots];
+        this.slotPos    = new int[slots];
+
+        int start = 0;
+        int slot  = 0;
+
+        for (int i = 0; i < params.length; i++) {
+            int pos = params[i].markerPos;
+
+            if (pos > 0) {
+                fragments[slot] = sql.substring(start, pos);
+                slotParam[slot] = i;
+                slotPos[slot]   = pos;
+                start = pos + 1;
+                slot++;
+            }
+        }
+
+        fragments[slot] = sql.substring(Math.min(start, sql.length()));
+    }
+
+    /**
+     * Checks whether this template was built for the same statement and
+     * parameter markers.
+     *
+     * @param sql    the parsed SQL statement
+     * @param params the parameters
+     * @return <code>true</code> if the template can be used
+     */
+    boolean matches(String sql, ParamInfo[] params) {
+        if (params.length != paramCount
+                || !(this.sql == sql || this.sql.equals(sql))) {
+            return false;
+        }
+
+        int slot = 0;
+
+        for (int i = 0; i < params.length; i++) {
+            int pos = params[i].markerPos;
+
+            if (pos > 0) {
+                if (slot >= slotPos.length
+                        || slotPos[slot] != pos || slotParam[slot] != i) {
+                    return false;
+                }
+                slot++;
+            }
+        }
+
+        return slot == slotPos.length;
+    }
+
+    /**
+     * Retrieves the SQL with the <code>?</code> markers replaced by parameter
+     * names eg <code>@P0</code>, <code>@P1</code> etc.
+     *
+     * @return the SQL as a <code>String</code>
+     */
+    String getParamMarkerSql() {
+        String result = markerSql;
+
+        if (result == null) {
+            // " @P" plus at most 4 digits plus " " replace each "?"
+            StringBuilder buf = new StringBuilder(sql.length() + slotPos.length * 7);
+
+            for (int slot = 0; slot < slotPos.length; slot++) {
+                buf.append(fragments[slot]);
+                buf.append(" @P").append(slotParam[slot]).append(' ');
+            }
+            buf.append(fragments[slotPos.length]);
+
+            markerSql = result = buf.toString();
+        }
+
+        return result;
+    }
+
+    /**
+     * Renders the SQL with the parameter values embedded as literals.
+     * <p>
+     * Streams and readers must already have been replaced by their values
+     * (see {@link Support#substituteParameters}).
+     *
+     * @param list       the parameters, holding the values
+     * @param len        the estimated length of the result
+     * @param connection the current connection
+     * @return the SQL as a <code>String</code>
+     */
+    String substituteParameters(ParamInfo[] list, int len,
+                                JtdsConnection connection)
+            throws SQLException {
+        final boolean tds70 = connection.getTdsVersion() >= Driver.TDS70;
+        StringBuilder buf = new StringBuilder(len + 16);
+
+        for (int slot = 0; slot < slotPos.length; slot++) {
+            ParamInfo pi = list[slotParam[slot]];
+
+            buf.append(fragments[slot]);
+            Support.embedData(buf, pi.value, tds70 && pi.isUnicode, connection);
+        }
+        buf.append(fragments[slotPos.length]);
+
+        return buf.toString();
+    }
+}
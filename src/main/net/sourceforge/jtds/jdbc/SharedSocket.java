@@ -23,22 +23,30 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.SocketFactory;
 
 import net.sourceforge.jtds.ssl.*;
 import net.sourceforge.jtds.util.Logger;
+import net.sourceforge.jtds.util.SpillFile;
 
 /**
  * This class manages the physical connection to the SQL Server and
@@ -84,9 +92,9 @@ class SharedSocket {
          */
         final LinkedList pktQueue;
         /**
-         * File object for disk packet queue.
+         * Spill file for disk packet queue.
          */
-        File queueFile;
+        SpillFile queueFile;
         /**
          * I/O Stream for disk packet queue.
          */
@@ -210,6 +218,14 @@ class SharedSocket {
      * {@link #responseOwner}.
      */
     private final Object cancelMonitor = new Object();
+    /**
+     * The server has to reset the session before the next request.
+     */
+    private final AtomicBoolean resetPending = new AtomicBoolean();
+    /**
+     * Time of the last packet sent or received.
+     */
+    private volatile long lastActivity = System.currentTimeMillis();
     /**
      * Buffer for TDS_DONE packets
      */
@@ -275,6 +291,16 @@ class SharedSocket {
       final String bindAddress = connection.getBindAddress();
       final int loginTimeout = connection.getLoginTimeout();
 
+      if( connection.getMultiSubnetFailover() )
+      {
+         InetAddress[] addresses = InetAddress.getAllByName( host );
+
+         if( addresses.length > 1 )
+         {
+            return connectParallel( addresses, port, bindAddress, loginTimeout );
+         }
+      }
+
       Socket socket = new Socket();
       InetSocketAddress address = new InetSocketAddress( host, port );
 
@@ -289,6 +315,135 @@ class SharedSocket {
       return socket;
    }
 
+   /**
+    * Connects to all addresses of a server in parallel, the first established
+    * connection is used and all other connection attempts are aborted. Used
+    * for servers (e.g. availability group listeners) with addresses in
+    * several subnets, of which only one is reachable at a time.
+    *
+    * @param addresses
+    *    the server addresses
+    *
+    * @param port
+    *    the server port
+    *
+    * @param bindAddress
+    *    the local address to bind to or {@code null}
+    *
+    * @param loginTimeout
+    *    the timeout in seconds or {@code 0}
+    *
+    * @return
+    *    the first socket connected
+    *
+    * @throws IOException
+    *    if none of the addresses could be connected to
+    */
+   private static Socket connectParallel( InetAddress[] addresses, final int port, String bindAddress, final int loginTimeout )
+      throws IOException
+   {
+      // either the connected Socket or the IOException of each attempt
+      final BlockingQueue<Object> results = new ArrayBlockingQueue<Object>( addresses.length );
+      final Socket[] sockets = new Socket[addresses.length];
+      Socket winner = null;
+
+      try
+      {
+         for( int i = 0; i < addresses.length; i ++ )
+         {
+            final Socket socket = new Socket();
+            final InetSocketAddress address = new InetSocketAddress( addresses[i], port );
+            sockets[i] = socket;
+
+            if( bindAddress != null && ! bindAddress.isEmpty() )
+            {
+               socket.bind( new InetSocketAddress( bindAddress, 0 ) );
+            }
+
+            Thread thread = new Thread( "jTDS connect " + address )
+            {
+               @Override
+               public void run()
+               {
+                  try
+                  {
+                     socket.connect( address, loginTimeout * 1000 );
+                     results.add( socket );
+                  }
+                  catch( IOException e )
+                  {
+                     results.add( e );
+                  }
+               }
+            };
+
+            thread.setDaemon( true );
+            thread.start();
+         }
+
+         long deadline = System.currentTimeMillis() + loginTimeout * 1000L;
+         IOException error = null;
+
+         for( int i = 0; i < addresses.length && winner == null; i ++ )
+         {
+            Object result;
+
+            if( loginTimeout > 0 )
+            {
+               result = results.poll( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+            }
+            else
+            {
+               result = results.take();
+            }
+
+            if( result == null )
+            {
+               break; // login timeout expired
+            }
+            else if( result instanceof Socket )
+            {
+               winner = (Socket) result;
+            }
+            else if( error == null || error instanceof SocketTimeoutException && ! ( result instanceof SocketTimeoutException ) )
+            {
+               // report the first real failure, independent of thread timing
+               error = (IOException) result;
+            }
+         }
+
+         if( winner == null )
+         {
+            throw error != null ? error : new SocketTimeoutException( "connect timed out" );
+         }
+
+         return winner;
+      }
+      catch( InterruptedException e )
+      {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException( "connect interrupted" );
+      }
+      finally
+      {
+         // closing the sockets aborts the pending connects of the losers
+         for( int i = 0; i < sockets.length; i ++ )
+         {
+            if( sockets[i] != null && sockets[i] != winner )
+            {
+               try
+               {
+                  sockets[i].close();
+               }
+               catch( IOException e )
+               {
+                  // ignore
+               }
+            }
+         }
+      }
+   }
+
    String getMAC()
    {
       try
@@ -481,6 +636,78 @@ class SharedSocket {
         return socket != null;
     }
 
+    /**
+     * Retrieves the time of the last network activity.
+     *
+     * @return the time a packet was last sent or received, as returned by
+     *         <code>System.currentTimeMillis()</code>
+     */
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Checks whether the connection has been closed or reset by the server
+     * or the network, without sending anything.
+     * <p>
+     * An idle TCP/IP connection is probed by reading from it with a timeout
+     * of 1 ms: the server never sends data without a request, so the read
+     * has to time out. A connection waiting for a response and named pipe
+     * connections are assumed to be alive as long as they are connected.
+     *
+     * @return <code>false</code> if the connection is known to be broken
+     */
+    boolean isAlive() {
+        synchronized (_VirtualSockets) {
+            Socket sock = socket;
+
+            if (sock == null) {
+                return isConnected();
+            }
+
+            if (responseOwner != null) {
+                return !sock.isClosed();
+            }
+
+            try {
+                int timeout = sock.getSoTimeout();
+                sock.setSoTimeout(1);
+
+                try {
+                    // Either end of stream or unexpected data
+                    getIn().read();
+                    return false;
+                } catch (SocketTimeoutException e) {
+                    return true;
+                } finally {
+                    sock.setSoTimeout(timeout);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Requests a reset of the session. The reset connection status bit is set
+     * in the first packet of the next query or RPC request, so the server
+     * resets the session before processing that request.
+     * <p>
+     * Only SQL Server 2000 and later (TDS 8.0) support the status bit.
+     */
+    void setResetConnection() {
+        resetPending.set(true);
+    }
+
+    /**
+     * Retrieves and clears the pending session reset request.
+     *
+     * @return <code>true</code> if the next request has to reset the session
+     */
+    boolean takeResetConnection() {
+        return resetPending.get() && resetPending.getAndSet(false);
+    }
+
     /**
      * Send a TDS cancel packet to the server.
      *
@@ -545,6 +772,7 @@ class SharedSocket {
       if( Logger.isActive() )
       {
          Logger.println( "TdsSocket: Max buffer memory used = " + (peakMemUsage / 1024) + "KB" );
+         Logger.println( "TdsSocket: Spill files: " + SpillFile.getStatistics() );
       }
 
       // see if any temporary files need deleting
@@ -552,15 +780,9 @@ class SharedSocket {
       {
          if( vsock != null && vsock.diskQueue != null )
          {
-            try
-            {
-               vsock.diskQueue.close();
-               vsock.queueFile.delete();
-            }
-            catch( IOException ioe )
-            {
-               // ignore errors
-            }
+            vsock.queueFile.release();
+            vsock.queueFile = null;
+            vsock.diskQueue = null;
          }
       }
 
@@ -615,15 +837,9 @@ class SharedSocket {
 
       if( vsock.diskQueue != null )
       {
-         try
-         {
-            vsock.diskQueue.close();
-            vsock.queueFile.delete();
-         }
-         catch( IOException ioe )
-         {
-            // ignore errors
-         }
+         vsock.queueFile.release();
+         vsock.queueFile = null;
+         vsock.diskQueue = null;
       }
    }
 
@@ -684,8 +900,9 @@ class SharedSocket {
             // or subsequent packet of a new request.
             //
             getOut().write(buffer, 0, getPktLen(buffer));
+            lastActivity = System.currentTimeMillis();
 
-            if (buffer[1] != 0) {
+            if ((buffer[1] & TdsCore.STATUS_EOM) != 0) {
                 getOut().flush();
                 // We are the response owner now
                 responseOwner = vsock;
@@ -750,9 +967,8 @@ class SharedSocket {
                 vsock.diskQueue == null) {
             // Try to create a disk file for the queue
             try {
-                vsock.queueFile = File.createTempFile("jtds", ".tmp", bufferDir);
-                // vsock.queueFile.deleteOnExit(); memory leak, see http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6664633
-                vsock.diskQueue = new RandomAccessFile(vsock.queueFile, "rw");
+                vsock.queueFile = SpillFile.acquire(bufferDir);
+                vsock.diskQueue = vsock.queueFile.open();
 
                 // Write current cache contents to disk and free memory
                 byte[] tmpBuf;
@@ -814,14 +1030,10 @@ class SharedSocket {
             vsock.pktsOnDisk--;
 
             if (vsock.pktsOnDisk < 1) {
-                // File now empty so close and delete it
-                try {
-                    vsock.diskQueue.close();
-                    vsock.queueFile.delete();
-                } finally {
-                    vsock.queueFile = null;
-                    vsock.diskQueue = null;
-                }
+                // File now empty so return it to the pool
+                vsock.queueFile.release();
+                vsock.queueFile = null;
+                vsock.diskQueue = null;
             }
         } else if (vsock.pktQueue.size() > 0) {
             buffer = (byte[]) vsock.pktQueue.removeFirst();
@@ -883,6 +1095,7 @@ class SharedSocket {
 
         try {
             getIn().readFully(buffer, TDS_HDR_LEN, len - TDS_HDR_LEN);
+            lastActivity = System.currentTimeMillis();
         } catch (EOFException e) {
             throw new IOException("DB server closed connection.");
         }
@@ -0,0 +1,206 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Composite key identifying a server side preparation of an SQL statement in
+ * the {@link net.sourceforge.jtds.jdbc.cache.StatementCache}.
+ * <p>
+ * The key replaces the string formerly built by concatenating the SQL text,
+ * the catalog and all parameter types. No string concatenation takes place,
+ * the SQL hash code is cached by the <code>String</code> itself (the same
+ * instance is passed in on every execution of a prepared statement) and the
+ * parameter types are held by an interned {@link ParamSignature}, so a cache
+ * hit usually costs a handful of integer and reference comparisons.
+ */
+final class StatementKey {
+
+    /** The SQL statement. */
+    private final String sql;
+    /** The catalog (SQL Server only, <code>null</code> for Sybase). */
+    private final String catalog;
+    /** The parameter signature (SQL Server only, <code>null</code> for Sybase). */
+    private final ParamSignature signature;
+    /**
+     * Distinguishes otherwise identical keys: 'C'/'X' for cursor/non cursor
+     * prepares on SQL Server, 'T'/'F' for chained mode on Sybase.
+     */
+    private final char mode;
+    /** The precomputed hash code. */
+    private final int hashCode;
+
+    /**
+     * Creates a new statement key.
+     *
+     * @param sql        the sql statement to generate the key for
+     * @param params     the statement parameters
+     * @param serverType the type of server to generate the key for
+     * @param catalog    the catalog is required for uniqueness on Microsoft
+     *                   SQL Server
+     * @param autoCommit true if in auto commit mode
+     * @param cursor     true if this is a prepared cursor
+     */
+    StatementKey(String sql, ParamInfo[] params, int serverType,
+                 String catalog, boolean autoCommit, boolean cursor) {
+        this.sql = sql;
+
+        if (serverType == Driver.SQLSERVER) {
+            // Need to distinguish otherwise identical SQL for cursor and
+            // non cursor prepared statements (sp_prepare/sp_cursorprepare).
+            // Procedures and handles are also database specific.
+            this.mode      = cursor ? 'C' : 'X';
+            this.catalog   = catalog;
+            this.signature = ParamSignature.getInstance(params);
+        } else {
+            // A simple key works for Sybase just need to know if
+            // proc created in chained mode or not.
+            this.mode      = autoCommit ? 'T' : 'F';
+            this.catalog   = null;
+            this.signature = null;
+        }
+
+        int hash = sql.hashCode() * 31 + mode;
+        if (this.catalog != null) {
+            hash = hash * 31 + this.catalog.hashCode();
+        }
+        if (this.signature != null) {
+            hash = hash * 31 + this.signature.hashCode;
+        }
+        this.hashCode = hash;
+    }
+
+    public int hashCode() {
+        return hashCode;
+    }
+
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof StatementKey)) {
+            return false;
+        }
+
+        StatementKey key = (StatementKey) object;
+
+        // Compare the cheap attributes first, the SQL text last; signatures
+        // are interned so in the common case an identity check suffices
+        return hashCode == key.hashCode
+                && mode == key.mode
+                && (signature == key.signature
+                    || signature != null && signature.equals(key.signature))
+                && (catalog == key.catalog
+                    || catalog != null && catalog.equals(key.catalog))
+                && (sql == key.sql || sql.equals(key.sql));
+    }
+
+    public String toString() {
+        StringBuilder buf = new StringBuilder(sql.length() + 32);
+        buf.append(mode);
+        if (catalog != null) {
+            buf.append(catalog).append(':');
+        }
+        buf.append(sql);
+        if (signature != null) {
+            buf.append(signature);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Immutable list of the native SQL types of a statement's parameters.
+     * <p>
+     * Instances are interned in a bounded, JVM wide table, so the same
+     * signature is shared by all statement keys (and connections) using it.
+     */
+    static final class ParamSignature {
+
+        /** Maximum number of signatures to intern. */
+        private static final int MAX_INTERNED = 1024;
+        /** The interned signatures. */
+        private static final ConcurrentHashMap<ParamSignature,ParamSignature> interned =
+                new ConcurrentHashMap<ParamSignature,ParamSignature>();
+        /** The (shared) empty signature. */
+        private static final ParamSignature EMPTY = new ParamSignature(new String[0]);
+
+        /** The native SQL types, e.g. <code>nvarchar(4000)</code>. */
+        private final String[] types;
+        /** The precomputed hash code. */
+        final int hashCode;
+
+        private ParamSignature(String[] types) {
+            this.types = types;
+            this.hashCode = Arrays.hashCode(types);
+        }
+
+        /**
+         * Retrieves the interned signature for a set of parameters.
+         *
+         * @param params the parameters, their native types already set
+         * @return the signature
+         */
+        static ParamSignature getInstance(ParamInfo[] params) {
+            if (params == null || params.length == 0) {
+                return EMPTY;
+            }
+
+            String[] types = new String[params.length];
+            for (int i = 0; i < params.length; i++) {
+                types[i] = params[i].sqlType;
+            }
+
+            ParamSignature signature = new ParamSignature(types);
+            ParamSignature existing = interned.get(signature);
+            if (existing != null) {
+                return existing;
+            }
+
+            if (interned.size() < MAX_INTERNED) {
+                existing = interned.putIfAbsent(signature, signature);
+                if (existing != null) {
+                    return existing;
+                }
+            }
+
+            return signature;
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(Object object) {
+            if (this == object) {
+                return true;
+            }
+            if (!(object instanceof ParamSignature)) {
+                return false;
+            }
+
+            ParamSignature sig = (ParamSignature) object;
+            return hashCode == sig.hashCode && Arrays.equals(types, sig.types);
+        }
+
+        public String toString() {
+            return Arrays.toString(types);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A TEXT, NTEXT or IMAGE column value that has not been read from the
+ * server response yet.
+ * <p>
+ * Used by forward-only result sets when <code>streamLOBs</code> is enabled:
+ * instead of copying a large value into a <code>BlobBuffer</code>, the
+ * application reads it directly from the <code>ResponseStream</code> through
+ * the stream returned by {@link #getBinaryStream()} or
+ * {@link #getCharacterStream()}. This is only possible once and only until
+ * the response is read any further, i.e. until the next column or row is
+ * read. At that point {@link TdsCore} calls {@link #close(boolean)}, which
+ * either buffers the value if the application has not started reading it or
+ * discards the rest of it.
+ *
+ * @see TdsData#readData(JtdsConnection, ResponseStream, ColInfo, boolean, boolean, int)
+ */
+final class StreamedLob {
+
+    /** The connection the value is read from. */
+    private final JtdsConnection connection;
+    /** The response stream, positioned at the value while it is open. */
+    private final ResponseStream in;
+    /** The column descriptor. */
+    private final ColInfo ci;
+    /** The charset of a TEXT or NTEXT value, <code>null</code> for IMAGE. */
+    private final String charset;
+    /** The length of the value in bytes. */
+    private final int length;
+    /** The number of bytes not read yet. */
+    private int remaining;
+    /** True once a stream has been handed out. */
+    private boolean started;
+    /** True once the response has moved past the value. */
+    private boolean closed;
+
+    /**
+     * Creates a streamed LOB positioned at the start of its data.
+     *
+     * @param connection the current connection
+     * @param in         the server ResponseStream
+     * @param ci         the column descriptor
+     * @param charset    the charset of a TEXT or NTEXT value,
+     *                   <code>null</code> for IMAGE
+     * @param length     the length of the value in bytes
+     */
+    StreamedLob(JtdsConnection connection, ResponseStream in, ColInfo ci,
+                String charset, int length) {
+        this.connection = connection;
+        this.in = in;
+        this.ci = ci;
+        this.charset = charset;
+        this.length = length;
+        this.remaining = length;
+    }
+
+    /**
+     * Checks whether the value can still be read, either as a stream or
+     * buffered.
+     *
+     * @return <code>true</code> if neither a stream has been handed out nor
+     *         the response moved past the value
+     */
+    boolean isAvailable() {
+        return !started && !closed;
+    }
+
+    /**
+     * Checks whether this is a binary (IMAGE) value.
+     *
+     * @return <code>true</code> for IMAGE, <code>false</code> for TEXT and
+     *         NTEXT values
+     */
+    boolean isBinary() {
+        return charset == null;
+    }
+
+    /**
+     * Returns a stream reading the raw value directly from the server
+     * response. May only be called once, while {@link #isAvailable()}.
+     *
+     * @return the value as an <code>InputStream</code>
+     */
+    InputStream getBinaryStream() {
+        started = true;
+        return new LobInputStream();
+    }
+
+    /**
+     * Returns a reader decoding the value directly from the server response.
+     * May only be called once, while {@link #isAvailable()}.
+     *
+     * @return the value as a <code>Reader</code>
+     * @throws UnsupportedEncodingException if the column's charset is not
+     *         supported
+     */
+    Reader getCharacterStream() throws UnsupportedEncodingException {
+        Reader reader = new InputStreamReader(new LobInputStream(), charset);
+        started = true;
+        return reader;
+    }
+
+    /**
+     * Called when the response has to move past the value.
+     *
+     * @param buffer <code>true</code> to buffer the value if the application
+     *               has not started reading it yet
+     * @return the buffered <code>ClobImpl</code> or <code>BlobImpl</code>, or
+     *         this object if the value was discarded
+     * @throws IOException if an I/O error occurs
+     */
+    Object close(boolean buffer) throws IOException {
+        if (closed) {
+            return this;
+        }
+
+        closed = true;
+
+        if (buffer && !started) {
+            remaining = 0;
+            return TdsData.readLob(connection, in, ci, length);
+        }
+
+        in.skip(remaining);
+        remaining = 0;
+
+        return this;
+    }
+
+    /**
+     * Stream over the value data in the response, invalidated when the
+     * response moves on.
+     */
+    private final class LobInputStream extends InputStream {
+
+        public int read() throws IOException {
+            checkOpen();
+
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            remaining--;
+            return in.read();
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkOpen();
+
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int bc = in.read(b, off, Math.min(len, remaining));
+            remaining -= bc;
+            return bc;
+        }
+
+        public long skip(long n) throws IOException {
+            checkOpen();
+
+            int bc = (int) Math.min(Math.max(n, 0), remaining);
+            in.skip(bc);
+            remaining -= bc;
+            return bc;
+        }
+
+        private void checkOpen() throws IOException {
+            if (closed) {
+                throw new IOException(Messages.get("error.resultset.streamclosed"));
+            }
+        }
+    }
+}
@@ -1019,38 +1019,11 @@ public class Support {
      * @param cursor     true if this is a prepared cursor
      * @return the unique statement key
      */
-    static String getStatementKey(String sql, ParamInfo[] params,
-                                  int serverType, String catalog,
-                                  boolean autoCommit, boolean cursor) {
-        StringBuilder key;
-
-        if (serverType == Driver.SQLSERVER) {
-            key = new StringBuilder(1 + catalog.length() + sql.length()
-                    + 11 * params.length);
-            // Need to distinguish otherwise identical SQL for cursor and
-            // non cursor prepared statements (sp_prepare/sp_cursorprepare).
-            key.append((cursor) ? 'C':'X');
-            // Need to ensure that the current database is included in the key
-            // as procedures and handles are database specific.
-            key.append(catalog);
-            // Now the actual SQL statement
-            key.append(sql);
-            //
-            // Append parameter data types to key.
-            //
-            for (int i = 0; i < params.length; i++) {
-                key.append(params[i].sqlType);
-            }
-        } else {
-            key = new StringBuilder(sql.length() + 2);
-            // A simple key works for Sybase just need to know if
-            // proc created in chained mode or not.
-            key.append((autoCommit) ? 'T': 'F');
-            // Now the actual SQL statement
-            key.append(sql);
-        }
-
-        return key.toString();
+    static StatementKey getStatementKey(String sql, ParamInfo[] params,
+                                        int serverType, String catalog,
+                                        boolean autoCommit, boolean cursor) {
+        return new StatementKey(sql, params, serverType, catalog, autoCommit,
+                cursor);
     }
 
     /**
@@ -1093,46 +1066,7 @@ public class Support {
      * @return the modified SQL as a <code>String</code>
      */
     static String substituteParamMarkers(String sql, ParamInfo[] list) {
-        // A parameter can have at most 8 characters: " @P" plus at most 4
-        // digits plus " ". We subtract the "?" placeholder, that's at most
-        // 7 extra characters needed for each parameter.
-        char[] buf = new char[sql.length() + list.length * 7];
-        int bufferPtr = 0; // Output buffer pointer
-        int start = 0;     // Input string pointer
-        StringBuilder number = new StringBuilder(4);
-
-        for (int i = 0; i < list.length; i++) {
-            int pos = list[i].markerPos;
-
-            if (pos > 0) {
-                sql.getChars(start, pos, buf, bufferPtr);
-                bufferPtr += (pos - start);
-                start = pos + 1;
-
-                // Append " @P"
-                buf[bufferPtr++] = ' ';
-                buf[bufferPtr++] = '@';
-                buf[bufferPtr++] = 'P';
-
-                // Append parameter number
-                // Rather complicated, but it's the only way in which no
-                // unnecessary objects are created
-                number.setLength(0);
-                number.append(i);
-                number.getChars(0, number.length(), buf, bufferPtr);
-                bufferPtr += number.length();
-
-                // Append " "
-                buf[bufferPtr++] = ' ';
-            }
-        }
-
-        if (start < sql.length()) {
-            sql.getChars(start, sql.length(), buf, bufferPtr);
-            bufferPtr += (sql.length() - start);
-        }
-
-        return new String(buf, 0, bufferPtr);
+        return SQLParser.getTemplate(sql, list).getParamMarkerSql();
     }
 
     /**
@@ -1186,25 +1120,7 @@ public class Support {
             }
         }
 
-        StringBuilder buf = new StringBuilder(len + 16);
-        int start = 0;
-
-        for (int i = 0; i < list.length; i++) {
-            int pos = list[i].markerPos;
-
-            if (pos > 0) {
-                buf.append(sql.substring(start, list[i].markerPos));
-                start = pos + 1;
-                final boolean isUnicode = connection.getTdsVersion() >= Driver.TDS70 && list[i].isUnicode;
-                Support.embedData(buf, list[i].value, isUnicode, connection);
-            }
-        }
-
-        if (start < sql.length()) {
-            buf.append(sql.substring(start));
-        }
-
-        return buf.toString();
+        return SQLParser.getTemplate(sql, list).substituteParameters(list, len, connection);
     }
 
     /**
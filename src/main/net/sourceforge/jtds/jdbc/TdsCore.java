@@ -20,6 +20,7 @@ package net.sourceforge.jtds.jdbc;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.sql.DataTruncation;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.SQLTimeoutException;
@@ -196,6 +197,10 @@ public class TdsCore {
     public static final byte NTLMAUTH_PKT = 17;
     /** SQL 2000 prelogin negotiation packet. */
     public static final byte PRELOGIN_PKT = 18;
+    /** Packet status bit: last packet of a request. */
+    static final int STATUS_EOM = 0x01;
+    /** Packet status bit: reset the session before processing the request. */
+    static final int STATUS_RESETCONNECTION = 0x08;
     /** SSL Mode - Login packet must be encrypted. */
     public static final int SSL_ENCRYPT_LOGIN = 0;
     /** SSL Mode - Client requested force encryption. */
@@ -329,6 +334,11 @@ public class TdsCore {
     public static final int EXECUTE_SQL = 2;
     /** Prepare SQL using sp_prepare and sp_execute */
     public static final int PREPARE = 3;
+    /** Prepare SQL using sp_prepexec on first execution and sp_execute afterwards */
+    public static final int PREPEXEC = 4;
+
+    /** Error returned by sp_execute for an unknown statement handle. */
+    private static final int ERR_INVALID_HANDLE = 8179;
 
     //
     // Sybase capability flags
@@ -406,6 +416,24 @@ public class TdsCore {
     private ColInfo[] computedColumns;
     /** The array of column data objects in the current row. */
     private Object[] rowData;
+    /** True to leave large LOB values of rows unread, see {@link StreamedLob}. */
+    private final boolean streamLobs;
+    /** True to read large LOB values of rows on demand, see {@link LobLocator}. */
+    private boolean lobLocators;
+    /**
+     * The SQL of the current request, whose LOB columns are checked for
+     * {@link LobLocator}s, or <code>null</code>.
+     */
+    private String lobSql;
+    /**
+     * The <code>TEXTSIZE</code> the server cuts LOB values of the current
+     * request off at for {@link LobLocator}s, 0 if it sends them in full.
+     */
+    private int lobTextSize;
+    /** The number of columns of the current row read so far. */
+    private int columnsRead;
+    /** True while the current row has not been read completely. */
+    private boolean rowPending;
     /** The array of computed column data objects in the current row. */
     private Object[] computedRowData;
     /** The array of table names associated with this result. */
@@ -420,6 +448,14 @@ public class TdsCore {
     private ParamInfo[] parameters;
     /** The index of the next output parameter to populate. */
     private int nextParam = -1;
+    /** The statement cache entry to use for the next execution. */
+    private ProcEntry nextProcEntry;
+    /** The statement cache entry of the current execution. */
+    private ProcEntry procEntry;
+    /** The statement handle sent with the current execution, if any. */
+    private String procHandle;
+    /** Indicates that the handle returned by sp_prepexec is expected. */
+    private boolean awaitingHandle;
     /** The head of the diagnostic messages chain. */
     private final SQLDiagnostic messages;
     /** Indicates that this object is closed. */
@@ -468,6 +504,17 @@ public class TdsCore {
         tdsVersion = socket.getTdsVersion();
         out = socket.getRequestStream(connection.getNetPacketSize(), connection.getMaxPrecision());
         in = socket.getResponseStream(out, connection.getNetPacketSize());
+        streamLobs = connection.getStreamLOBs();
+        lobLocators = connection.getLobLocators();
+    }
+
+    /**
+     * Reads large LOB values of rows in full, even if the connection uses
+     * {@link LobLocator}s. Used for the connection's own requests, which
+     * include the reads through the locators.
+     */
+    void disableLobLocators() {
+        lobLocators = false;
     }
 
     /**
@@ -537,11 +584,81 @@ public class TdsCore {
      * Retrieve the current result set data items.
      *
      * @return the row data as an <code>Object</code> array
+     * @throws SQLException if an I/O error occurs reading streamed LOB values
+     */
+    Object[] getRowData() throws SQLException {
+        if (rowPending) {
+            readRowData(columns.length, true);
+        }
+
+        return rowData;
+    }
+
+    /**
+     * Retrieve the current result set data items without reading the rest of
+     * a row containing a streamed LOB value. While {@link #isRowPending()},
+     * columns have to be read with {@link #readRowData(int, boolean)} before
+     * they can be accessed.
+     *
+     * @return the row data as an <code>Object</code> array
      */
-    Object[] getRowData() {
+    Object[] getStreamingRowData() {
         return rowData;
     }
 
+    /**
+     * Retrieve the status of the current row.
+     *
+     * @return <code>true</code> if the row contains a streamed LOB value and
+     *         has not been read completely
+     */
+    boolean isRowPending() {
+        return rowPending;
+    }
+
+    /**
+     * Read the columns of the current row up to the given column. Streamed
+     * LOB values before that column are buffered if the application has not
+     * started to read them yet.
+     *
+     * @param count  the number of columns to make available
+     * @param buffer <code>true</code> to also buffer a streamed LOB value in
+     *               the last of these columns
+     * @throws SQLException if an I/O or protocol error occurs
+     */
+    void readRowData(int count, boolean buffer) throws SQLException {
+        if (!rowPending) {
+            return;
+        }
+
+        checkOpen();
+
+        try {
+            readColumns(count, true);
+
+            if (buffer) {
+                closeStreamedLob(count - 1, true);
+            }
+
+            rowPending = columnsRead < columns.length
+                    || rowData[columnsRead - 1] instanceof StreamedLob;
+        } catch (IOException ioe) {
+            connection.setClosed(socket);
+            throw Support.linkException(
+                new SQLException(
+                       Messages.get(
+                            "error.generic.ioerror", ioe.getMessage()),
+                                "08S01"), ioe);
+        } catch (ProtocolException pe) {
+            connection.setClosed(socket);
+            throw Support.linkException(
+                new SQLException(
+                       Messages.get(
+                            "error.generic.tdserror", pe.getMessage()),
+                                "08S01"), pe);
+        }
+    }
+
     /**
      * Negotiate SSL settings with SQL 2000+ server.
      * <p/>
@@ -695,7 +812,7 @@ public class TdsCore {
                     x = (byte)in.peek();
                 }
             } catch (IOException e) {
-                connection.setClosed();
+                connection.setClosed(socket);
 
                 throw Support.linkException(
                     new SQLException(
@@ -831,6 +948,9 @@ public class TdsCore {
 
       try
       {
+         // the current row remains accessible
+         finishRow( true );
+
          byte x = endOfResponse ? TDS_DONE_TOKEN : (byte) in.peek();
 
          while( x != TDS_ROW_TOKEN && x != TDS_ALTROW && x != TDS_DONE_TOKEN && x != TDS_DONEINPROC_TOKEN && x != TDS_DONEPROC_TOKEN )
@@ -844,9 +964,14 @@ public class TdsCore {
       }
       catch( IOException e )
       {
-         connection.setClosed();
+         connection.setClosed(socket);
          throw Support.linkException( new SQLException( Messages.get( "error.generic.ioerror", e.getMessage() ), "08S01" ), e );
       }
+      catch( ProtocolException pe )
+      {
+         connection.setClosed(socket);
+         throw Support.linkException( new SQLException( Messages.get( "error.generic.tdserror", pe.getMessage() ), "08S01" ), pe );
+      }
    }
 
     /**
@@ -940,6 +1065,22 @@ public class TdsCore {
         messages.checkErrors();
     }
 
+    /**
+     * Sends an empty SQL batch and waits for the server to acknowledge it, to
+     * check that the connection is alive. The request and response take less
+     * than 30 bytes on the wire and the server has nothing to execute.
+     *
+     * @param timeout the response timeout in seconds, <code>0</code> for none
+     * @throws SQLException if the server doesn't respond or an error occurs
+     */
+    void ping(int timeout) throws SQLException {
+        checkOpen();
+
+        executeSQL(" ", null, null, false, timeout, -1, -1, true);
+        clearResponseQueue();
+        messages.checkErrors();
+    }
+
     /**
      * Notifies the <code>TdsCore</code> that a batch is starting. This is so
      * that it knows to use <code>sp_executesql</code> for parameterized
@@ -952,6 +1093,21 @@ public class TdsCore {
         inBatch = true;
     }
 
+    /**
+     * Sets the statement cache entry for the next call of
+     * {@link #executeSQL}, when running with <code>prepareSql=4</code>.
+     * <p>
+     * If the entry has no handle yet the SQL is prepared and executed in a
+     * single <code>sp_prepexec</code> call and the returned handle is stored
+     * into the entry. If the server reports the handle as unknown, the entry
+     * is invalidated so that the next execution prepares the SQL again.
+     *
+     * @param entry the statement cache entry
+     */
+    void setProcEntry(ProcEntry entry) {
+        nextProcEntry = entry;
+    }
+
     /**
      * Send an SQL statement with optional parameters to the server.
      *
@@ -990,6 +1146,23 @@ public class TdsCore {
             // Also checks if connection is open
             clearResponseQueue();
             messages.exceptions = null;
+            if (awaitingHandle) {
+                // The previous sp_prepexec returned no handle
+                procEntry.cancelPrepare();
+                awaitingHandle = false;
+            }
+            procEntry = nextProcEntry;
+            procHandle = procName;
+
+            //
+            // Let the server send only the start of LOB values if the
+            // statement is known to return nothing but locatable ones.
+            //
+            lobSql = (lobLocators && maxFieldSize == 0 && sql != null) ? sql : null;
+            int lobLimit = connection.getLobTextSize();
+            if (lobSql != null && lobLimit > 0 && connection.isLobLocatable(sql)) {
+                maxFieldSize = lobLimit;
+            }
 
             //
             // Set the connection row count and text size if required.
@@ -999,6 +1172,8 @@ public class TdsCore {
             // No other thread can send until this one has finished.
             //
             setRowCountAndTextSize(maxRows, maxFieldSize);
+            lobTextSize = (lobLocators && lobLimit > 0
+                    && connection.getTextSize() == lobLimit) ? lobLimit : 0;
 
             messages.clearWarnings();
             returnStatus = null;
@@ -1088,7 +1263,7 @@ public class TdsCore {
                     sendFailed = false;
                 }
             } catch (IOException ioe) {
-                connection.setClosed();
+                connection.setClosed(socket);
 
                 throw Support.linkException(
                     new SQLException(
@@ -1097,6 +1272,7 @@ public class TdsCore {
                                         "08S01"), ioe);
             }
         } finally {
+            nextProcEntry = null;
             if ((sendNow || sendFailed) && connectionLock != null) {
                 connectionLock.release();
                 connectionLock = null;
@@ -1175,7 +1351,7 @@ public class TdsCore {
                         e));
             }
 
-        } else if (prepareSql == PREPARE) {
+        } else if (prepareSql == PREPARE || prepareSql == PREPEXEC) {
             int scrollOpt, ccOpt;
 
             ParamInfo prepParam[] = new ParamInfo[needCursor ? 6 : 4];
@@ -1317,7 +1493,7 @@ public class TdsCore {
             messages.checkErrors();
             return procName;
         } catch (IOException ioe) {
-            connection.setClosed();
+            connection.setClosed(socket);
             throw Support.linkException(
                 new SQLException(
                        Messages.get(
@@ -1372,7 +1548,7 @@ public class TdsCore {
             clearResponseQueue();
             messages.checkErrors();
         } catch (IOException ioe) {
-            connection.setClosed();
+            connection.setClosed(socket);
             throw Support.linkException(
                 new SQLException(
                        Messages.get(
@@ -1425,7 +1601,7 @@ public class TdsCore {
             endOfResponse = false;
             endOfResults  = true;
         } catch (IOException ioe) {
-            connection.setClosed();
+            connection.setClosed(socket);
             throw Support.linkException(
                     new SQLException(
                             Messages.get(
@@ -1440,8 +1616,9 @@ public class TdsCore {
 
         byte[] tmAddress = null;
         if (getMoreResults() && getNextRow()) {
-            if (rowData.length == 1) {
-                Object x = rowData[0];
+            Object[] row = getRowData();
+            if (row.length == 1) {
+                Object x = row[0];
                 if (x instanceof byte[]) {
                     tmAddress = (byte[])x;
                 }
@@ -2342,6 +2519,9 @@ public class TdsCore {
 
       try
       {
+         // the application has moved on from a partially read row
+         finishRow( false );
+
          // handle result set splitting in case of computed results
          if( computedColumns != null )
          {
@@ -2477,12 +2657,12 @@ public class TdsCore {
       }
       catch( IOException ioe )
       {
-         connection.setClosed();
+         connection.setClosed(socket);
          throw Support.linkException( new SQLException( Messages.get( "error.generic.ioerror", ioe.getMessage() ), "08S01" ), ioe );
       }
       catch( ProtocolException pe )
       {
-         connection.setClosed();
+         connection.setClosed(socket);
          throw Support.linkException( new SQLException( Messages.get( "error.generic.tdserror", pe.getMessage() ), "08S01" ), pe );
       }
       catch( OutOfMemoryError err )
@@ -2911,8 +3091,11 @@ public class TdsCore {
                 col.tableName = table.name;
             }
 
+            col.isExpression    = (flags & 0x04) != 0;
             col.isKey           = (flags & 0x08) != 0;
             col.isHidden        = (flags & 0x10) != 0;
+            col.isBaseColumn    = tableIndex != 0 && tables != null
+                                  && !col.isExpression;
 
             // If bit 5 is set, we have a column name
             if ((flags & 0x20) != 0) {
@@ -2985,6 +3168,11 @@ public class TdsCore {
                 severity = 9; // Ensure treated as warning
             }
         }
+        if (number == ERR_INVALID_HANDLE && procEntry != null) {
+            // The statement handle is gone, prepare again on next execution
+            procEntry.invalidate(procHandle);
+        }
+
         messages.addDiagnostic(number, state, severity,
                 message, server, procName, line);
     }
@@ -3030,6 +3218,13 @@ public class TdsCore {
         }
         Object value = TdsData.readData(connection, in, col);
 
+        if (awaitingHandle) {
+            // The first output parameter of sp_prepexec is the handle
+            awaitingHandle = false;
+            procEntry.prepared((value instanceof Integer) ? value.toString() : null);
+            return;
+        }
+
         //
         // Real output parameters will either be unnamed or will have a valid
         // parameter name beginning with '@'. Ignore any other spurious parameters
@@ -3196,13 +3391,78 @@ public class TdsCore {
      * @throws ProtocolException
      */
     private void tdsRowToken() throws IOException, ProtocolException {
-        for (int i = 0; i < columns.length; i++) {
-            rowData[i] =  TdsData.readData(connection, in, columns[i]);
+        if (streamLobs) {
+            // Read up to the first streamed LOB value
+            columnsRead = 0;
+            do {
+                readColumns(columnsRead + 1, true);
+            } while (columnsRead < columns.length
+                    && !(rowData[columnsRead - 1] instanceof StreamedLob));
+
+            rowPending = rowData[columnsRead - 1] instanceof StreamedLob;
+        } else {
+            for (int i = 0; i < columns.length; i++) {
+                rowData[i] =  TdsData.readData(connection, in, columns[i], false, lobLocators, lobTextSize);
+            }
         }
 
         endOfResults = false;
     }
 
+    /**
+     * Read the columns of the current row up to the given column.
+     *
+     * @param count  the number of columns to read
+     * @param buffer <code>true</code> to buffer streamed LOB values in the way
+     *               unless the application has started to read them,
+     *               <code>false</code> to discard them
+     * @throws IOException
+     * @throws ProtocolException
+     */
+    private void readColumns(int count, boolean buffer)
+            throws IOException, ProtocolException {
+        while (columnsRead < count) {
+            if (columnsRead > 0) {
+                closeStreamedLob(columnsRead - 1, buffer);
+            }
+
+            rowData[columnsRead] = TdsData.readData(connection, in, columns[columnsRead], true, lobLocators, lobTextSize);
+            columnsRead++;
+        }
+    }
+
+    /**
+     * Move the response past a streamed LOB value.
+     *
+     * @param index  the column index, starting at 0
+     * @param buffer <code>true</code> to buffer the value unless the
+     *               application has started to read it
+     * @throws IOException
+     */
+    private void closeStreamedLob(int index, boolean buffer) throws IOException {
+        if (rowData[index] instanceof StreamedLob) {
+            rowData[index] = ((StreamedLob) rowData[index]).close(buffer);
+        }
+    }
+
+    /**
+     * Read the rest of a row containing a streamed LOB value, before reading
+     * the next token.
+     *
+     * @param buffer <code>true</code> to buffer streamed LOB values the
+     *               application has not started to read, <code>false</code>
+     *               to discard them
+     * @throws IOException
+     * @throws ProtocolException
+     */
+    private void finishRow(boolean buffer) throws IOException, ProtocolException {
+        if (rowPending) {
+            readColumns(columns.length, buffer);
+            closeStreamedLob(columns.length - 1, buffer);
+            rowPending = false;
+        }
+    }
+
     /**
      * Process TDS 5.0 Params Token.
      * Stored procedure output parameters or data returned in parameter format
@@ -3646,6 +3906,48 @@ public class TdsCore {
         endOfResults = false;
     }
 
+    /**
+     * Checks the LOB columns of a result set that has been read completely
+     * for {@link LobLocator}s. Records whether the SQL of the request may be
+     * executed with a <code>TEXTSIZE</code> limit next time, i.e. whether
+     * the values of all LOB columns could be read by text pointer, and warns
+     * of values that have been cut off by the limit nonetheless.
+     */
+    private void checkLobLocators() {
+        if (!lobLocators || columns == null) {
+            return;
+        }
+
+        boolean lobs = false;
+        boolean locatable = true;
+        for (int i = 0; i < columns.length; i++) {
+            ColInfo ci = columns[i];
+            if (TdsData.hasTextPtr(ci)) {
+                lobs = true;
+                if (ci.locatorState == LobLocator.TRUNCATED) {
+                    messages.addWarning(new DataTruncation(i + 1, false, true,
+                            -1, lobTextSize));
+                    ci.locatorState = LobLocator.NOT_LOCATABLE;
+                }
+                if (lobTextSize == 0) {
+                    // Each column has to be proven locatable
+                    locatable &= ci.locatorState == LobLocator.LOCATABLE;
+                } else {
+                    locatable &= ci.locatorState != LobLocator.NOT_LOCATABLE;
+                }
+            }
+        }
+
+        if (lobs && lobSql != null) {
+            if (!locatable) {
+                connection.setLobLocatable(lobSql, false);
+                lobSql = null; // Not to be overridden by a later result
+            } else if (lobTextSize == 0) {
+                connection.setLobLocatable(lobSql, true);
+            }
+        }
+    }
+
     /**
      * Process a DONE, DONEINPROC or DONEPROC token.
      *
@@ -3677,6 +3979,7 @@ public class TdsCore {
             // This will eliminate the select row count for sybase
             currentToken.status &= ~DONE_ROW_COUNT;
             endOfResults = true;
+            checkLobLocators();
         }
 
         //
@@ -3717,10 +4020,16 @@ public class TdsCore {
             //
             endOfResponse = !cancelPending;
 
+            if (awaitingHandle) {
+                // sp_prepexec failed, the next execution tries again
+                awaitingHandle = false;
+                procEntry.cancelPrepare();
+            }
+
             if (fatalError) {
                 // A fatal error has occured, the server has closed the
                 // connection
-                connection.setClosed();
+                connection.setClosed(socket);
             }
         }
 
@@ -3978,7 +4287,42 @@ public class TdsCore {
         if (procName == null) {
             // No procedure name so not a callable statement and also
             // not a temporary stored procedure call.
-            if (parameters != null) {
+            if (prepareSql == PREPEXEC && procEntry != null
+                    && procEntry.startPrepare()) {
+                // Prepare and execute in a single call, the statement handle
+                // is returned as output parameter
+                ParamInfo[] params;
+
+                if (parameters == null) {
+                    params = new ParamInfo[3];
+                    parameters = new ParamInfo[0];
+                } else {
+                    params = new ParamInfo[3 + parameters.length];
+                    System.arraycopy(parameters, 0, params, 3, parameters.length);
+                }
+
+                params[0] = new ParamInfo(Types.INTEGER, null, ParamInfo.OUTPUT);
+                TdsData.getNativeType(connection, params[0]);
+
+                params[1] = new ParamInfo(Types.LONGVARCHAR,
+                        Support.getParameterDefinitions(parameters),
+                        ParamInfo.UNICODE);
+                TdsData.getNativeType(connection, params[1]);
+
+                params[2] = new ParamInfo(Types.LONGVARCHAR,
+                        Support.substituteParamMarkers(sql, parameters),
+                        ParamInfo.UNICODE);
+                TdsData.getNativeType(connection, params[2]);
+
+                parameters = params;
+
+                // Other statements execute unprepared until the server has
+                // returned the handle
+                awaitingHandle = true;
+
+                // Use sp_prepexec approach
+                procName = "sp_prepexec";
+            } else if (parameters != null) {
                 if (prepareSql == TdsCore.UNPREPARED) {
                     // Low tech approach just substitute parameter data into the
                     // SQL statement.
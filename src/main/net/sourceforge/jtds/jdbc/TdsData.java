@@ -687,6 +687,32 @@ public class TdsData {
      */
     static Object readData(JtdsConnection connection, ResponseStream in, ColInfo ci)
             throws IOException, ProtocolException {
+        return readData(connection, in, ci, false, false, 0);
+    }
+
+    /**
+     * Read the TDS data item from the Response Stream, optionally leaving
+     * TEXT, NTEXT and IMAGE values larger than <code>lobBuffer</code> unread.
+     *
+     * @param connection the current connection
+     * @param in         the server ResponseStream
+     * @param ci         the ColInfo column descriptor object
+     * @param stream     <code>true</code> to return a {@link StreamedLob} for
+     *                   large LOB values, whose data has to be consumed
+     *                   before the next item can be read
+     * @param locators   <code>true</code> to return large LOB values backed
+     *                   by a {@link LobLocator} where possible
+     * @param textSize   the <code>TEXTSIZE</code> the server cuts LOB values
+     *                   off at for {@link LobLocator}s, 0 if it sends them in
+     *                   full
+     * @return the data item Object or null
+     * @throws IOException
+     * @throws ProtocolException
+     */
+    static Object readData(JtdsConnection connection, ResponseStream in,
+                           ColInfo ci, boolean stream, boolean locators,
+                           int textSize)
+            throws IOException, ProtocolException {
         int len;
 
         switch (ci.tdsType) {
@@ -748,167 +774,56 @@ public class TdsData {
                 return in.readUnsignedLong();
 
             case SYBIMAGE:
-                len = in.read();
-
-                if (len > 0) {
-                    in.skip(24); // Skip textptr and timestamp
-                    int dataLen = in.readInt();
-                    BlobImpl blob;
-                    if (dataLen == 0 && in.getTdsVersion() <= Driver.TDS50) {
-                        // Length of zero may indicate an initialized image
-                        // column that has been updated to null.
-                        break;
-                    }
-                    if (dataLen <= connection.getLobBuffer()) {
-                        //
-                        // OK Small enough to load into memory
-                        //
-                        byte[] data = new byte[dataLen];
-                        in.read(data);
-                        blob = new BlobImpl(connection, data);
-                    } else {
-                        // Too big, need to write straight to disk
-                        try {
-                            blob = new BlobImpl(connection);
-                            OutputStream out = blob.setBinaryStream(1);
-                            byte[] buffer = new byte[1024];
-                            int result;
-                            while ((result = in.read(buffer, 0,
-                                             Math.min(dataLen, buffer.length)))
-                                             != -1 && dataLen != 0) {
-                                out.write(buffer, 0, result);
-                                dataLen -= result;
-                            }
-                            out.close();
-                        } catch (SQLException e) {
-                            // Transform setBinaryStream SQLException
-                            throw new IOException(e.getMessage());
-                        }
-                    }
-                    return blob;
-                }
-
-                break;
-
             case SYBTEXT:
+            case SYBUNITEXT: // ASE 15+ unicode text type
+            case SYBNTEXT:
                 len = in.read();
 
                 if (len > 0) {
-                    String charset;
-                    if (ci.charsetInfo != null) {
-                        charset = ci.charsetInfo.getCharset();
+                    byte[] textPtr = null;
+                    if (locators) {
+                        textPtr = new byte[len];
+                        in.read(textPtr);
+                        in.skip(8); // Skip timestamp
                     } else {
-                        charset = connection.getCharset();
+                        in.skip(len + 8); // Skip textptr and timestamp
                     }
-                    in.skip(24); // Skip textptr and timestamp
                     int dataLen = in.readInt();
                     if (dataLen == 0 && in.getTdsVersion() <= Driver.TDS50) {
-                        // Length of zero may indicate an initialized text
-                        // column that has been updated to null.
+                        // Length of zero may indicate an initialized text or
+                        // image column that has been updated to null.
                         break;
                     }
-                    ClobImpl clob = new ClobImpl(connection);
-                    BlobBuffer blobBuffer = clob.getBlobBuffer();
-                    if (dataLen <= connection.getLobBuffer()) {
-                        //
-                        // OK Small enough to load into memory
-                        //
-                        BufferedReader rdr =
-                            new BufferedReader(
-                                 new InputStreamReader(in.getInputStream(dataLen),
-                                                                         charset),
-                                                                         1024);
-                        byte[] data = new byte[dataLen * 2];
-                        int p = 0;
-                        int c;
-                        while ((c = rdr.read()) >= 0) {
-                            data[p++] = (byte)c;
-                            data[p++] = (byte)(c >> 8);
-                        }
-                        rdr.close();
-                        blobBuffer.setBuffer(data, false);
-                        if (p == 2 && data[0] == 0x20 && data[1] == 0
-                            && in.getTdsVersion() < Driver.TDS70) {
-                            // Single space with Sybase equates to empty string
-                            p = 0;
-                        }
-                        // Explicitly set length as multi byte character sets
-                        // may not fill array completely.
-                        blobBuffer.setLength(p);
-                    } else {
-                        // Too big, need to write straight to disk
-                        BufferedReader rdr =
-                            new BufferedReader(
-                                 new InputStreamReader(in.getInputStream(dataLen),
-                                                                         charset),
-                                                                         1024);
-                        try {
-                            OutputStream out = blobBuffer.setBinaryStream(1, false);
-                            int c;
-                            while ((c = rdr.read()) >= 0) {
-                                out.write(c);
-                                out.write(c >> 8);
+                    if (locators) {
+                        // A value of the TEXTSIZE may have been cut off
+                        boolean truncated = textSize > 0 && dataLen == textSize;
+                        if (isLocatable(connection, ci, textPtr)) {
+                            if (ci.locatorState == LobLocator.UNKNOWN) {
+                                ci.locatorState = LobLocator.LOCATABLE;
                             }
-                            out.close();
-                            rdr.close();
-                        } catch (SQLException e) {
-                            // Turn back into an IOException
-                            throw new IOException(e.getMessage());
+                            if (truncated || dataLen > connection.getLobBuffer()) {
+                                // Keep the start, fetch the rest on demand
+                                return readLobPrefix(connection, in, ci,
+                                        textPtr, dataLen, truncated);
+                            }
+                        } else {
+                            ci.locatorState = Math.max(ci.locatorState, truncated
+                                    ? LobLocator.TRUNCATED : LobLocator.NOT_LOCATABLE);
                         }
                     }
-                    return clob;
-                }
-
-                break;
-
-            case SYBUNITEXT: // ASE 15+ unicode text type
-            case SYBNTEXT:
-                len = in.read();
-
-                if (len > 0) {
-                    in.skip(24); // Skip textptr and timestamp
-                    int dataLen = in.readInt();
-                    if (dataLen == 0 && in.getTdsVersion() <= Driver.TDS50) {
-                        // Length of zero may indicate an initialized unitext
-                        // column that has been updated to null.
-                        break;
-                    }
-                    ClobImpl clob = new ClobImpl(connection);
-                    BlobBuffer blobBuffer = clob.getBlobBuffer();
-                    if (dataLen <= connection.getLobBuffer()) {
-                        //
-                        // OK Small enough to load into memory
-                        //
-                        byte[] data = new byte[dataLen];
-                        in.read(data);
-                        blobBuffer.setBuffer(data, false);
-                        if (dataLen == 2 && data[0] == 0x20 && data[1] == 0
-                                && in.getTdsVersion() == Driver.TDS50) {
-                                // Single space with Sybase equates to empty string
-                                dataLen = 0;
-                            }
-                            // Explicitly set length as multi byte character sets
-                            // may not fill array completely.
-                            blobBuffer.setLength(dataLen);
-                    } else {
-                        // Too big, need to write straight to disk
-                        try {
-                            OutputStream out = blobBuffer.setBinaryStream(1, false);
-                            byte[] buffer = new byte[1024];
-                            int result;
-                            while ((result = in.read(buffer, 0,
-                                             Math.min(dataLen, buffer.length)))
-                                             != -1 && dataLen != 0) {
-                                out.write(buffer, 0, result);
-                                dataLen -= result;
-                            }
-                            out.close();
-                        } catch (SQLException e) {
-                            // Transform setBinaryStream SQLException
-                            throw new IOException(e.getMessage());
+                    if (stream && dataLen > connection.getLobBuffer()) {
+                        // Leave the value on the wire for the application
+                        String charset = null;
+                        if (ci.tdsType == SYBTEXT) {
+                            charset = (ci.charsetInfo != null)
+                                    ? ci.charsetInfo.getCharset()
+                                    : connection.getCharset();
+                        } else if (ci.tdsType != SYBIMAGE) {
+                            charset = "UTF-16LE";
                         }
+                        return new StreamedLob(connection, in, ci, charset, dataLen);
                     }
-                    return clob;
+                    return readLob(connection, in, ci, dataLen);
                 }
 
                 break;
@@ -1143,6 +1058,220 @@ public class TdsData {
         return null;
     }
 
+    /**
+     * Checks whether a TEXT, NTEXT or IMAGE value can be read by its text
+     * pointer with <code>READTEXT</code>.
+     *
+     * @param connection the current connection
+     * @param ci         the ColInfo column descriptor object
+     * @param textPtr    the text pointer of the value
+     * @return <code>false</code> for expressions, MAX values and TEXT values
+     *         in multi byte character sets
+     */
+    private static boolean isLocatable(JtdsConnection connection, ColInfo ci,
+                                       byte[] textPtr) {
+        if (!LobLocator.isBaseColumn(ci) || ci.tdsType == SYBUNITEXT
+                || !LobLocator.isValidTextPtr(textPtr)) {
+            return false;
+        }
+        if (ci.tdsType == SYBTEXT) {
+            CharsetInfo charsetInfo = (ci.charsetInfo != null)
+                    ? ci.charsetInfo : connection.getCharsetInfo();
+            // READTEXT offsets are in bytes, ClobImpl positions in chars
+            return !charsetInfo.isWideChars();
+        }
+        return true;
+    }
+
+    /**
+     * Read the start of the value of a TEXT, NTEXT or IMAGE column, following
+     * its length, from the Response Stream into a <code>ClobImpl</code> or
+     * <code>BlobImpl</code> backed by a {@link LobLocator}, which fetches the
+     * rest of the value on demand. The remaining data is skipped.
+     *
+     * @param connection the current connection
+     * @param in         the server ResponseStream
+     * @param ci         the ColInfo column descriptor object
+     * @param textPtr    the text pointer of the value
+     * @param dataLen    the length of the data sent in bytes
+     * @param truncated  <code>true</code> if the server may have cut the value
+     *                   off after <code>dataLen</code> bytes
+     * @return the <code>ClobImpl</code> or <code>BlobImpl</code>
+     * @throws IOException
+     */
+    private static Object readLobPrefix(JtdsConnection connection,
+                                        ResponseStream in, ColInfo ci,
+                                        byte[] textPtr, int dataLen,
+                                        boolean truncated)
+            throws IOException {
+        String charset = null;
+        int charSize = 1;
+        if (ci.tdsType == SYBTEXT) {
+            charset = ((ci.charsetInfo != null)
+                    ? ci.charsetInfo : connection.getCharsetInfo()).getCharset();
+        } else if (ci.tdsType == SYBNTEXT) {
+            charset = "UTF-16LE";
+            charSize = 2;
+        }
+
+        // Keep at most lobBuffer bytes, the length is queried if cut off
+        int size = truncated ? dataLen : (int) connection.getLobBuffer();
+        byte[] prefix = new byte[size / charSize * charSize];
+        in.read(prefix);
+        in.skip(dataLen - prefix.length);
+
+        LobLocator locator = new LobLocator(connection, ci, textPtr,
+                charset, prefix, truncated ? -1 : dataLen / charSize);
+        if (charset == null) {
+            return new BlobImpl(connection, locator);
+        }
+        return new ClobImpl(connection, locator);
+    }
+
+    /**
+     * Read the value of a TEXT, NTEXT or IMAGE column, following its length,
+     * from the Response Stream into a <code>ClobImpl</code> or
+     * <code>BlobImpl</code>. Values larger than <code>lobBuffer</code> are
+     * written to disk.
+     *
+     * @param connection the current connection
+     * @param in         the server ResponseStream
+     * @param ci         the ColInfo column descriptor object
+     * @param dataLen    the length of the value in bytes
+     * @return the <code>ClobImpl</code> or <code>BlobImpl</code>
+     * @throws IOException
+     */
+    static Object readLob(JtdsConnection connection, ResponseStream in,
+                          ColInfo ci, int dataLen)
+            throws IOException {
+        if (ci.tdsType == SYBIMAGE) {
+            BlobImpl blob;
+            if (dataLen <= connection.getLobBuffer()) {
+                //
+                // OK Small enough to load into memory
+                //
+                byte[] data = new byte[dataLen];
+                in.read(data);
+                blob = new BlobImpl(connection, data);
+            } else {
+                // Too big, need to write straight to disk
+                try {
+                    blob = new BlobImpl(connection);
+                    OutputStream out = blob.setBinaryStream(1);
+                    byte[] buffer = new byte[1024];
+                    int result;
+                    while ((result = in.read(buffer, 0,
+                                     Math.min(dataLen, buffer.length)))
+                                     != -1 && dataLen != 0) {
+                        out.write(buffer, 0, result);
+                        dataLen -= result;
+                    }
+                    out.close();
+                } catch (SQLException e) {
+                    // Transform setBinaryStream SQLException
+                    throw new IOException(e.getMessage());
+                }
+            }
+            return blob;
+        }
+
+        if (ci.tdsType == SYBTEXT) {
+            String charset;
+            if (ci.charsetInfo != null) {
+                charset = ci.charsetInfo.getCharset();
+            } else {
+                charset = connection.getCharset();
+            }
+            ClobImpl clob = new ClobImpl(connection);
+            BlobBuffer blobBuffer = clob.getBlobBuffer();
+            if (dataLen <= connection.getLobBuffer()) {
+                //
+                // OK Small enough to load into memory
+                //
+                BufferedReader rdr =
+                    new BufferedReader(
+                         new InputStreamReader(in.getInputStream(dataLen),
+                                                                 charset),
+                                                                 1024);
+                byte[] data = new byte[dataLen * 2];
+                int p = 0;
+                int c;
+                while ((c = rdr.read()) >= 0) {
+                    data[p++] = (byte)c;
+                    data[p++] = (byte)(c >> 8);
+                }
+                rdr.close();
+                blobBuffer.setBuffer(data, false);
+                if (p == 2 && data[0] == 0x20 && data[1] == 0
+                    && in.getTdsVersion() < Driver.TDS70) {
+                    // Single space with Sybase equates to empty string
+                    p = 0;
+                }
+                // Explicitly set length as multi byte character sets
+                // may not fill array completely.
+                blobBuffer.setLength(p);
+            } else {
+                // Too big, need to write straight to disk
+                BufferedReader rdr =
+                    new BufferedReader(
+                         new InputStreamReader(in.getInputStream(dataLen),
+                                                                 charset),
+                                                                 1024);
+                try {
+                    OutputStream out = blobBuffer.setBinaryStream(1, false);
+                    int c;
+                    while ((c = rdr.read()) >= 0) {
+                        out.write(c);
+                        out.write(c >> 8);
+                    }
+                    out.close();
+                    rdr.close();
+                } catch (SQLException e) {
+                    // Turn back into an IOException
+                    throw new IOException(e.getMessage());
+                }
+            }
+            return clob;
+        }
+
+        ClobImpl clob = new ClobImpl(connection);
+        BlobBuffer blobBuffer = clob.getBlobBuffer();
+        if (dataLen <= connection.getLobBuffer()) {
+            //
+            // OK Small enough to load into memory
+            //
+            byte[] data = new byte[dataLen];
+            in.read(data);
+            blobBuffer.setBuffer(data, false);
+            if (dataLen == 2 && data[0] == 0x20 && data[1] == 0
+                && in.getTdsVersion() == Driver.TDS50) {
+                // Single space with Sybase equates to empty string
+                dataLen = 0;
+            }
+            // Explicitly set length as multi byte character sets
+            // may not fill array completely.
+            blobBuffer.setLength(dataLen);
+        } else {
+            // Too big, need to write straight to disk
+            try {
+                OutputStream out = blobBuffer.setBinaryStream(1, false);
+                byte[] buffer = new byte[1024];
+                int result;
+                while ((result = in.read(buffer, 0,
+                                 Math.min(dataLen, buffer.length)))
+                                 != -1 && dataLen != 0) {
+                    out.write(buffer, 0, result);
+                    dataLen -= result;
+                }
+                out.close();
+            } catch (SQLException e) {
+                // Transform setBinaryStream SQLException
+                throw new IOException(e.getMessage());
+            }
+        }
+        return clob;
+    }
+
     /**
      * Retrieve the signed status of the column.
      *
@@ -1215,6 +1344,16 @@ public class TdsData {
         return types[type].size != -4;
     }
 
+    /**
+     * Determines whether the values of a column are sent with a text pointer.
+     *
+     * @param ci the column meta data
+     * @return <code>true</code> if the column is a text or image type.
+     */
+    static boolean hasTextPtr(ColInfo ci) {
+        return !isSearchable(ci);
+    }
+
     /**
      * Determines whether the column is Unicode encoded.
      *
@@ -1335,7 +1474,7 @@ public class TdsData {
                         // column actually is unitext.
                         try {
                             String tmp = pi.getString(charset);
-                            if (!canEncode(tmp, charset)) {
+                            if (!connection.getCharsetInfo().canEncode(tmp)) {
                                 // Conversion fails need to send as unicode.
                                 pi.length  = tmp.length();
                                 if (pi.length > SYB_LONGVAR_MAX / 2) {
@@ -2076,6 +2215,37 @@ public class TdsData {
         }
     }
 
+    /**
+     * Retrieves the bytes of a character parameter unless its value is a
+     * <code>String</code>, which is encoded by the request stream instead.
+     *
+     * @param pi the parameter descriptor
+     * @return the bytes or <code>null</code> for a <code>String</code> value
+     */
+    private static byte[] encodeParam(ParamInfo pi)
+            throws IOException {
+        if (pi.value instanceof String) {
+            return null;
+        }
+        return pi.getBytes(pi.charsetInfo.getCharset());
+    }
+
+    /**
+     * Writes the bytes of a character parameter, or the <code>String</code>
+     * value prepared by {@link RequestStream#encode} if <code>null</code>.
+     *
+     * @param out the server request stream
+     * @param buf the bytes or <code>null</code>
+     */
+    private static void writeEncoded(RequestStream out, byte[] buf)
+            throws IOException {
+        if (buf == null) {
+            out.writeEncoded();
+        } else {
+            out.write(buf);
+        }
+    }
+
     /**
      * Write a parameter to the server request stream.
      *
@@ -2116,18 +2286,19 @@ public class TdsData {
 
                     out.write((short) 0xFFFF);
                 } else {
-                    buf = pi.getBytes(pi.charsetInfo.getCharset());
+                    buf = encodeParam(pi);
+                    len = (buf == null) ? out.encode((String) pi.value, pi.charsetInfo) : buf.length;
 
-                    if (buf.length > MS_LONGVAR_MAX) {
+                    if (len > MS_LONGVAR_MAX) {
                         out.write((byte) SYBTEXT);
-                        out.write(buf.length);
+                        out.write(len);
 
                         if (isTds8) {
                             putCollation(out, pi);
                         }
 
-                        out.write(buf.length);
-                        out.write(buf);
+                        out.write(len);
+                        writeEncoded(out, buf);
                     } else {
                         out.write((byte) pi.tdsType);
                         out.write((short) MS_LONGVAR_MAX);
@@ -2136,8 +2307,8 @@ public class TdsData {
                             putCollation(out, pi);
                         }
 
-                        out.write((short) buf.length);
-                        out.write(buf);
+                        out.write((short) len);
+                        writeEncoded(out, buf);
                     }
                 }
 
@@ -2149,10 +2320,11 @@ public class TdsData {
                     out.write((byte) VAR_MAX);
                     out.write((byte) 0);
                 } else {
-                    buf = pi.getBytes(pi.charsetInfo.getCharset());
+                    buf = encodeParam(pi);
+                    len = (buf == null) ? out.encode((String) pi.value, pi.charsetInfo) : buf.length;
 
-                    if (buf.length > VAR_MAX) {
-                        if (buf.length <= MS_LONGVAR_MAX && out.getTdsVersion() >= Driver.TDS70) {
+                    if (len > VAR_MAX) {
+                        if (len <= MS_LONGVAR_MAX && out.getTdsVersion() >= Driver.TDS70) {
                             out.write((byte) XSYBVARCHAR);
                             out.write((short) MS_LONGVAR_MAX);
 
@@ -2160,29 +2332,30 @@ public class TdsData {
                                 putCollation(out, pi);
                             }
 
-                            out.write((short) buf.length);
-                            out.write(buf);
+                            out.write((short) len);
+                            writeEncoded(out, buf);
                         } else {
                             out.write((byte) SYBTEXT);
-                            out.write(buf.length);
+                            out.write(len);
 
                             if (isTds8) {
                                 putCollation(out, pi);
                             }
 
-                            out.write(buf.length);
-                            out.write(buf);
+                            out.write(len);
+                            writeEncoded(out, buf);
                         }
                     } else {
-                        if (buf.length == 0) {
+                        if (len == 0) {
                             buf = new byte[1];
                             buf[0] = ' ';
+                            len = 1;
                         }
 
                         out.write((byte) pi.tdsType);
                         out.write((byte) VAR_MAX);
-                        out.write((byte) buf.length);
-                        out.write(buf);
+                        out.write((byte) len);
+                        writeEncoded(out, buf);
                     }
                 }
 
@@ -2838,61 +3011,6 @@ public class TdsData {
         }
     }
 
-    /**
-     * Establish if a String can be converted to a byte based character set.
-     *
-     * @param value The String to test.
-     * @param charset The server character set in force.
-     * @return <code>boolean</code> true if string can be converted.
-     */
-    private static boolean canEncode(String value, String charset)
-    {
-        if (value == null) {
-            return true;
-        }
-        if ("UTF-8".equals(charset)) {
-            // Should be no problem with UTF-8
-            return true;
-        }
-        if ("ISO-8859-1".equals(charset)) {
-            // ISO_1 = lower byte of unicode
-            for (int i = value.length() - 1; i >= 0; i--) {
-                if (value.charAt(i) > 255) {
-                    return false; // Outside range
-                }
-            }
-            return true;
-        }
-        if ("ISO-8859-15".equals(charset) || "Cp1252".equals(charset)) {
-            // These will accept euro symbol
-            for (int i = value.length() - 1; i >= 0; i--) {
-                // FIXME This is not correct! Cp1252 also contains other characters.
-                // No: I think it is OK the point is to ensure that all characters are either
-                // < 256 in which case the sets are the same or the euro which is convertable.
-                // Any other combination will cause the string to be sent as unicode.
-                char c = value.charAt(i);
-                if (c > 255 && c != 0x20AC) {
-                    return false; // Outside range
-                }
-            }
-            return true;
-        }
-        if ("US-ASCII".equals(charset)) {
-            for (int i = value.length() - 1; i >= 0; i--) {
-                if (value.charAt(i) > 127) {
-                    return false; // Outside range
-                }
-            }
-            return true;
-        }
-        // OK need to do an expensive check
-        try {
-            return new String(value.getBytes(charset), charset).equals(value);
-        } catch (UnsupportedEncodingException e) {
-            return false;
-        }
-    }
-
    static boolean isMSSQL2005Plus( JtdsConnection connection )
    {
       return connection.getServerType() == Driver.SQLSERVER && connection.getDatabaseMajorVersion() > 8;
@@ -0,0 +1,329 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package net.sourceforge.jtds.jdbc.cache;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p> Bounded cache for any type of object, safe for use by many threads. </p>
+ *
+ * <p> Reads are lock-free, they only look up the {@link ConcurrentHashMap}
+ * backing the cache and mark the entry as recently used. Eviction follows the
+ * CLOCK algorithm (an approximation of LRU): when the cache is full, the clock
+ * hand sweeps over the entries, clearing the reference marks, and evicts the
+ * first entry that has not been used since the hand passed it last. Only
+ * {@link #put(Object, Object)} is synchronized. </p>
+ *
+ * <p> To prevent keys that are only used once (e.g. dynamically built SQL)
+ * from evicting frequently used entries, a full cache only admits a new key on
+ * its second insertion attempt. Recently rejected keys are remembered by their
+ * hash code in a small "doorkeeper" table. </p>
+ */
+public class ConcurrentLRUCache<K,V>
+{
+
+   // private types ////////////////////////////////////////////////////////////
+
+   /**
+    * cache entry, also occupying a slot in the clock
+    */
+   private static final class Entry<K,V>
+   {
+      final K          key;
+      volatile V       value;
+      volatile boolean referenced;
+
+      Entry( K key, V value )
+      {
+         this.key   = key;
+         this.value = value;
+      }
+   }
+
+   /**
+    * counter striped over several cache lines, selected by thread, so that
+    * lookups by concurrent threads rarely update the same memory
+    */
+   private static final class Counter
+   {
+      /**
+       * distance between two stripes, 128 bytes to avoid false sharing
+       */
+      private static final int STRIDE = 16;
+
+      private final AtomicLongArray _Cells;
+      private final int             _Mask;
+
+      Counter()
+      {
+         int stripes = 1;
+         while( stripes < Runtime.getRuntime().availableProcessors() * 2 )
+            stripes <<= 1;
+
+         _Mask  = stripes - 1;
+         _Cells = new AtomicLongArray( stripes * STRIDE );
+      }
+
+      void increment()
+      {
+         _Cells.incrementAndGet( (int) ( Thread.currentThread().getId() & _Mask ) * STRIDE );
+      }
+
+      long get()
+      {
+         long sum = 0;
+
+         for( int i = 0; i < _Cells.length(); i += STRIDE )
+            sum += _Cells.get( i );
+
+         return sum;
+      }
+   }
+
+   // private instance fields //////////////////////////////////////////////////
+
+   /**
+    * maximum number of entries in this cache
+    */
+   private final int                           _Limit;
+
+   /**
+    * map backing the cache
+    */
+   private final ConcurrentHashMap<K,Entry<K,V>> _Map;
+
+   /**
+    * ring of cache entries, guarded by its own monitor
+    */
+   private final ArrayList<Entry<K,V>>         _Clock;
+
+   /**
+    * current position of the clock hand
+    */
+   private int                                 _Hand;
+
+   /**
+    * hash codes of keys recently rejected by the admission policy
+    */
+   private final int[]                         _Doorkeeper;
+
+   /**
+    * number of successful lookups
+    */
+   private final Counter                       _Hits     = new Counter();
+
+   /**
+    * number of failed lookups
+    */
+   private final Counter                       _Misses   = new Counter();
+
+   /**
+    * number of entries not admitted to the full cache, guarded by the clock
+    */
+   private volatile long                       _Rejected;
+
+   // public constructors //////////////////////////////////////////////////////
+
+   /**
+    * <P> Constructs a new cache with a limited capacity. </p>
+    *
+    * @param limit
+    *    maximum number of entries in this cache, {@code 0} to disable caching
+    */
+   public ConcurrentLRUCache( final int limit )
+   {
+      _Limit = Math.max( 0, limit );
+      _Map   = new ConcurrentHashMap<K,Entry<K,V>>( _Limit + 10, 0.75f, Runtime.getRuntime().availableProcessors() * 2 );
+      _Clock = new ArrayList<Entry<K,V>>( _Limit );
+
+      int doorkeeper = 16;
+      while( doorkeeper < _Limit * 2 )
+         doorkeeper <<= 1;
+
+      _Doorkeeper = new int[doorkeeper];
+   }
+
+   // public methods ///////////////////////////////////////////////////////////
+
+   /**
+    * <p> Get the value associated with the given key, if any. This method does
+    * not block. </p>
+    *
+    * @see
+    *    java.util.Map#get(Object)
+    *
+    * @param key
+    *    the key whose associated value is to be returned
+    *
+    * @return
+    *    the value to which the specified key is mapped, or {@code null} if this
+    *    cache contains no mapping for the key
+    */
+   public V get( K key )
+   {
+      Entry<K,V> entry = _Map.get( key );
+
+      if( entry == null )
+      {
+         _Misses.increment();
+         return null;
+      }
+
+      // avoid the volatile write if the entry has been marked before
+      if( ! entry.referenced )
+         entry.referenced = true;
+
+      _Hits.increment();
+      return entry.value;
+   }
+
+   /**
+    * <p> Updates the cache by adding a new entry. If the cache is full, the
+    * entry is only added if the key has been rejected recently, i.e. if it's
+    * not a one-off key. </p>
+    *
+    * @param key
+    *    key with which the specified value is to be associated
+    *
+    * @param value
+    *    value to be associated with the specified key
+    *
+    * @return
+    *    {@code true} if the entry has been added or updated, {@code false} if
+    *    it has not been admitted to the cache
+    */
+   public boolean put( K key, V value )
+   {
+      if( _Limit == 0 )
+         return false;
+
+      synchronized( _Clock )
+      {
+         Entry<K,V> entry = _Map.get( key );
+
+         if( entry != null )
+         {
+            entry.value = value;
+            return true;
+         }
+
+         entry = new Entry<K,V>( key, value );
+
+         if( _Clock.size() < _Limit )
+         {
+            _Clock.add( entry );
+         }
+         else
+         {
+            if( ! admit( key ) )
+            {
+               _Rejected ++;
+               return false;
+            }
+
+            // advance the clock hand to the next entry not used recently
+            Entry<K,V> victim;
+            while( ( victim = _Clock.get( _Hand ) ).referenced )
+            {
+               victim.referenced = false;
+               _Hand = ( _Hand + 1 ) % _Limit;
+            }
+
+            _Map.remove( victim.key );
+            _Clock.set( _Hand, entry );
+            _Hand = ( _Hand + 1 ) % _Limit;
+         }
+
+         _Map.put( key, entry );
+         return true;
+      }
+   }
+
+   /**
+    * @return
+    *    the maximum number of entries in this cache
+    */
+   public int getLimit()
+   {
+      return _Limit;
+   }
+
+   /**
+    * @return
+    *    the current number of entries in this cache
+    */
+   public int size()
+   {
+      return _Map.size();
+   }
+
+   /**
+    * @return
+    *    the number of lookups that found an entry
+    */
+   public long getHits()
+   {
+      return _Hits.get();
+   }
+
+   /**
+    * @return
+    *    the number of lookups that didn't find an entry
+    */
+   public long getMisses()
+   {
+      return _Misses.get();
+   }
+
+   /**
+    * @return
+    *    the number of entries not admitted to the full cache
+    */
+   public long getRejected()
+   {
+      return _Rejected;
+   }
+
+   // private methods //////////////////////////////////////////////////////////
+
+   /**
+    * <p> Admission policy for a full cache, called with the clock locked. A key
+    * is admitted if its hash code is found in the doorkeeper table, otherwise
+    * the hash code is recorded for the next attempt. </p>
+    */
+   private boolean admit( K key )
+   {
+      int hash = key.hashCode();
+      hash ^= hash >>> 16;
+      hash  = hash == 0 ? 1 : hash;
+
+      int index = hash & ( _Doorkeeper.length - 1 );
+
+      if( _Doorkeeper[index] == hash )
+      {
+         _Doorkeeper[index] = 0;
+         return true;
+      }
+
+      _Doorkeeper[index] = hash;
+      return false;
+   }
+
+}
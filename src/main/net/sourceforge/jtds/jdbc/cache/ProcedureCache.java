@@ -36,7 +36,7 @@ public class ProcedureCache implements StatementCache {
      * implement the LRU logic.
      */
     private static class CacheEntry {
-        String key;
+        Object key;
         ProcEntry value;
         CacheEntry next;
         CacheEntry prior;
@@ -48,7 +48,7 @@ public class ProcedureCache implements StatementCache {
          * @param key   key used to identify the cache entry
          * @param value object being cached
          */
-        CacheEntry(String key, ProcEntry value) {
+        CacheEntry(Object key, ProcEntry value) {
             this.key = key;
             this.value = value;
         }
@@ -112,7 +112,7 @@ public class ProcedureCache implements StatementCache {
      * @return the keyed entry as an <code>Object</code> or null if the entry
      *         does not exist
      */
-    public synchronized Object get(String key) {
+    public synchronized Object get(Object key) {
         CacheEntry ce = (CacheEntry) cache.get(key);
         if (ce != null) {
             // remove entry from linked list
@@ -136,7 +136,7 @@ public class ProcedureCache implements StatementCache {
      * @param key    value used to identify the entry
      * @param handle proc entry to be inserted into the cache
      */
-    public synchronized void put(String key, Object handle) {
+    public synchronized void put(Object key, Object handle) {
         // Increment usage count
         ((ProcEntry) handle).addRef();
 
@@ -154,7 +154,7 @@ public class ProcedureCache implements StatementCache {
      *
      * @param key value that identifies the cache entry
      */
-    public synchronized void remove(String key) {
+    public synchronized void remove(Object key) {
         CacheEntry ce = (CacheEntry) cache.get(key);
         if (ce != null) {
             // remove entry from linked list
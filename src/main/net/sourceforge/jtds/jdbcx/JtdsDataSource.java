@@ -96,7 +96,7 @@ public class JtdsDataSource implements DataSource, ConnectionPoolDataSource, XAD
    public XAConnection getXAConnection()
       throws SQLException
    {
-      return new JtdsXAConnection( this, getConnection( (String) _Config.get( Driver.USER ), (String) _Config.get( Driver.PASSWORD ) ) );
+      return new JtdsXAConnection( this, connect( (String) _Config.get( Driver.USER ), (String) _Config.get( Driver.PASSWORD ) ) );
    }
 
    /**
@@ -113,7 +113,7 @@ public class JtdsDataSource implements DataSource, ConnectionPoolDataSource, XAD
    public XAConnection getXAConnection( String user, String password )
       throws SQLException
    {
-      return new JtdsXAConnection( this, getConnection( user, password ) );
+      return new JtdsXAConnection( this, connect( user, password ) );
    }
 
    /**
@@ -142,6 +142,24 @@ public class JtdsDataSource implements DataSource, ConnectionPoolDataSource, XAD
     */
    public Connection getConnection( String user, String password )
       throws SQLException
+   {
+      return connect( user, password );
+   }
+
+   /**
+    * Opens a new physical database connection for the user and password
+    * specified.
+    *
+    * @param user
+    * the user name to connect with
+    * @param password
+    * the password to connect with
+    * @return a new database connection
+    * @throws SQLException
+    * if an error occurs
+    */
+   Connection connect( String user, String password )
+      throws SQLException
    {
       String servername = (String) _Config.get( Driver.SERVERNAME );
       String servertype = (String) _Config.get( Driver.SERVERTYPE );
@@ -237,7 +255,7 @@ public class JtdsDataSource implements DataSource, ConnectionPoolDataSource, XAD
    public synchronized javax.sql.PooledConnection getPooledConnection( String user, String password )
       throws SQLException
    {
-      return new net.sourceforge.jtds.jdbcx.PooledConnection( getConnection( user, password ) );
+      return new net.sourceforge.jtds.jdbcx.PooledConnection( connect( user, password ) );
    }
 
    //
@@ -684,6 +702,66 @@ public class JtdsDataSource implements DataSource, ConnectionPoolDataSource, XAD
       return Boolean.valueOf( (String) _Config.get( Driver.USEJCIFS ) ).booleanValue();
    }
 
+   public void setParserCacheSize( int parserCacheSize )
+   {
+      _Config.put( Driver.PARSERCACHESIZE, String.valueOf( parserCacheSize ) );
+   }
+
+   public int getParserCacheSize()
+   {
+      return getIntProperty( Driver.PARSERCACHESIZE );
+   }
+
+   public void setMultiSubnetFailover( boolean multiSubnetFailover )
+   {
+      _Config.put( Driver.MULTISUBNETFAILOVER, String.valueOf( multiSubnetFailover ) );
+   }
+
+   public boolean getMultiSubnetFailover()
+   {
+      return Boolean.valueOf( (String) _Config.get( Driver.MULTISUBNETFAILOVER ) ).booleanValue();
+   }
+
+   public void setConnectionRecovery( boolean connectionRecovery )
+   {
+      _Config.put( Driver.CONNECTIONRECOVERY, String.valueOf( connectionRecovery ) );
+   }
+
+   public boolean getConnectionRecovery()
+   {
+      return Boolean.valueOf( (String) _Config.get( Driver.CONNECTIONRECOVERY ) ).booleanValue();
+   }
+
+   public void setStreamLOBs( boolean streamLOBs )
+   {
+      _Config.put( Driver.STREAMLOBS, String.valueOf( streamLOBs ) );
+   }
+
+   public boolean getStreamLOBs()
+   {
+      return Boolean.valueOf( (String) _Config.get( Driver.STREAMLOBS ) ).booleanValue();
+   }
+
+   public void setLobMemory( int lobMemory )
+   {
+      _Config.put( Driver.LOBMEMORY, String.valueOf( lobMemory ) );
+   }
+
+   public int getLobMemory()
+   {
+      return getIntProperty( Driver.LOBMEMORY );
+   }
+
+   public void setLobLocators( boolean lobLocators )
+   {
+      _Config.put( Driver.LOBLOCATORS, String.valueOf( lobLocators ) );
+   }
+
+   public boolean getLobLocators()
+   {
+      return Boolean.valueOf( (String) _Config.get( Driver.LOBLOCATORS ) ).booleanValue();
+   }
+
    private void addNonNullProperties( Properties props, String user, String password )
    {
       Iterator it = _Config.entrySet().iterator();
@@ -735,7 +813,7 @@ public class JtdsDataSource implements DataSource, ConnectionPoolDataSource, XAD
     * (non-Javadoc)
     * @see java.sql.Wrapper#isWrapperFor(java.lang.Class)
     */
-   public boolean isWrapperFor( Class arg0 )
+   public boolean isWrapperFor( Class<?> arg0 )
    {
       // TODO Auto-generated method stub
       throw new AbstractMethodError();
@@ -745,7 +823,7 @@ public class JtdsDataSource implements DataSource, ConnectionPoolDataSource, XAD
     * (non-Javadoc)
     * @see java.sql.Wrapper#unwrap(java.lang.Class)
     */
-   public Object unwrap( Class arg0 )
+   public <T> T unwrap( Class<T> arg0 )
    {
       // TODO Auto-generated method stub
       throw new AbstractMethodError();
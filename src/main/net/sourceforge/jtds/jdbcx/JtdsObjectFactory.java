@@ -48,8 +48,9 @@ public class JtdsObjectFactory implements ObjectFactory
       throws Exception
    {
       Reference ref = (Reference) refObj;
+      String className = ref.getClassName();
 
-      if( ref.getClassName().equals( JtdsDataSource.class.getName() ) )
+      if( className.equals( JtdsDataSource.class.getName() ) || className.equals( JtdsPoolingDataSource.class.getName() ) )
       {
          HashMap props = loadProps( ref, new String[]
          {
@@ -96,9 +97,20 @@ public class JtdsObjectFactory implements ObjectFactory
             Driver.USER,
             Driver.SENDSTRINGPARAMETERSASUNICODE,
             Driver.WSID,
-            Driver.XAEMULATION
+            Driver.XAEMULATION,
+            Driver.PARSERCACHESIZE,
+            Driver.MULTISUBNETFAILOVER,
+            Driver.CONNECTIONRECOVERY,
+            Driver.STREAMLOBS,
+            Driver.LOBMEMORY,
+            Driver.LOBLOCATORS
          } );
 
+         if( className.equals( JtdsPoolingDataSource.class.getName() ) )
+         {
+            return new JtdsPoolingDataSource( props, ref );
+         }
+
          return new JtdsDataSource( props );
       }
 
@@ -0,0 +1,959 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package net.sourceforge.jtds.jdbcx;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.naming.RefAddr;
+import javax.naming.Reference;
+import javax.naming.StringRefAddr;
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+
+import net.sourceforge.jtds.jdbc.JtdsConnection;
+import net.sourceforge.jtds.jdbc.Messages;
+import net.sourceforge.jtds.util.Logger;
+
+/**
+ * <p> A jTDS <code>DataSource</code> with a built-in connection pool. </p>
+ *
+ * <p> Connections obtained by {@link #getConnection()} are taken from the pool
+ * and returned to it when closed by the application. Borrowing and returning
+ * connections doesn't take any locks as long as the pool isn't exhausted, idle
+ * connections are kept in a LIFO queue so that the most recently used (and
+ * thus most likely still valid) connection is handed out first. </p>
+ *
+ * <p> A background thread closes connections idle for longer than
+ * {@link #getMaxIdleTime()} seconds, validates idle connections every
+ * {@link #getValidationInterval()} seconds and keeps at least
+ * {@link #getMinPoolSize()} connections open. Additionally, up to
+ * {@link #getSpareConnections()} idle connections are kept ready so that a
+ * burst of requests doesn't have to wait for new logins; new connections are
+ * opened in parallel by a small set of warm-up threads. The pool settings are
+ * read when the pool is started by the first call to
+ * <code>getConnection()</code>. </p>
+ *
+ * <p> Connections for a user other than the configured one are not pooled. </p>
+ */
+public class JtdsPoolingDataSource extends JtdsDataSource
+{
+
+   /**
+    * serial version UID
+    */
+   static final long           serialVersionUID  = 01010001L;
+
+   static final String         MINPOOLSIZE        = "minPoolSize";
+   static final String         MAXPOOLSIZE        = "maxPoolSize";
+   static final String         MAXIDLETIME        = "maxIdleTime";
+   static final String         VALIDATIONINTERVAL = "validationInterval";
+   static final String         SPARECONNECTIONS   = "spareConnections";
+
+   /**
+    * maximum number of connections opened in parallel by the warm-up threads
+    */
+   private static final int    WARMUP_THREADS     = 4;
+
+   /**
+    * time in seconds to wait for the server when validating a connection
+    */
+   private static final int    VALIDATION_TIMEOUT = 5;
+
+   /**
+    * minimum number of connections to keep open
+    */
+   private volatile int        _MinPoolSize        = 0;
+
+   /**
+    * maximum number of open connections
+    */
+   private volatile int        _MaxPoolSize        = 10;
+
+   /**
+    * time in seconds after which idle connections are closed, {@code 0} to
+    * keep connections open forever
+    */
+   private volatile int        _MaxIdleTime        = 600;
+
+   /**
+    * interval in seconds for validating idle connections, {@code 0} to
+    * disable validation
+    */
+   private volatile int        _ValidationInterval = 60;
+
+   /**
+    * number of idle connections to keep ready for new requests
+    */
+   private volatile int        _SpareConnections   = 0;
+
+   /**
+    * the connection pool, started on first use
+    */
+   private transient volatile Pool _Pool;
+
+   /**
+    * notified of connections found broken, see {@link #setFailureListener}
+    */
+   private transient volatile ConnectionEventListener _FailureListener;
+
+   /**
+    * Constructs a configured DataSource.
+    */
+   JtdsPoolingDataSource( HashMap<?,?> config, Reference ref )
+   {
+      super( config );
+
+      _MinPoolSize        = getIntRefAddr( ref, MINPOOLSIZE       , _MinPoolSize        );
+      _MaxPoolSize        = getIntRefAddr( ref, MAXPOOLSIZE       , _MaxPoolSize        );
+      _MaxIdleTime        = getIntRefAddr( ref, MAXIDLETIME       , _MaxIdleTime        );
+      _ValidationInterval = getIntRefAddr( ref, VALIDATIONINTERVAL, _ValidationInterval );
+      _SpareConnections   = getIntRefAddr( ref, SPARECONNECTIONS  , _SpareConnections   );
+   }
+
+   /**
+    * Constructs a new pooling DataSource.
+    */
+   public JtdsPoolingDataSource()
+   {
+      super();
+   }
+
+   /**
+    * Returns a pooled database connection.
+    *
+    * @return a database connection
+    * @throws SQLException
+    * if an error occurs
+    */
+   @Override
+   public Connection getConnection()
+      throws SQLException
+   {
+      return getPool().borrow();
+   }
+
+   /**
+    * Returns a database connection for the user and password specified. If
+    * these are the configured user and password, the connection is taken
+    * from the pool.
+    *
+    * @param user
+    * the user name to connect with
+    * @param password
+    * the password to connect with
+    * @return a database connection
+    * @throws SQLException
+    * if an error occurs
+    */
+   @Override
+   public Connection getConnection( String user, String password )
+      throws SQLException
+   {
+      if( equal( user, getUser() ) && equal( password, getPassword() ) )
+      {
+         return getPool().borrow();
+      }
+
+      return connect( user, password );
+   }
+
+   /**
+    * <p> Closes all idle connections and stops the pool. Connections in use
+    * are closed as soon as they are returned to the pool. A subsequent call
+    * to <code>getConnection()</code> starts a new pool. </p>
+    */
+   public void close()
+   {
+      Pool pool;
+
+      synchronized( this )
+      {
+         pool  = _Pool;
+         _Pool = null;
+      }
+
+      if( pool != null )
+      {
+         pool.close();
+      }
+   }
+
+   /**
+    * @return
+    *    the number of connections currently borrowed from the pool
+    */
+   public int getActiveConnections()
+   {
+      Pool pool = _Pool;
+      return pool == null ? 0 : pool._InUse.size();
+   }
+
+   /**
+    * @return
+    *    the number of idle connections in the pool
+    */
+   public int getIdleConnections()
+   {
+      Pool pool = _Pool;
+      return pool == null ? 0 : pool._Idle.size();
+   }
+
+   /**
+    * <p> Returns the average time spent in each phase of the connection setup
+    * (see {@link JtdsConnection#LOGIN_PHASES}) for the connections opened by
+    * the pool, e.g. <code>"3 logins, lookup 0 ms, connect 2.1 ms, ..."</code>.
+    * </p>
+    *
+    * @return
+    *    the login statistics
+    */
+   public String getLoginStatistics()
+   {
+      Pool pool = _Pool;
+      return pool == null ? "0 logins" : pool.getLoginStatistics();
+   }
+
+   @Override
+   public Reference getReference()
+   {
+      Reference ref = super.getReference();
+
+      ref.add( new StringRefAddr( MINPOOLSIZE       , String.valueOf( _MinPoolSize        ) ) );
+      ref.add( new StringRefAddr( MAXPOOLSIZE       , String.valueOf( _MaxPoolSize        ) ) );
+      ref.add( new StringRefAddr( MAXIDLETIME       , String.valueOf( _MaxIdleTime        ) ) );
+      ref.add( new StringRefAddr( VALIDATIONINTERVAL, String.valueOf( _ValidationInterval ) ) );
+      ref.add( new StringRefAddr( SPARECONNECTIONS  , String.valueOf( _SpareConnections   ) ) );
+
+      return ref;
+   }
+
+   //
+   // Getters and setters
+   //
+
+   public void setMinPoolSize( int minPoolSize )
+   {
+      _MinPoolSize = minPoolSize;
+   }
+
+   public int getMinPoolSize()
+   {
+      return _MinPoolSize;
+   }
+
+   public void setMaxPoolSize( int maxPoolSize )
+   {
+      _MaxPoolSize = maxPoolSize;
+   }
+
+   public int getMaxPoolSize()
+   {
+      return _MaxPoolSize;
+   }
+
+   public void setMaxIdleTime( int maxIdleTime )
+   {
+      _MaxIdleTime = maxIdleTime;
+   }
+
+   public int getMaxIdleTime()
+   {
+      return _MaxIdleTime;
+   }
+
+   public void setValidationInterval( int validationInterval )
+   {
+      _ValidationInterval = validationInterval;
+   }
+
+   public int getValidationInterval()
+   {
+      return _ValidationInterval;
+   }
+
+   public void setSpareConnections( int spareConnections )
+   {
+      _SpareConnections = spareConnections;
+   }
+
+   public int getSpareConnections()
+   {
+      return _SpareConnections;
+   }
+
+   /**
+    * Sets a listener notified (via <code>connectionErrorOccurred</code>) of
+    * every connection found broken, either while in use by the application or
+    * by the validation of idle connections. Used for tracking the health of
+    * the server.
+    *
+    * @param listener
+    *    the listener or {@code null}
+    */
+   void setFailureListener( ConnectionEventListener listener )
+   {
+      _FailureListener = listener;
+   }
+
+   /**
+    * Notifies the failure listener, if any, of a broken connection.
+    *
+    * @param event
+    *    the event describing the failure
+    */
+   void connectionFailed( ConnectionEvent event )
+   {
+      ConnectionEventListener listener = _FailureListener;
+
+      if( listener != null )
+         listener.connectionErrorOccurred( event );
+   }
+
+   // private methods //////////////////////////////////////////////////////////
+
+   /**
+    * Get the connection pool, starting it if required.
+    */
+   private Pool getPool()
+   {
+      Pool pool = _Pool;
+
+      if( pool == null )
+      {
+         synchronized( this )
+         {
+            pool = _Pool;
+
+            if( pool == null )
+            {
+               _Pool = pool = new Pool( this );
+            }
+         }
+      }
+
+      return pool;
+   }
+
+   private static boolean equal( String s1, String s2 )
+   {
+      return s1 == null ? s2 == null : s1.equals( s2 );
+   }
+
+   /**
+    * Create a factory for daemon threads with the given name.
+    */
+   private static ThreadFactory daemonThreads( final String name )
+   {
+      return new ThreadFactory()
+      {
+         public Thread newThread( Runnable r )
+         {
+            Thread thread = new Thread( r, name );
+            thread.setDaemon( true );
+            return thread;
+         }
+      };
+   }
+
+   private static int getIntRefAddr( Reference ref, String name, int def )
+   {
+      RefAddr addr = ref.get( name );
+      return addr == null ? def : Integer.parseInt( (String) addr.getContent() );
+   }
+
+   // private types ////////////////////////////////////////////////////////////
+
+   /**
+    * a physical connection managed by the pool
+    */
+   private static final class Member
+   {
+      final PooledConnection pooled;
+
+      /**
+       * auto commit mode of the connection when it was opened
+       */
+      final boolean          autoCommit;
+
+      /**
+       * time the connection has been returned to the pool
+       */
+      volatile long          lastUsed;
+
+      /**
+       * time the connection has been validated last
+       */
+      volatile long          lastValidated;
+
+      Member( PooledConnection pooled, boolean autoCommit )
+      {
+         this.pooled        = pooled;
+         this.autoCommit    = autoCommit;
+         this.lastUsed      = System.currentTimeMillis();
+         this.lastValidated = lastUsed;
+      }
+   }
+
+   /**
+    * the connection pool
+    */
+   private static final class Pool implements ConnectionEventListener
+   {
+
+      private final JtdsPoolingDataSource                        _DataSource;
+      private final int                                          _Min;
+      private final int                                          _Max;
+      private final long                                         _MaxIdle;
+      private final long                                         _Interval;
+      private final int                                          _Timeout;
+      private final int                                          _Spare;
+
+      /**
+       * idle connections, most recently used first
+       */
+      final ConcurrentLinkedDeque<Member>                        _Idle  = new ConcurrentLinkedDeque<Member>();
+
+      /**
+       * connections currently borrowed from the pool
+       */
+      final ConcurrentHashMap<PooledConnection,Member>           _InUse = new ConcurrentHashMap<PooledConnection,Member>();
+
+      /**
+       * permits to borrow a connection, granted in request order
+       */
+      private final Semaphore                                    _Permits;
+
+      /**
+       * signalled when an idle connection is added or a connection closed,
+       * for borrowers holding a permit while no connection is available
+       */
+      private final ReentrantLock                                _Lock = new ReentrantLock();
+      private final Condition                                    _Available = _Lock.newCondition();
+
+      /**
+       * number of open physical connections
+       */
+      private final AtomicInteger                                _Total = new AtomicInteger();
+
+      /**
+       * number of connections being opened by the warm-up threads
+       */
+      private final AtomicInteger                                _Warming = new AtomicInteger();
+
+      /**
+       * number of logins and the sum of their phase durations in microseconds
+       */
+      private final AtomicInteger                                _Logins = new AtomicInteger();
+      private final AtomicLongArray                              _LoginTimes = new AtomicLongArray( JtdsConnection.LOGIN_PHASES.length );
+
+      private final ScheduledExecutorService                     _Housekeeper;
+
+      private final ThreadPoolExecutor                           _WarmUp;
+
+      private volatile boolean                                   _Closed;
+
+      Pool( JtdsPoolingDataSource dataSource )
+      {
+         _DataSource = dataSource;
+         _Max        = Math.max( 1, dataSource.getMaxPoolSize() );
+         _Min        = Math.min( _Max, Math.max( 0, dataSource.getMinPoolSize() ) );
+         _MaxIdle    = dataSource.getMaxIdleTime() * 1000L;
+         _Interval   = dataSource.getValidationInterval() * 1000L;
+         _Timeout    = dataSource.getLoginTimeout();
+         _Spare      = Math.max( 0, dataSource.getSpareConnections() );
+         _Permits    = new Semaphore( _Max, true );
+
+         long period = 30000;
+         if( _Interval > 0 ) period = Math.min( period, _Interval );
+         if( _MaxIdle  > 0 ) period = Math.min( period, _MaxIdle  );
+
+         _Housekeeper = Executors.newSingleThreadScheduledExecutor( daemonThreads( "jTDS connection pool" ) );
+
+         int threads = Math.min( WARMUP_THREADS, _Max );
+         _WarmUp = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), daemonThreads( "jTDS connection warm-up" ) );
+         _WarmUp.allowCoreThreadTimeOut( true );
+
+         _Housekeeper.scheduleWithFixedDelay( new Runnable()
+         {
+            public void run()
+            {
+               housekeeping();
+            }
+         }, 0, period, TimeUnit.MILLISECONDS );
+      }
+
+      /**
+       * Borrow a connection from the pool, waiting up to the login timeout
+       * if all connections are in use.
+       */
+      Connection borrow()
+         throws SQLException
+      {
+         if( _Closed )
+            throw new SQLException( Messages.get( "error.jdbcx.poolclosed" ), "08003" );
+
+         long deadline = _Timeout > 0 ? System.nanoTime() + TimeUnit.SECONDS.toNanos( _Timeout ) : 0;
+
+         try
+         {
+            if( deadline != 0 )
+            {
+               if( ! _Permits.tryAcquire( deadline - System.nanoTime(), TimeUnit.NANOSECONDS ) )
+                  throw new SQLException( Messages.get( "error.jdbcx.pooltimeout", String.valueOf( _Max ) ), "08001" );
+            }
+            else
+            {
+               _Permits.acquire();
+            }
+         }
+         catch( InterruptedException e )
+         {
+            Thread.currentThread().interrupt();
+            throw new SQLException( Messages.get( "error.jdbcx.pooltimeout", String.valueOf( _Max ) ), "08001" );
+         }
+
+         try
+         {
+            for( ;; )
+            {
+               Member member = _Idle.pollFirst();
+
+               if( member == null )
+               {
+                  int total = _Total.get();
+
+                  if( total < _Max )
+                  {
+                     if( _Total.compareAndSet( total, total + 1 ) )
+                        member = open();
+                  }
+                  else
+                  {
+                     // a connection is about to be returned or validated
+                     awaitAvailable( deadline );
+                  }
+               }
+
+               if( member != null )
+               {
+                  Connection con = member.pooled.getConnection();
+
+                  if( con != null )
+                  {
+                     _InUse.put( member.pooled, member );
+
+                     // replace the connection taken from the spare ones
+                     if( _Spare > 0 )
+                        warmUp();
+
+                     return con;
+                  }
+
+                  discard( member );
+               }
+            }
+         }
+         catch( SQLException e )
+         {
+            _Permits.release();
+            throw e;
+         }
+         catch( RuntimeException e )
+         {
+            _Permits.release();
+            throw e;
+         }
+      }
+
+      /**
+       * Wait until an idle connection is available or another one may be
+       * opened.
+       *
+       * @param deadline
+       *    the {@link System#nanoTime()} to give up at, {@code 0} to wait
+       *    without a time limit
+       */
+      private void awaitAvailable( long deadline )
+         throws SQLException
+      {
+         _Lock.lock();
+
+         try
+         {
+            while( _Idle.isEmpty() && _Total.get() >= _Max && ! _Closed )
+            {
+               if( deadline == 0 )
+               {
+                  _Available.await();
+               }
+               else
+               {
+                  long nanos = deadline - System.nanoTime();
+
+                  if( nanos <= 0 )
+                     throw new SQLException( Messages.get( "error.jdbcx.pooltimeout", String.valueOf( _Max ) ), "08001" );
+
+                  _Available.awaitNanos( nanos );
+               }
+            }
+         }
+         catch( InterruptedException e )
+         {
+            Thread.currentThread().interrupt();
+            throw new SQLException( Messages.get( "error.jdbcx.pooltimeout", String.valueOf( _Max ) ), "08001" );
+         }
+         finally
+         {
+            _Lock.unlock();
+         }
+
+         if( _Closed )
+            throw new SQLException( Messages.get( "error.jdbcx.poolclosed" ), "08003" );
+      }
+
+      /**
+       * Wake up the borrowers waiting for a connection.
+       */
+      private void signalAvailable()
+      {
+         _Lock.lock();
+
+         try
+         {
+            _Available.signalAll();
+         }
+         finally
+         {
+            _Lock.unlock();
+         }
+      }
+
+      /**
+       * Called by the pooled connection when the application closes the
+       * connection.
+       */
+      public void connectionClosed( ConnectionEvent event )
+      {
+         Member member = _InUse.remove( event.getSource() );
+
+         if( member == null )
+            return;
+
+         try
+         {
+            if( _Closed )
+            {
+               discard( member );
+               return;
+            }
+
+            reset( member );
+            member.lastUsed = System.currentTimeMillis();
+            _Idle.offerFirst( member );
+            signalAvailable();
+         }
+         catch( SQLException e )
+         {
+            discard( member );
+         }
+         finally
+         {
+            _Permits.release();
+         }
+      }
+
+      /**
+       * Called by the pooled connection if the connection is broken.
+       */
+      public void connectionErrorOccurred( ConnectionEvent event )
+      {
+         Member member = _InUse.remove( event.getSource() );
+
+         if( member != null )
+         {
+            discard( member );
+            _Permits.release();
+            _DataSource.connectionFailed( event );
+         }
+      }
+
+      /**
+       * Stop the pool and close all idle connections.
+       */
+      void close()
+      {
+         _Closed = true;
+         _Housekeeper.shutdownNow();
+         _WarmUp.shutdownNow();
+         signalAvailable();
+
+         Member member;
+         while( ( member = _Idle.pollFirst() ) != null )
+         {
+            discard( member );
+         }
+      }
+
+      /**
+       * Open a new physical connection, the caller has already incremented
+       * the number of connections.
+       */
+      private Member open()
+         throws SQLException
+      {
+         try
+         {
+            Connection con = _DataSource.connect( _DataSource.getUser(), _DataSource.getPassword() );
+
+            if( con instanceof JtdsConnection )
+            {
+               long[] times = ( (JtdsConnection) con ).getLoginTimes();
+
+               for( int i = 0; i < times.length; i ++ )
+               {
+                  _LoginTimes.addAndGet( i, times[i] );
+               }
+
+               _Logins.incrementAndGet();
+            }
+
+            PooledConnection pooled = new PooledConnection( con );
+            pooled.addConnectionEventListener( this );
+            return new Member( pooled, con.getAutoCommit() );
+         }
+         catch( SQLException e )
+         {
+            _Total.decrementAndGet();
+            signalAvailable();
+            throw e;
+         }
+         catch( RuntimeException e )
+         {
+            _Total.decrementAndGet();
+            signalAvailable();
+            throw e;
+         }
+      }
+
+      /**
+       * Close a physical connection.
+       */
+      private void discard( Member member )
+      {
+         _Total.decrementAndGet();
+         signalAvailable();
+
+         try
+         {
+            member.pooled.close();
+         }
+         catch( Exception e )
+         {
+            // the connection is likely to be broken already
+            if( Logger.isActive() )
+               Logger.println( "Failed to close pooled connection: " + e );
+         }
+      }
+
+      /**
+       * Reset the state of a connection returned by the application.
+       */
+      private void reset( Member member )
+         throws SQLException
+      {
+         Connection con = member.pooled.connection;
+
+         if( con == null || con.isClosed() )
+            throw new SQLException( Messages.get( "error.jdbcx.conclosed" ), "08003" );
+
+         // roll back right away, an idle connection mustn't hold any locks
+         if( ! con.getAutoCommit() )
+            con.rollback();
+
+         // let the server reset the session with the next request, if possible
+         if( ! member.pooled.reset() )
+            con.clearWarnings();
+
+         if( con.getAutoCommit() != member.autoCommit )
+            con.setAutoCommit( member.autoCommit );
+      }
+
+      /**
+       * Check if an idle connection is still usable.
+       */
+      private boolean validate( Member member )
+      {
+         try
+         {
+            if( ! member.pooled.validate( VALIDATION_TIMEOUT ) )
+               return false;
+
+            member.lastValidated = System.currentTimeMillis();
+            return true;
+         }
+         catch( SQLException e )
+         {
+            return false;
+         }
+      }
+
+      /**
+       * Close expired connections, validate idle connections and open new
+       * connections up to the minimum pool size. Called periodically by the
+       * housekeeper thread.
+       */
+      void housekeeping()
+      {
+         long now = System.currentTimeMillis();
+
+         // the least recently used connections are at the end of the queue
+         for( Iterator<Member> it = _Idle.descendingIterator(); it.hasNext() && ! _Closed; )
+         {
+            Member member = it.next();
+
+            if( _MaxIdle > 0 && now - member.lastUsed > _MaxIdle && _Total.get() > _Min )
+            {
+               if( _Idle.removeFirstOccurrence( member ) )
+                  discard( member );
+            }
+            else if( _Interval > 0 && now - member.lastValidated > _Interval )
+            {
+               // take the connection out of the pool while validating it
+               if( _Idle.removeFirstOccurrence( member ) )
+               {
+                  if( validate( member ) )
+                  {
+                     _Idle.offerLast( member );
+                     signalAvailable();
+                  }
+                  else
+                  {
+                     discard( member );
+                     _DataSource.connectionFailed( new ConnectionEvent( member.pooled, new SQLException( Messages.get( "error.jdbcx.conclosed" ), "08S01" ) ) );
+                  }
+               }
+            }
+         }
+
+         warmUp();
+      }
+
+      /**
+       * Open new connections in parallel up to the minimum pool size and the
+       * number of spare connections, without exceeding the maximum pool size.
+       */
+      void warmUp()
+      {
+         for( int total; ! _Closed && ( total = _Total.get() ) < _Max; )
+         {
+            if( total >= _Min && _Idle.size() + _Warming.get() >= _Spare )
+               return;
+
+            if( _Total.compareAndSet( total, total + 1 ) )
+            {
+               _Warming.incrementAndGet();
+
+               try
+               {
+                  _WarmUp.execute( new Runnable()
+                  {
+                     public void run()
+                     {
+                        warmUpConnection();
+                     }
+                  } );
+               }
+               catch( RejectedExecutionException e )
+               {
+                  // the pool has been closed
+                  _Warming.decrementAndGet();
+                  _Total.decrementAndGet();
+                  return;
+               }
+            }
+         }
+      }
+
+      /**
+       * Open a spare connection, run by the warm-up threads.
+       */
+      private void warmUpConnection()
+      {
+         try
+         {
+            Member member = open();
+
+            if( _Closed )
+            {
+               discard( member );
+            }
+            else
+            {
+               _Idle.offerLast( member );
+               signalAvailable();
+            }
+         }
+         catch( SQLException e )
+         {
+            if( Logger.isActive() )
+               Logger.println( "Failed to open pooled connection: " + e );
+         }
+         finally
+         {
+            _Warming.decrementAndGet();
+         }
+      }
+
+      /**
+       * Format the average login phase durations.
+       */
+      String getLoginStatistics()
+      {
+         int logins = _Logins.get();
+         StringBuilder buf = new StringBuilder();
+         buf.append( logins ).append( logins == 1 ? " login" : " logins" );
+
+         for( int i = 0; logins > 0 && i < JtdsConnection.LOGIN_PHASES.length; i ++ )
+         {
+            long avg = _LoginTimes.get( i ) / logins;
+            buf.append( ", " ).append( JtdsConnection.LOGIN_PHASES[i] ).append( ' ' );
+            buf.append( avg / 1000 ).append( '.' ).append( avg % 1000 / 100 ).append( " ms" );
+         }
+
+         return buf.toString();
+      }
+
+   }
+
+}
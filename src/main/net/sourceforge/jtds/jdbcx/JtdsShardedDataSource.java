@@ -0,0 +1,462 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package net.sourceforge.jtds.jdbcx;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.DataSource;
+
+import net.sourceforge.jtds.jdbc.Messages;
+import net.sourceforge.jtds.util.Logger;
+
+/**
+ * <p> A <code>DataSource</code> for horizontally sharded databases. Each shard
+ * is served by its own {@link JtdsPoolingDataSource}; connections are obtained
+ * by {@link #getConnection(Object)} for a shard key, which is mapped to a shard
+ * by the {@link ShardRouter} set, or by hash over the shards in the order they
+ * have been added if no router is set. </p>
+ *
+ * <p> The health of each shard is tracked: after {@link #getFailureThreshold()}
+ * consecutive failures to connect or connections found broken (while in use or
+ * by the pool's validation), a shard is considered down and requests for
+ * it fail immediately for {@link #getRetryInterval()} seconds. After that time
+ * a single request is let through to probe the shard again. The number of
+ * connections, failures and the time taken to obtain a connection are recorded
+ * per shard, see {@link #getStatistics(String)}. </p>
+ *
+ * <p> This <code>DataSource</code> is configured programmatically and can't be
+ * bound to JNDI by reference; bind the pooling DataSources of the shards
+ * instead, if required. </p>
+ */
+public class JtdsShardedDataSource implements DataSource
+{
+
+   /**
+    * the shards by name
+    */
+   private final ConcurrentHashMap<String,Shard> _Shards = new ConcurrentHashMap<String,Shard>();
+
+   /**
+    * the shard names in the order they have been added
+    */
+   private final List<String>                    _Names  = new CopyOnWriteArrayList<String>();
+
+   private volatile ShardRouter                  _Router;
+
+   /**
+    * hash router over all shards, used if no router is set
+    */
+   private volatile ShardRouter                  _DefaultRouter;
+
+   /**
+    * number of consecutive connection failures after which a shard is
+    * considered down
+    */
+   private volatile int                          _FailureThreshold = 3;
+
+   /**
+    * time in seconds a shard is considered down before it is tried again
+    */
+   private volatile int                          _RetryInterval    = 30;
+
+   private volatile int                          _LoginTimeout;
+
+   /**
+    * Constructs a new sharded DataSource without any shards.
+    */
+   public JtdsShardedDataSource()
+   {
+   }
+
+   /**
+    * Adds a shard.
+    *
+    * @param name
+    *    the shard name, as returned by the router
+    * @param dataSource
+    *    the DataSource connecting to the shard
+    * @throws IllegalArgumentException
+    *    if there already is a shard with that name
+    */
+   public synchronized void addShard( String name, JtdsPoolingDataSource dataSource )
+   {
+      Shard shard = new Shard( name, dataSource );
+
+      if( _Shards.putIfAbsent( name, shard ) != null )
+         throw new IllegalArgumentException( name );
+
+      dataSource.setFailureListener( shard );
+
+      _Names.add( name );
+      _DefaultRouter = new ShardRouter.HashRouter( getShardNames() );
+   }
+
+   /**
+    * Returns the DataSource of a shard.
+    *
+    * @param name
+    *    the shard name
+    * @return
+    *    the DataSource or <code>null</code> if there is no such shard
+    */
+   public JtdsPoolingDataSource getShard( String name )
+   {
+      Shard shard = _Shards.get( name );
+      return shard == null ? null : shard.dataSource;
+   }
+
+   /**
+    * @return
+    *    the shard names in the order they have been added
+    */
+   public String[] getShardNames()
+   {
+      return _Names.toArray( new String[0] );
+   }
+
+   /**
+    * Returns a database connection to the shard holding the data for a key.
+    *
+    * @param shardKey
+    *    the shard key
+    * @return
+    *    a pooled database connection
+    * @throws SQLException
+    *    if there is no shard for the key, the shard is down or if an error
+    *    occurs connecting to the shard
+    */
+   public Connection getConnection( Object shardKey )
+      throws SQLException
+   {
+      if( shardKey == null )
+         throw new SQLException( Messages.get( "error.jdbcx.shardkey" ), "HY009" );
+
+      return getShardFor( shardKey ).borrow();
+   }
+
+   /**
+    * Returns a database connection if there is only a single shard, shard
+    * keys are required otherwise.
+    *
+    * @throws SQLException
+    *    if there is more than one shard or an error occurs
+    */
+   public Connection getConnection()
+      throws SQLException
+   {
+      if( _Names.size() != 1 )
+         throw new SQLException( Messages.get( "error.jdbcx.shardkey" ), "HY009" );
+
+      return _Shards.get( _Names.get( 0 ) ).borrow();
+   }
+
+   /**
+    * Not supported, all connections are made with the configured user of the
+    * shard.
+    *
+    * @throws SQLException
+    *    always
+    */
+   public Connection getConnection( String user, String password )
+      throws SQLException
+   {
+      throw new SQLFeatureNotSupportedException( Messages.get( "error.jdbcx.shardcredentials" ), "0A000" );
+   }
+
+   /**
+    * Checks whether a shard is considered available, i.e. hasn't failed
+    * repeatedly.
+    *
+    * @param name
+    *    the shard name
+    * @return
+    *    <code>false</code> if the shard is down or doesn't exist
+    */
+   public boolean isAvailable( String name )
+   {
+      Shard shard = _Shards.get( name );
+      return shard != null && shard.retryAt.get() == 0;
+   }
+
+   /**
+    * <p> Returns the statistics of a shard, e.g. <code>"up, 120 connections,
+    * 0 failures, 0.2 ms per connection, 3 active, 2 idle"</code>. </p>
+    *
+    * @param name
+    *    the shard name
+    * @return
+    *    the statistics or <code>null</code> if there is no such shard
+    */
+   public String getStatistics( String name )
+   {
+      Shard shard = _Shards.get( name );
+      return shard == null ? null : shard.getStatistics();
+   }
+
+   /**
+    * Closes the connection pools of all shards.
+    */
+   public void close()
+   {
+      for( String name : _Names )
+      {
+         _Shards.get( name ).dataSource.close();
+      }
+   }
+
+   //
+   // Getters and setters
+   //
+
+   public void setRouter( ShardRouter router )
+   {
+      _Router = router;
+   }
+
+   public ShardRouter getRouter()
+   {
+      return _Router;
+   }
+
+   public void setFailureThreshold( int failureThreshold )
+   {
+      _FailureThreshold = failureThreshold;
+   }
+
+   public int getFailureThreshold()
+   {
+      return _FailureThreshold;
+   }
+
+   public void setRetryInterval( int retryInterval )
+   {
+      _RetryInterval = retryInterval;
+   }
+
+   public int getRetryInterval()
+   {
+      return _RetryInterval;
+   }
+
+   public void setLogWriter( PrintWriter out )
+   {
+      Logger.setLogWriter( out );
+   }
+
+   public PrintWriter getLogWriter()
+   {
+      return Logger.getLogWriter();
+   }
+
+   /**
+    * Sets the login timeout of all shards added so far.
+    */
+   public void setLoginTimeout( int loginTimeout )
+   {
+      _LoginTimeout = loginTimeout;
+
+      for( String name : _Names )
+      {
+         _Shards.get( name ).dataSource.setLoginTimeout( loginTimeout );
+      }
+   }
+
+   public int getLoginTimeout()
+   {
+      return _LoginTimeout;
+   }
+
+   public boolean isWrapperFor( Class<?> iface )
+   {
+      return iface.isInstance( this );
+   }
+
+   public <T> T unwrap( Class<T> iface )
+      throws SQLException
+   {
+      if( ! iface.isInstance( this ) )
+         throw new SQLException( Messages.get( "error.generic.unwrap", iface.getName() ), "HY000" );
+
+      return iface.cast( this );
+   }
+
+   // // JDBC4.1 demarcation, do NOT put any JDBC3/4.0 code below this line ////
+
+   public java.util.logging.Logger getParentLogger()
+      throws SQLFeatureNotSupportedException
+   {
+      throw new SQLFeatureNotSupportedException();
+   }
+
+   // private methods //////////////////////////////////////////////////////////
+
+   /**
+    * Get the shard for a key.
+    */
+   private Shard getShardFor( Object key )
+      throws SQLException
+   {
+      ShardRouter router = _Router;
+
+      if( router == null )
+         router = _DefaultRouter;
+
+      String name = router == null ? null : router.getShard( key );
+      Shard shard = name == null ? null : _Shards.get( name );
+
+      if( shard == null )
+         throw new SQLException( Messages.get( "error.jdbcx.noshard", String.valueOf( key ) ), "08001" );
+
+      return shard;
+   }
+
+   // private types ////////////////////////////////////////////////////////////
+
+   /**
+    * a shard and its health and metrics
+    */
+   private final class Shard implements ConnectionEventListener
+   {
+      final String                name;
+      final JtdsPoolingDataSource dataSource;
+
+      /**
+       * time after which a shard considered down is tried again, {@code 0}
+       * while the shard is up
+       */
+      final AtomicLong            retryAt     = new AtomicLong();
+
+      /**
+       * number of consecutive connection failures
+       */
+      final AtomicInteger         failures    = new AtomicInteger();
+
+      final AtomicLong            connections = new AtomicLong();
+      final AtomicLong            failed      = new AtomicLong();
+
+      /**
+       * total time spent obtaining connections in nanoseconds
+       */
+      final AtomicLong            nanos       = new AtomicLong();
+
+      Shard( String name, JtdsPoolingDataSource dataSource )
+      {
+         this.name       = name;
+         this.dataSource = dataSource;
+      }
+
+      /**
+       * Borrow a connection from the shard's pool, unless the shard is down.
+       */
+      Connection borrow()
+         throws SQLException
+      {
+         long retry = retryAt.get();
+
+         if( retry != 0 )
+         {
+            long now = System.currentTimeMillis();
+
+            // only a single request probes the shard, the others fail fast
+            if( now < retry || ! retryAt.compareAndSet( retry, now + _RetryInterval * 1000L ) )
+               throw new SQLException( Messages.get( "error.jdbcx.sharddown", name ), "08001" );
+         }
+
+         long start = System.nanoTime();
+
+         try
+         {
+            Connection con = dataSource.getConnection();
+
+            nanos.addAndGet( System.nanoTime() - start );
+            connections.incrementAndGet();
+            failures.set( 0 );
+            retryAt.set( 0 );
+
+            return con;
+         }
+         catch( SQLException e )
+         {
+            failed.incrementAndGet();
+            failure( e );
+            throw e;
+         }
+      }
+
+      /**
+       * Count a failure to reach the server, taking the shard down after too
+       * many consecutive failures.
+       */
+      void failure( SQLException e )
+      {
+         // only count failures to reach the server, not an exhausted pool
+         String state = e == null ? null : e.getSQLState();
+
+         if( state != null && ( state.startsWith( "08S" ) || state.equals( "HYT01" ) ) && failures.incrementAndGet() >= _FailureThreshold )
+         {
+            if( retryAt.getAndSet( System.currentTimeMillis() + _RetryInterval * 1000L ) == 0 && Logger.isActive() )
+               Logger.println( "Shard " + name + " is down: " + e );
+         }
+      }
+
+      /**
+       * Not used, only failures are reported by the pool.
+       */
+      public void connectionClosed( ConnectionEvent event )
+      {
+      }
+
+      /**
+       * Called by the pool if a connection in use or being validated turned
+       * out to be broken.
+       */
+      public void connectionErrorOccurred( ConnectionEvent event )
+      {
+         failure( event.getSQLException() );
+      }
+
+      /**
+       * Format the shard statistics.
+       */
+      String getStatistics()
+      {
+         long count = connections.get();
+         long avg = count == 0 ? 0 : nanos.get() / count / 1000;
+
+         StringBuilder buf = new StringBuilder();
+         buf.append( retryAt.get() == 0 ? "up" : "down" );
+         buf.append( ", " ).append( count ).append( count == 1 ? " connection" : " connections" );
+         buf.append( ", " ).append( failed.get() ).append( " failures" );
+         buf.append( ", " ).append( avg / 1000 ).append( '.' ).append( avg % 1000 / 100 ).append( " ms per connection" );
+         buf.append( ", " ).append( dataSource.getActiveConnections() ).append( " active" );
+         buf.append( ", " ).append( dataSource.getIdleConnections() ).append( " idle" );
+
+         return buf.toString();
+      }
+   }
+
+}
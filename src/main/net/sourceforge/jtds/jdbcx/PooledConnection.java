@@ -115,6 +115,55 @@ public class PooledConnection implements javax.sql.PooledConnection {
         return new ConnectionProxy(this, connection);
     }
 
+    /**
+     * Resets the session of the physical connection to the state right after
+     * the login, to be called by a connection pool before the connection is
+     * handed out again.
+     * <p>
+     * The reset doesn't cost a round trip of its own: the server performs it
+     * before processing the next request (see
+     * {@link JtdsConnection#resetConnection()}).
+     *
+     * @return <code>true</code> if the reset was scheduled, <code>false</code>
+     *         if the server doesn't support it; the caller has to restore the
+     *         state of the connection itself then
+     * @throws SQLException if the connection is closed
+     */
+    public synchronized boolean reset() throws SQLException {
+        if (connection == null) {
+            throw new SQLException(Messages.get("error.jdbcx.conclosed"), "08003");
+        }
+
+        return connection instanceof JtdsConnection
+                && ((JtdsConnection) connection).resetConnection();
+    }
+
+    /**
+     * Checks that the physical connection is still usable, with a minimum of
+     * network traffic (see {@link JtdsConnection#isValid(int)}). If the
+     * connection is found broken the registered listeners are notified, as
+     * if the application had run into the error.
+     *
+     * @param timeout the time in seconds to wait for the server to respond,
+     *        <code>0</code> to wait indefinitely
+     * @return <code>true</code> if the connection is valid
+     * @throws SQLException if the timeout is negative
+     */
+    public synchronized boolean validate(int timeout) throws SQLException {
+        if (connection == null) {
+            return false;
+        }
+
+        if (connection.isValid(timeout)) {
+            return true;
+        }
+
+        fireConnectionEvent(false,
+            new SQLException(Messages.get("error.jdbcx.conclosed"), "08S01"));
+
+        return false;
+    }
+
     /**
      * Removes the specified listener from the list.
      *
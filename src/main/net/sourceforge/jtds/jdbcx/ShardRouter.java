@@ -0,0 +1,120 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package net.sourceforge.jtds.jdbcx;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p> Maps a shard key to the name of the shard holding the data for that key,
+ * used by {@link JtdsShardedDataSource}. </p>
+ *
+ * <p> Implementations have to be thread-safe and should return the same shard
+ * for the same key as long as the data isn't redistributed. </p>
+ */
+public interface ShardRouter
+{
+
+   /**
+    * Determines the shard for a key.
+    *
+    * @param key
+    *    the shard key, never <code>null</code>
+    * @return
+    *    the name of the shard or <code>null</code> if there is no shard for the
+    *    key
+    */
+   String getShard( Object key );
+
+   /**
+    * <p> Routes keys by their hash code, distributing them evenly over a fixed
+    * list of shards. The hash codes of <code>String</code>s, <code>Integer</code>s
+    * and <code>Long</code>s are stable across JVMs, so these make good keys.
+    * </p>
+    *
+    * <p> Adding or removing a shard changes the shard of most keys. </p>
+    */
+   public static class HashRouter implements ShardRouter
+   {
+
+      private final String[] _Shards;
+
+      /**
+       * Constructs a router for the given shards.
+       *
+       * @param shards
+       *    the shard names, the order determines the routing
+       */
+      public HashRouter( String... shards )
+      {
+         if( shards.length == 0 )
+            throw new IllegalArgumentException( "no shards" );
+
+         _Shards = shards.clone();
+      }
+
+      public String getShard( Object key )
+      {
+         int h = key.hashCode();
+
+         // spread the bits, consecutive numbers are common keys
+         h ^= h >>> 16;
+         h *= 0x85ebca6b;
+         h ^= h >>> 13;
+
+         return _Shards[( h & 0x7fffffff ) % _Shards.length];
+      }
+
+   }
+
+   /**
+    * <p> Routes keys by ranges, e.g. customers 0 to 9999 to one shard and
+    * customers 10000 and above to another. Each range is defined by its lower
+    * bound and reaches up to the next range; keys below the lowest bound have no
+    * shard. All keys and bounds have to be mutually comparable. </p>
+    */
+   public static class RangeRouter implements ShardRouter
+   {
+
+      private final TreeMap<Object,String> _Ranges = new TreeMap<Object,String>();
+
+      /**
+       * Adds a range.
+       *
+       * @param lowerBound
+       *    the lowest key (inclusive) of the range
+       * @param shard
+       *    the name of the shard holding the range
+       * @return
+       *    this router
+       */
+      public synchronized RangeRouter addRange( Comparable<?> lowerBound, String shard )
+      {
+         _Ranges.put( lowerBound, shard );
+         return this;
+      }
+
+      public synchronized String getShard( Object key )
+      {
+         Map.Entry<Object,String> range = _Ranges.floorEntry( key );
+         return range == null ? null : range.getValue();
+      }
+
+   }
+
+}
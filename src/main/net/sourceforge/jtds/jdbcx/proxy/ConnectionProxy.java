@@ -766,8 +766,11 @@ public class ConnectionProxy implements Connection {
      * @see java.sql.Connection#isValid(int)
      */
     public boolean isValid(int timeout) throws SQLException {
-        // TODO Auto-generated method stub
-        throw new AbstractMethodError();
+        if (_closed) {
+            return false;
+        }
+
+        return _pooledConnection.validate(timeout);
     }
 
     /* (non-Javadoc)
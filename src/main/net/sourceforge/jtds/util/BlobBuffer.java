@@ -18,7 +18,11 @@
 package net.sourceforge.jtds.util;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 import net.sourceforge.jtds.jdbc.Messages;
 
@@ -28,19 +32,24 @@ import net.sourceforge.jtds.jdbc.Messages;
  * <p/>
  * The data can be purely memory based until the size exceeds the value
  * dictated by the <code>lobBuffer</code> URL property after which it will be
- * written to disk. The disk array is accessed randomly one page (1024 bytes)
- * at a time.
+ * moved to off-heap memory drawn from the {@link LobArena} or, once the
+ * global <code>lobMemory</code> budget is exhausted, written to disk. The
+ * disk file is accessed randomly one page (8192 bytes by
+ * default) at a time; the most recently used pages are cached in memory, so
+ * that random access within a large LOB does not need a seek and read for
+ * every page change. Disk based buffers are addressed by <code>long</code>
+ * pointers and may exceed 2GB, in memory buffers are limited to 2GB.
  * <p/>
  * This class is not synchronized and concurrent open input and output
  * streams can conflict.
  * <p/>
  * Tuning hints:
  * <ol>
- *   <li>The <code>PAGE_SIZE</code> governs how much data is buffered when
- *     reading or writing data a byte at a time. 1024 bytes seems to work well
- *     but if very large objects are being written a byte at a time 4096 may be
- *     better. <b>NB.</b> ensure that the <code>PAGE_MASK</code> and
- *     <code>BYTE_MASK</code> fields are also adjusted to match.
+ *   <li>The page size governs how much data is buffered when reading or
+ *     writing data a byte at a time and the number of cached pages how much
+ *     of the disk file is held in memory. Both can be set by the
+ *     {@link #BlobBuffer(File, long, int, int)} constructor; the defaults are
+ *     <code>DEFAULT_PAGE_SIZE</code> and <code>DEFAULT_CACHED_PAGES</code>.
  *   <li>Reading or writing byte arrays that are greater than or equal to the
  *     page size will go directly to or from the random access file cutting out
  *     an ArrayCopy operation.
@@ -65,48 +74,60 @@ public class BlobBuffer {
     /**
      * Default page size (must be power of 2).
      */
-    private static final int PAGE_SIZE = 1024;
+    public static final int DEFAULT_PAGE_SIZE = 8192;
     /**
-     * Mask for page component of read/write pointer.
-     */
-    private static final int PAGE_MASK = 0xFFFFFC00;
-    /**
-     * Mask for page offset component of R/W pointer.
+     * Default number of pages of the disk file cached in memory.
      */
-    private static final int BYTE_MASK = 0x000003FF;
+    public static final int DEFAULT_CACHED_PAGES = 16;
     /**
      * Maximum buffer increment.
      */
     private static final int MAX_BUF_INC = 16384;
     /**
-     * Invalid page marker.
+     * Mask for the chunk offset component of R/W pointer.
      */
-    private static final int INVALID_PAGE = -1;
+    private static final int CHUNK_MASK = LobArena.CHUNK_SIZE - 1;
+    /**
+     * The size of the window used to search disk and off-heap data.
+     */
+    private static final int SEARCH_WINDOW = 65536;
 
     /**
-     * The BLOB buffer or the current page buffer.
+     * The in memory BLOB buffer, unused once a disk file has been created.
      */
     private byte[] buffer;
     /**
-     * The total length of the valid data in buffer.
+     * The total length of the valid data.
+     */
+    private long length;
+    /**
+     * The off-heap chunks and the disk file, released by the {@link Cleaner}
+     * once this buffer is unreachable.
      */
-    private int length;
+    private final Storage storage = new Storage();
     /**
-     * The number of the current page in memory.
+     * The registration of {@link #storage} with the {@link Cleaner}, or
+     * <code>null</code> while the data is in memory.
      */
-    private int currentPage;
+    private Cleaner.Cleanable cleanable;
     /**
-     * The name of the temporary BLOB disk file.
+     * Closes the disk file on behalf of unreachable streams, created with
+     * the first stream registered.
      */
-    private File blobFile;
+    private Runnable closer;
     /**
      * The RA file object reference or null if closed.
      */
     private RandomAccessFile raFile;
     /**
-     * Indicates page in memory must be saved.
+     * The cached pages of the disk file by file offset, in least recently
+     * used order.
      */
-    private boolean bufferDirty;
+    private final LinkedHashMap<Long, Page> pages;
+    /**
+     * The page accessed last, or <code>null</code>.
+     */
+    private Page currentPage;
     /**
      * Count of callers that have opened the BLOB file.
      */
@@ -124,39 +145,96 @@ public class BlobBuffer {
      * The maximum size of an in memory buffer.
      */
     private final int maxMemSize;
+    /**
+     * The size of a page of the disk file.
+     */
+    private final int pageSize;
+    /**
+     * Mask for page component of read/write pointer.
+     */
+    private final long pageMask;
+    /**
+     * Mask for page offset component of R/W pointer.
+     */
+    private final int byteMask;
+    /**
+     * The maximum number of cached pages.
+     */
+    private final int maxPages;
 
     /**
-     * Creates a blob buffer.
+     * Creates a blob buffer with the default page size and page cache.
      *
      * @param bufferDir
      * @param maxMemSize the maximum size of the in memory buffer
      */
     public BlobBuffer(File bufferDir, long maxMemSize) {
+        this(bufferDir, maxMemSize, DEFAULT_PAGE_SIZE, DEFAULT_CACHED_PAGES);
+    }
+
+    /**
+     * Creates a blob buffer.
+     *
+     * @param bufferDir
+     * @param maxMemSize  the maximum size of the in memory buffer
+     * @param pageSize    the page size of the disk file, a power of 2
+     * @param cachedPages the maximum number of pages cached in memory
+     */
+    public BlobBuffer(File bufferDir, long maxMemSize, int pageSize, int cachedPages) {
        if (maxMemSize > Integer.MAX_VALUE)
           throw new IllegalArgumentException("The maximum in-memory buffer size of a blob buffer cannot exceed 2GB");
+       if (pageSize <= 0 || (pageSize & (pageSize - 1)) != 0)
+          throw new IllegalArgumentException("The page size of a blob buffer must be a power of 2");
+       if (cachedPages < 1)
+          throw new IllegalArgumentException("A blob buffer must cache at least one page");
 
        this.bufferDir = bufferDir;
        this.maxMemSize = (int) maxMemSize;
+       this.pageSize = pageSize;
+       this.pageMask = ~((long) pageSize - 1);
+       this.byteMask = pageSize - 1;
+       this.maxPages = cachedPages;
+       pages = new LinkedHashMap<Long, Page>(cachedPages * 2, 0.75f, true);
        buffer = EMPTY_BUFFER;
     }
 
     /**
-     * Finalizes this object by deleting any work files.
+     * Makes sure the off-heap memory and disk file are released once this
+     * buffer is unreachable.
      */
-    protected void finalize() throws Throwable {
-        try {
-            if (raFile != null) {
-                raFile.close();
-            }
-        } catch (IOException e) {
-            // Ignore we are going to delete anyway
-        } finally {
-            if (blobFile != null) {
-                blobFile.delete();
-            }
+    private void registerStorage() {
+        if (cleanable == null) {
+            cleanable = Cleaner.register(this, storage);
         }
     }
 
+    /**
+     * Makes sure an open stream's hold on the disk file is released should
+     * the stream become unreachable without being closed.
+     *
+     * @param stream the stream, just opened
+     * @return the registration to cancel when the stream is closed, or
+     *         <code>null</code> if there is nothing to release
+     */
+    private Cleaner.Cleanable registerStream(Object stream) {
+        if (openCount == 0) {
+            // In memory, open() did not count
+            return null;
+        }
+        if (closer == null) {
+            closer = new Runnable() {
+                public void run() {
+                    try {
+                        close();
+                    } catch (IOException e) {
+                        // Ignore, nobody is left to report it to
+                    }
+                }
+            };
+        }
+        return Cleaner.register(stream, closer);
+    }
+
     /**
      * Creates a random access disk file to use as backing storage for the LOB
      * data.
@@ -170,23 +248,36 @@ public class BlobBuffer {
     		return;
     	}
         try {
-            blobFile = File.createTempFile("jtds", ".tmp", bufferDir);
-            // blobFile.deleteOnExit(); memory leak, see http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6664633
-            raFile = new RandomAccessFile(blobFile, "rw");
-            if (length > 0) {
-                raFile.write(buffer, 0, length);
+            storage.file = SpillFile.acquire(bufferDir);
+            registerStorage();
+            raFile = storage.file.open();
+            if (storage.chunks != null) {
+                for (int i = 0; i < storage.chunkCount; i++) {
+                    int len = (int) Math.min(LobArena.CHUNK_SIZE,
+                            length - ((long) i << LobArena.CHUNK_SHIFT));
+                    if (len <= 0) {
+                        break;
+                    }
+                    storage.chunks[i].clear().limit(len);
+                    while (storage.chunks[i].hasRemaining()) {
+                        raFile.getChannel().write(storage.chunks[i]);
+                    }
+                }
+                storage.releaseChunks();
+            } else if (length > 0) {
+                raFile.write(buffer, 0, (int) length);
             }
-            buffer = new byte[PAGE_SIZE];
-            currentPage = INVALID_PAGE;
-            openCount = 0;
+            // Allow the in memory buffer to be garbage collected
+            buffer = EMPTY_BUFFER;
+            discardPages();
         } catch (SecurityException e) {
-            blobFile = null;
+            storage.releaseFile();
             raFile = null;
             isMemOnly = true;
             Logger.println("SecurityException creating BLOB file:");
             Logger.logException(e);
         } catch (IOException ioe) {
-            blobFile = null;
+            storage.releaseFile();
             raFile = null;
             isMemOnly = true;
             Logger.println("IOException creating BLOB file:");
@@ -194,6 +285,84 @@ public class BlobBuffer {
         }
     }
 
+    /**
+     * Moves the data from the in memory buffer to off-heap memory drawn from
+     * the {@link LobArena}.
+     *
+     * @return <code>true</code> if the data has been moved,
+     *         <code>false</code> if the global budget is exhausted
+     */
+    private boolean createChunks() {
+        int count = (int) ((length + CHUNK_MASK) >>> LobArena.CHUNK_SHIFT);
+        ByteBuffer[] tmp = new ByteBuffer[Math.max(count, 4)];
+        for (int i = 0; i < count; i++) {
+            if ((tmp[i] = LobArena.allocate()) == null) {
+                while (--i >= 0) {
+                    LobArena.release(tmp[i]);
+                }
+                return false;
+            }
+            tmp[i].put(buffer, i << LobArena.CHUNK_SHIFT,
+                    (int) Math.min(LobArena.CHUNK_SIZE, length - ((long) i << LobArena.CHUNK_SHIFT)));
+        }
+        storage.chunks = tmp;
+        storage.chunkCount = count;
+        registerStorage();
+        // Allow the in memory buffer to be garbage collected
+        buffer = EMPTY_BUFFER;
+        return true;
+    }
+
+    /**
+     * Makes sure the off-heap chunks up to the specified location are
+     * allocated. If the global budget is exhausted, the data is moved to a
+     * disk file, or to the in memory buffer if no disk file can be created.
+     *
+     * @param end the end of the data to write (exclusive)
+     * @throws IOException if an I/O error occurs
+     */
+    private void ensureChunks(long end) throws IOException {
+        int count = (int) ((end + CHUNK_MASK) >>> LobArena.CHUNK_SHIFT);
+        while (storage.chunkCount < count) {
+            ByteBuffer chunk = LobArena.allocate();
+            if (chunk == null) {
+                // Budget exhausted, spill to disk
+                if (!isMemOnly) {
+                    createBlobFile();
+                }
+                if (storage.chunks != null) {
+                    if (length > Integer.MAX_VALUE) {
+                        throw new IOException("BLOB may not exceed 2GB in size");
+                    }
+                    buffer = new byte[(int) length];
+                    for (int i = 0; i < storage.chunkCount && i << LobArena.CHUNK_SHIFT < length; i++) {
+                        storage.chunks[i].clear();
+                        storage.chunks[i].get(buffer, i << LobArena.CHUNK_SHIFT,
+                                (int) Math.min(LobArena.CHUNK_SIZE, length - (i << LobArena.CHUNK_SHIFT)));
+                    }
+                    storage.releaseChunks();
+                }
+                return;
+            }
+            if (storage.chunkCount == storage.chunks.length) {
+                storage.chunks = Arrays.copyOf(storage.chunks, storage.chunkCount * 2);
+            }
+            storage.chunks[storage.chunkCount++] = chunk;
+        }
+    }
+
+    /**
+     * Moves the data out of the in memory buffer before it is updated by
+     * anything but a complete replacement: to off-heap memory if the global
+     * budget allows, to disk otherwise.
+     */
+    private void createStorage() {
+        if (storage.chunks == null && storage.file == null
+                && !createChunks() && !isMemOnly) {
+            createBlobFile();
+        }
+    }
+
     /**
      * Opens the BLOB disk file.
      * <p/>
@@ -204,15 +373,14 @@ public class BlobBuffer {
      * @throws IOException if an I/O error occurs
      */
     public void open() throws IOException {
-        if (raFile == null && blobFile != null) {
+        if (raFile == null && storage.file != null) {
             // reopen file
-            raFile = new RandomAccessFile(blobFile, "rw");
+            raFile = storage.file.open();
             openCount = 1;
-            currentPage = INVALID_PAGE;
-            buffer = new byte[PAGE_SIZE];
+            discardPages();
             return;
         }
-        if (raFile != null) {
+        if (raFile != null || storage.chunks != null) {
             openCount++;
         }
     }
@@ -221,30 +389,28 @@ public class BlobBuffer {
      * Reads byte from the BLOB buffer at the specified location.
      * <p/>
      * The read pointer is partitioned into a page number and an offset within
-     * the page. This routine will read new pages as required. The page size
-     * must be a power of 2 and is currently set to 1024 bytes.
+     * the page. This routine will read new pages as required.
      *
      * @param readPtr the offset in the buffer of the required byte
      * @return the byte value as an <code>int</code> or -1 if at EOF
      * @throws IOException if an I/O error occurs
      */
-    public int read(int readPtr) throws IOException {
+    public int read(long readPtr) throws IOException {
         if (readPtr >= length) {
             // At end of file.
             return -1;
         }
         if (raFile != null) {
-            // Paged storage as a file exists
-            if (currentPage != (readPtr & PAGE_MASK)) {
-                // Requested page not in memory so read it
-                readPage(readPtr);
-            }
-            // Use the byte offset to return the correct
-            // byte from the page.
-            return buffer[readPtr & BYTE_MASK] & 0xFF;
+            // Paged storage as a file exists, use the byte offset to return
+            // the correct byte from the page.
+            return getPage(readPtr).data[(int) readPtr & byteMask] & 0xFF;
+        } else if (storage.chunks != null) {
+            // Off-heap storage
+            return storage.chunks[(int) (readPtr >>> LobArena.CHUNK_SHIFT)]
+                    .get((int) readPtr & CHUNK_MASK) & 0xFF;
         } else {
             // In memory buffer just return byte.
-            return buffer[readPtr] & 0xFF;
+            return buffer[(int) readPtr] & 0xFF;
         }
     }
 
@@ -258,7 +424,7 @@ public class BlobBuffer {
      * @return the number of bytes read or -1 if at end of file
      * @throws IOException if an I/O error occurs
      */
-    public int read(int readPtr, byte[] bytes, int offset, int len)
+    public int read(long readPtr, byte[] bytes, int offset, int len)
             throws IOException {
         // Validate parameters
         if (bytes == null) {
@@ -274,16 +440,13 @@ public class BlobBuffer {
             return -1;
         }
 
+        len = (int) Math.min(length - readPtr, len);
         if (raFile != null) {
             // Need to read from disk file
-            len = Math.min(length - readPtr, len);
-            if (len >= PAGE_SIZE) {
-                // This is a big write so we optimize by reading directly
+            if (len >= pageSize) {
+                // This is a big read so we optimize by reading directly
                 // from the RA File.
-                if (bufferDirty) {
-                    writePage(currentPage);
-                }
-                currentPage = INVALID_PAGE;
+                flushPages(readPtr, readPtr + len, false);
                 raFile.seek(readPtr);
                 raFile.readFully(bytes, offset, len);
             } else {
@@ -292,21 +455,31 @@ public class BlobBuffer {
                 //
                 int count = len;
                 while (count > 0) {
-                    if (currentPage != (readPtr & PAGE_MASK)) {
-                        // Requested page not in memory so read it
-                        readPage(readPtr);
-                    }
-                    int inBuffer = Math.min(PAGE_SIZE - (readPtr & BYTE_MASK), count);
-                    System.arraycopy(buffer, readPtr & BYTE_MASK, bytes, offset, inBuffer);
+                    Page page = getPage(readPtr);
+                    int pos = (int) readPtr & byteMask;
+                    int inBuffer = Math.min(pageSize - pos, count);
+                    System.arraycopy(page.data, pos, bytes, offset, inBuffer);
                     offset += inBuffer;
                     readPtr += inBuffer;
                     count -= inBuffer;
                 }
             }
+        } else if (storage.chunks != null) {
+            // Off-heap storage
+            int count = len;
+            while (count > 0) {
+                ByteBuffer chunk = storage.chunks[(int) (readPtr >>> LobArena.CHUNK_SHIFT)];
+                int pos = (int) readPtr & CHUNK_MASK;
+                int inBuffer = Math.min(LobArena.CHUNK_SIZE - pos, count);
+                chunk.position(pos);
+                chunk.get(bytes, offset, inBuffer);
+                offset += inBuffer;
+                readPtr += inBuffer;
+                count -= inBuffer;
+            }
         } else {
             // In memory buffer
-            len = Math.min(length - readPtr, len);
-            System.arraycopy(buffer, readPtr, bytes, offset, len);
+            System.arraycopy(buffer, (int) readPtr, bytes, offset, len);
         }
 
         return len;
@@ -316,45 +489,48 @@ public class BlobBuffer {
      * Inserts a byte into the buffer at the specified location.
      * <p/>
      * The write pointer is partitioned into a page number and an offset within
-     * the page. This routine will write new pages as required. The page size
-     * must be a power of 2 and is currently set to 1024 bytes.
+     * the page. This routine will read new pages as required.
      *
      * @param writePtr the offset in the buffer of the required byte
      * @param b        the byte value to write
      * @throws IOException if an I/O error occurs
      */
-    public void write(int writePtr, int b) throws IOException {
+    public void write(long writePtr, int b) throws IOException {
         if (writePtr >= length) {
             if (writePtr > length) {
                 // Probably because the user called truncate at
                 // the same time as writing to the blob!
                 throw new IOException("BLOB buffer has been truncated");
             }
+            if (storage.chunks != null) {
+                // May move the data to disk
+                ensureChunks(writePtr + 1);
+            }
             // We are writing beyond the current length
             // of the buffer and need to update the total length.
-            if (++length < 0) {
-                // We have wrapped 31 bits!
-                // This should ensure that the disk file is limited to 2GB.
-                // If in memory JVM will probably have failed by now anyway.
+            if (raFile == null && storage.chunks == null && length >= Integer.MAX_VALUE) {
+                // An array cannot hold more than 2GB. If in memory JVM will
+                // probably have failed by now anyway.
                 throw new IOException("BLOB may not exceed 2GB in size");
             }
+            length++;
         }
 
         if (raFile != null) {
             // OK we have a disk based buffer
-            if (currentPage != (writePtr & PAGE_MASK)) {
-                // The page we need is not in memory
-                readPage(writePtr);
-            }
-            buffer[writePtr & BYTE_MASK] = (byte) b;
-            // Ensure change will saved if buffer is replaced
-            bufferDirty = true;
+            Page page = getPage(writePtr);
+            page.data[(int) writePtr & byteMask] = (byte) b;
+            // Ensure change will saved if page is replaced
+            page.dirty = true;
+        } else if (storage.chunks != null) {
+            storage.chunks[(int) (writePtr >>> LobArena.CHUNK_SHIFT)]
+                    .put((int) writePtr & CHUNK_MASK, (byte) b);
         } else {
             // In memory buffer only (only used here if disk unavailable
             if (writePtr >= buffer.length) {
-                growBuffer(writePtr + 1);
+                growBuffer((int) writePtr + 1);
             }
-            buffer[writePtr] = (byte) b;
+            buffer[(int) writePtr] = (byte) b;
         }
     }
 
@@ -367,7 +543,7 @@ public class BlobBuffer {
      * @param len      the number of bytes to write
      * @throws IOException if an I/O error occurs
      */
-    void write(int writePtr, byte[] bytes, int offset, int len)
+    void write(long writePtr, byte[] bytes, int offset, int len)
             throws IOException {
         // Validate parameters
         if (bytes == null) {
@@ -378,54 +554,68 @@ public class BlobBuffer {
         } else if (len == 0) {
             return;
         }
-        if ((long) writePtr + len > Integer.MAX_VALUE) {
-            throw new IOException("BLOB may not exceed 2GB in size");
-        }
         if (writePtr > length) {
             // Probably because the user called truncate at
             // the same time as writing to the blob!
             throw new IOException("BLOB buffer has been truncated");
         }
+        if (storage.chunks != null) {
+            // May move the data to disk
+            ensureChunks(writePtr + len);
+        }
+        if (raFile == null && storage.chunks == null && writePtr + len > Integer.MAX_VALUE) {
+            throw new IOException("BLOB may not exceed 2GB in size");
+        }
 
         if (raFile != null) {
             // dealing with disk storage (normal case)
             //
-            if (len >= PAGE_SIZE) {
+            if (len >= pageSize) {
                 // This is a big write so we optimize by writing directly
-                // to the RA File.
-                if (bufferDirty) {
-                    writePage(currentPage);
-                }
-                currentPage = INVALID_PAGE;
+                // to the RA File, cached copies of the pages are discarded.
+                flushPages(writePtr, writePtr + len, true);
                 raFile.seek(writePtr);
                 raFile.write(bytes, offset, len);
                 writePtr += len;
             } else {
-                // Small writes so use the page buffer for
+                // Small writes so use the page cache for
                 // effeciency.
                 int count = len;
                 while (count > 0) {
-                    // Paged storage as a file exists
-                    if (currentPage != (writePtr & PAGE_MASK)) {
-                        // Requested page not in memory so read it
-                        readPage(writePtr);
-                    }
-                    int inBuffer = Math.min(
-                            PAGE_SIZE - (writePtr & BYTE_MASK), count);
-                    System.arraycopy(bytes, offset, buffer,
-                            writePtr & BYTE_MASK, inBuffer);
-                    bufferDirty = true;
+                    Page page = getPage(writePtr);
+                    int pos = (int) writePtr & byteMask;
+                    int inBuffer = Math.min(pageSize - pos, count);
+                    System.arraycopy(bytes, offset, page.data, pos, inBuffer);
+                    page.dirty = true;
                     offset += inBuffer;
                     writePtr += inBuffer;
                     count -= inBuffer;
+                    if (writePtr > length) {
+                        // Pages beyond the old length may only be read
+                        // once the data before them is part of the BLOB
+                        length = writePtr;
+                    }
                 }
             }
+        } else if (storage.chunks != null) {
+            // Off-heap storage
+            int count = len;
+            while (count > 0) {
+                ByteBuffer chunk = storage.chunks[(int) (writePtr >>> LobArena.CHUNK_SHIFT)];
+                int pos = (int) writePtr & CHUNK_MASK;
+                int inBuffer = Math.min(LobArena.CHUNK_SIZE - pos, count);
+                chunk.position(pos);
+                chunk.put(bytes, offset, inBuffer);
+                offset += inBuffer;
+                writePtr += inBuffer;
+                count -= inBuffer;
+            }
         } else {
             // In memory (only used here if disk not available)
             if (writePtr + len > buffer.length) {
-                growBuffer(writePtr + len);
+                growBuffer((int) writePtr + len);
             }
-            System.arraycopy(bytes, offset, buffer, writePtr, len);
+            System.arraycopy(bytes, offset, buffer, (int) writePtr, len);
             writePtr += len;
         }
         if (writePtr > length) {
@@ -434,57 +624,125 @@ public class BlobBuffer {
     }
 
     /**
-     * Reads in the specified page from the disk buffer.
-     * <p/>
-     * Any existing dirty page is first saved to disk.
+     * Returns the page containing the specified location, reading it from
+     * the disk buffer if it is not cached.
      *
-     * @param page the page number
+     * @param ptr the offset in the buffer
+     * @return the page
      * @throws IOException if an I/O error occurs
      */
-    public void readPage(int page) throws IOException {
-        page = page & PAGE_MASK;
-        if (bufferDirty) {
-            writePage(currentPage);
+    private Page getPage(long ptr) throws IOException {
+        long offset = ptr & pageMask;
+        Page page = currentPage;
+        if (page == null || page.offset != offset) {
+            // Not the page accessed last, look it up (and mark it as used)
+            page = pages.get(offset);
+            if (page == null) {
+                page = readPage(offset);
+            }
+            currentPage = page;
         }
-        if (page > raFile.length()) {
-            throw new IOException("readPage: Invalid page number " + page);
+        return page;
+    }
+
+    /**
+     * Reads in the specified page from the disk buffer and adds it to the
+     * page cache.
+     * <p/>
+     * If the cache is full, the least recently used page is replaced. If it
+     * is dirty it is first saved to disk.
+     *
+     * @param ptr an offset within the page
+     * @return the page read
+     * @throws IOException if an I/O error occurs
+     */
+    private Page readPage(long ptr) throws IOException {
+        long offset = ptr & pageMask;
+        if (offset > length) {
+            throw new IOException("readPage: Invalid page number " + offset);
+        }
+        Page page;
+        if (pages.size() >= maxPages) {
+            // Recycle the least recently used page
+            Iterator<Page> it = pages.values().iterator();
+            page = it.next();
+            if (page.dirty) {
+                writePage(page);
+            }
+            it.remove();
+            if (page == currentPage) {
+                currentPage = null;
+            }
+        } else {
+            page = new Page(pageSize);
         }
-        currentPage = page;
+        page.offset = offset;
         // Locate and read requested page
         // NB. Page may not be completely filled.
-        raFile.seek(currentPage);
-        // Repeat reading until buffer is filled or EOF is reached
+        raFile.seek(offset);
+        // Repeat reading until page is filled or EOF is reached
         int count = 0, res;
         do {
-            res = raFile.read(buffer, count, buffer.length - count);
+            res = raFile.read(page.data, count, pageSize - count);
             count += (res == -1) ? 0 : res;
-        } while (count < PAGE_SIZE && res != -1);
+        } while (count < pageSize && res != -1);
+        Arrays.fill(page.data, count, pageSize, (byte) 0);
+        pages.put(offset, page);
+        return page;
     }
 
     /**
      * Writes the specified page to the disk buffer.
      *
-     * @param page the page number
+     * @param page the page
      * @throws IOException if an I/O error occurs
      */
-    public void writePage(int page) throws IOException {
-        page = page & PAGE_MASK;
-        if (page > raFile.length()) {
-            throw new IOException("writePage: Invalid page number " + page);
-        }
-        if (buffer.length != PAGE_SIZE) {
-            throw new IllegalStateException("writePage: buffer size invalid");
+    private void writePage(Page page) throws IOException {
+        raFile.seek(page.offset);
+        raFile.write(page.data);
+        page.dirty = false;
+    }
+
+    /**
+     * Saves the dirty cached pages overlapping a range of the disk buffer.
+     *
+     * @param from    the start of the range (inclusive)
+     * @param to      the end of the range (exclusive)
+     * @param discard true if the overlapping pages are to be removed from
+     *                the cache
+     * @throws IOException if an I/O error occurs
+     */
+    private void flushPages(long from, long to, boolean discard)
+            throws IOException {
+        for (Iterator<Page> it = pages.values().iterator(); it.hasNext();) {
+            Page page = it.next();
+            if (page.offset < to && page.offset + pageSize > from) {
+                if (page.dirty) {
+                    writePage(page);
+                }
+                if (discard) {
+                    it.remove();
+                    if (page == currentPage) {
+                        currentPage = null;
+                    }
+                }
+            }
         }
-        raFile.seek(page);
-        raFile.write(buffer);
-        bufferDirty = false;
+    }
+
+    /**
+     * Discards all cached pages without saving them.
+     */
+    private void discardPages() {
+        pages.clear();
+        currentPage = null;
     }
 
     /**
      * Logically closes the file or physically close it if the open count is
      * now zero.
      * <p/>
-     * Any updated buffer in memory is flushed to disk before the file is
+     * Any updated pages in memory are flushed to disk before the file is
      * closed.
      *
      * @throws IOException if an I/O error occurs
@@ -492,14 +750,11 @@ public class BlobBuffer {
     public void close() throws IOException {
         if (openCount > 0) {
             if (--openCount == 0 && raFile != null) {
-                if (bufferDirty) {
-                    writePage(currentPage);
-                }
-                raFile.close();
+                flushPages(0, Long.MAX_VALUE, false);
                 raFile = null;
-                // Allow buffer to be garbage collected
-                buffer = EMPTY_BUFFER;
-                currentPage = INVALID_PAGE;
+                storage.file.close();
+                // Allow pages to be garbage collected
+                discardPages();
             }
         }
     }
@@ -513,13 +768,14 @@ public class BlobBuffer {
     public void growBuffer(int minSize) {
         if (buffer.length == 0) {
             // Assign initial buffer
-            buffer = new byte[Math.max(PAGE_SIZE, minSize)];
+            buffer = new byte[Math.max(pageSize, minSize)];
         } else {
             byte[] tmp;
             if (buffer.length * 2 > minSize && buffer.length <= MAX_BUF_INC) {
                 tmp = new byte[buffer.length * 2];
             } else {
-                tmp = new byte[minSize + MAX_BUF_INC];
+                tmp = new byte[(int) Math.min((long) minSize + MAX_BUF_INC,
+                        Integer.MAX_VALUE)];
             }
             // Copy over existing data
             System.arraycopy(buffer, 0, tmp, 0, buffer.length);
@@ -543,6 +799,79 @@ public class BlobBuffer {
         length = buffer.length;
     }
 
+    /**
+     * The off-heap memory and disk file of a buffer. Must not refer to the
+     * buffer, so that it can be released once the buffer is unreachable.
+     */
+    private static final class Storage implements Runnable {
+        /**
+         * The off-heap chunks holding the data, or <code>null</code> if the
+         * data is not stored in the {@link LobArena}.
+         */
+        ByteBuffer[] chunks;
+        /**
+         * The number of allocated chunks.
+         */
+        int chunkCount;
+        /**
+         * The temporary BLOB disk file.
+         */
+        SpillFile file;
+
+        /**
+         * Returns the off-heap chunks to the {@link LobArena}.
+         */
+        void releaseChunks() {
+            if (chunks != null) {
+                for (int i = 0; i < chunkCount; i++) {
+                    LobArena.release(chunks[i]);
+                }
+                chunks = null;
+                chunkCount = 0;
+            }
+        }
+
+        /**
+         * Returns the disk file to the {@link SpillFile} pool.
+         */
+        void releaseFile() {
+            if (file != null) {
+                file.release();
+                file = null;
+            }
+        }
+
+        /**
+         * Releases both the off-heap memory and the disk file.
+         */
+        public void run() {
+            releaseChunks();
+            releaseFile();
+        }
+    }
+
+    /**
+     * A cached page of the disk buffer.
+     */
+    private static final class Page {
+        /**
+         * The offset of the page in the disk buffer.
+         */
+        long offset;
+        /**
+         * The page data.
+         */
+        final byte[] data;
+        /**
+         * Indicates the page must be saved.
+         */
+        boolean dirty;
+
+        Page(int size) {
+            data = new byte[size];
+        }
+    }
+
     //
     // ---- Inner classes implementing the various input/output stream classes ---
     //
@@ -551,8 +880,9 @@ public class BlobBuffer {
      * An <code>InputStream</code> over the BLOB buffer.
      */
     private class BlobInputStream extends InputStream {
-        private int readPtr;
+        private long readPtr;
         private boolean open;
+        private Cleaner.Cleanable cleanable;
 
         /**
          * Costructs an <code>InputStream</code> object over the BLOB buffer.
@@ -563,23 +893,8 @@ public class BlobBuffer {
         public BlobInputStream(long pos) throws IOException {
             open();
             open = true;
-            readPtr = (int) pos;
-        }
-
-        /**
-         * Ensures underlying BLOB file can be closed even if user does not
-         * close this stream.
-         */
-        protected void finalize() throws Throwable {
-            if (open) {
-                try {
-                    close();
-                } catch (IOException e) {
-                    // Ignore closing anyway
-                } finally {
-                    super.finalize();
-                }
-            }
+            cleanable = registerStream(this);
+            readPtr = pos;
         }
 
         /**
@@ -588,7 +903,7 @@ public class BlobBuffer {
          * @throws IOException if an I/O error occurs
          */
         public int available() throws IOException {
-            return (int) getLength() - readPtr;
+            return (int) Math.min(getLength() - readPtr, Integer.MAX_VALUE);
         }
 
         /**
@@ -629,6 +944,9 @@ public class BlobBuffer {
          */
         public void close() throws IOException {
             if (open) {
+                if (cleanable != null) {
+                    cleanable.cancel();
+                }
                 BlobBuffer.this.close();
                 open = false;
             }
@@ -639,8 +957,9 @@ public class BlobBuffer {
      * A Big Endian Unicode <code>InputStream</code> over the CLOB buffer.
      */
     private class UnicodeInputStream extends InputStream {
-        private int readPtr;
+        private long readPtr;
         private boolean open;
+        private Cleaner.Cleanable cleanable;
 
         /**
          * Costructs an InputStream object over the BLOB buffer.
@@ -651,23 +970,8 @@ public class BlobBuffer {
         public UnicodeInputStream(long pos) throws IOException {
             open();
             open = true;
-            readPtr = (int) pos;
-        }
-
-        /**
-         * Ensures underlying BLOB file can be closed even if user does not
-         * close this stream.
-         */
-        protected void finalize() throws Throwable {
-            if (open) {
-                try {
-                    close();
-                } catch (IOException e) {
-                    // Ignore closing anyway
-                } finally {
-                    super.finalize();
-                }
-            }
+            cleanable = registerStream(this);
+            readPtr = pos;
         }
 
         /**
@@ -676,7 +980,7 @@ public class BlobBuffer {
          * @throws IOException if an I/O error occurs
          */
         public int available() throws IOException {
-            return (int) getLength() - readPtr;
+            return (int) Math.min(getLength() - readPtr, Integer.MAX_VALUE);
         }
 
         /**
@@ -704,6 +1008,9 @@ public class BlobBuffer {
          */
         public void close() throws IOException {
             if (open) {
+                if (cleanable != null) {
+                    cleanable.cancel();
+                }
                 BlobBuffer.this.close();
                 open = false;
             }
@@ -720,8 +1027,9 @@ public class BlobBuffer {
      * is desired, comment out the line indicated in the read method.
      */
     private class AsciiInputStream extends InputStream {
-        private int readPtr;
+        private long readPtr;
         private boolean open;
+        private Cleaner.Cleanable cleanable;
 
         /**
          * Costructs an InputStream object over the BLOB buffer.
@@ -732,23 +1040,8 @@ public class BlobBuffer {
         public AsciiInputStream(long pos) throws IOException {
             open();
             open = true;
-            readPtr = (int) pos;
-        }
-
-        /**
-         * Ensures underlying BLOB file can be closed even if user does not
-         * close this stream.
-         */
-        protected void finalize() throws Throwable {
-            if (open) {
-                try {
-                    close();
-                } catch (IOException e) {
-                    // Ignore closing anyway
-                } finally {
-                    super.finalize();
-                }
-            }
+            cleanable = registerStream(this);
+            readPtr = pos;
         }
 
         /**
@@ -757,7 +1050,7 @@ public class BlobBuffer {
          * @throws IOException if an I/O error occurs
          */
         public int available() throws IOException {
-            return ((int) getLength() - readPtr) / 2;
+            return (int) Math.min((getLength() - readPtr) / 2, Integer.MAX_VALUE);
         }
 
         /**
@@ -792,6 +1085,9 @@ public class BlobBuffer {
          */
         public void close() throws IOException {
             if (open) {
+                if (cleanable != null) {
+                    cleanable.cancel();
+                }
                 BlobBuffer.this.close();
                 open = false;
             }
@@ -802,8 +1098,9 @@ public class BlobBuffer {
      * Implements an <code>OutputStream</code> for BLOB data.
      */
     private class BlobOutputStream extends OutputStream {
-        private int writePtr;
+        private long writePtr;
         private boolean open;
+        private Cleaner.Cleanable cleanable;
 
         /**
          * Costructs an OutputStream object over the BLOB buffer.
@@ -814,23 +1111,8 @@ public class BlobBuffer {
         BlobOutputStream(long pos) throws IOException {
             open();
             open = true;
-            writePtr = (int) pos;
-        }
-
-        /**
-         * Ensures underlying BLOB file can be closed even if user does not
-         * close this stream.
-         */
-        protected void finalize() throws Throwable {
-            if (open) {
-                try {
-                    close();
-                } catch (IOException e) {
-                    // Ignore closing anyway
-                } finally {
-                    super.finalize();
-                }
-            }
+            cleanable = registerStream(this);
+            writePtr = pos;
         }
 
         /**
@@ -863,6 +1145,9 @@ public class BlobBuffer {
          */
         public void close() throws IOException {
             if (open) {
+                if (cleanable != null) {
+                    cleanable.cancel();
+                }
                 BlobBuffer.this.close();
                 open = false;
             }
@@ -873,8 +1158,9 @@ public class BlobBuffer {
      * Implements an ASCII <code>OutputStream</code> for CLOB data.
      */
     private class AsciiOutputStream extends OutputStream {
-        private int writePtr;
+        private long writePtr;
         private boolean open;
+        private Cleaner.Cleanable cleanable;
 
         /**
          * Costructs an ASCII <code>OutputStream</code> object over the BLOB
@@ -886,23 +1172,8 @@ public class BlobBuffer {
         AsciiOutputStream(long pos) throws IOException {
             open();
             open = true;
-            writePtr = (int) pos;
-        }
-
-        /**
-         * Ensures underlying BLOB file can be closed even if user does not
-         * close this stream.
-         */
-        protected void finalize() throws Throwable {
-            if (open) {
-                try {
-                    close();
-                } catch (IOException e) {
-                    // Ignore closing anyway
-                } finally {
-                    super.finalize();
-                }
-            }
+            cleanable = registerStream(this);
+            writePtr = pos;
         }
 
         /**
@@ -923,6 +1194,9 @@ public class BlobBuffer {
          */
         public void close() throws IOException {
             if (open) {
+                if (cleanable != null) {
+                    cleanable.cancel();
+                }
                 BlobBuffer.this.close();
                 open = false;
             }
@@ -965,7 +1239,7 @@ public class BlobBuffer {
 //            }
             // We do need a subset or we are reading from the file
             byte[] data = new byte[len];
-            if (blobFile == null) {
+            if (storage.file == null && storage.chunks == null) {
                 // Just copy subset from memory buffer
                 System.arraycopy(buffer, (int) (pos), data, 0, len);
             } else {
@@ -974,7 +1248,7 @@ public class BlobBuffer {
                 int bc = is.read(data);
                 is.close();
                 if (bc != data.length) {
-                    throw new IOException("Unexpected EOF on BLOB data file bc=" +
+                    throw new IOException("Unexpected EOF on BLOB data bc=" +
                             bc + " data.len=" + data.length);
                 }
             }
@@ -1028,7 +1302,8 @@ public class BlobBuffer {
      * BLOB.
      * <p/>
      * Given that we cannot know the final size of a BLOB created by the caller
-     * of this method, we assume the worst and create a disk BLOB by default.
+     * of this method, we assume the worst and move the data to off-heap memory
+     * or disk by default.
      *
      * @param pos   the start position in the buffer (from 1)
      * @param ascii true if an ASCII output stream is required
@@ -1047,9 +1322,7 @@ public class BlobBuffer {
                     "HY090");
         }
         try {
-            if (!isMemOnly && blobFile == null) {
-                createBlobFile();
-            }
+            createStorage();
             if (ascii) {
                 return new AsciiOutputStream(pos);
             } else {
@@ -1072,8 +1345,8 @@ public class BlobBuffer {
      *     the new data
      *   <li>The new data length does not exceed the in memory limit
      * </ol>
-     * then the new data is buffered entirely in memory, otherwise a disk file
-     * is created.
+     * then the new data is buffered entirely in memory, otherwise it is moved
+     * to off-heap memory or a disk file.
      *
      * @param pos    the start position in the buffer (from 1)
      * @param bytes  the byte array containing the data to copy
@@ -1102,8 +1375,7 @@ public class BlobBuffer {
             throw new SQLException(Messages.get("error.blobclob.badoffset"),
                     "HY090");
         }
-        if (len < 0 || pos + len > Integer.MAX_VALUE
-                || offset + len > bytes.length) {
+        if (len < 0 || offset + len > bytes.length) {
             throw new SQLException(Messages.get("error.blobclob.badlen"),
                     "HY090");
         }
@@ -1112,9 +1384,10 @@ public class BlobBuffer {
         // existing contents of the BLOB then just copy byte data to
         // a new buffer array if the size is small enough.
         //
-        if (blobFile == null && pos == 0
+        if (storage.file == null && pos == 0
                 && len >= length
                 && len <= maxMemSize) {
+            storage.releaseChunks();
             if (copy) {
                 buffer = new byte[len];
                 System.arraycopy(bytes, offset, buffer, 0, len);
@@ -1127,18 +1400,15 @@ public class BlobBuffer {
         }
         try {
             //
-            // OK we will now try and create a BLOB file as this
-            // is a more complex update.
+            // OK we will now move the data to off-heap memory or a
+            // BLOB file as this is a more complex update.
             //
-            if (!isMemOnly && blobFile == null) {
-                createBlobFile();
-            }
+            createStorage();
             //
             // Open the BLOB file
             //
             open();
-            int ptr = (int) pos;
-            write(ptr, bytes, offset, len);
+            write(pos, bytes, offset, len);
             close();
             return len;
         } catch (IOException e) {
@@ -1163,7 +1433,7 @@ public class BlobBuffer {
      * @param length the length of the valid data in the buffer
      */
     public void setLength(long length) {
-        this.length = (int) length;
+        this.length = length;
     }
 
     /**
@@ -1182,29 +1452,16 @@ public class BlobBuffer {
                     "HY090");
         }
 
-        length = (int) len;
+        length = len;
         if (len == 0) {
-            try {
-                // Try to discard and delete work file
-                // Any open input streams will get EOF
-                // open write streams will probably fail.
-                if (blobFile != null) {
-                    if (raFile != null) {
-                        raFile.close();
-                    }
-                    blobFile.delete();
-                }
-            } catch (IOException e) {
-                throw new SQLException(Messages.get("error.generic.ioerror",
-                        e.getMessage()),
-                        "HY000");
-            } finally {
-                buffer = EMPTY_BUFFER;
-                blobFile = null;
-                raFile = null;
-                openCount = 0;
-                currentPage = INVALID_PAGE;
-            }
+            // Discard off-heap memory and return work file to the pool
+            // Any open input streams will get EOF
+            // open write streams will probably fail.
+            buffer = EMPTY_BUFFER;
+            storage.run();
+            raFile = null;
+            openCount = 0;
+            discardPages();
         }
     }
 
@@ -1213,11 +1470,31 @@ public class BlobBuffer {
      *
      * @param pattern the byte array containg the search pattern
      * @param start   the start position in the BLOB (from 1)
-     * @return the <code>int</code> start index for the pattern (from 1) or -1
+     * @return the <code>long</code> start index for the pattern (from 1) or -1
+     *         if the pattern is not found.
+     * @throws SQLException if an error occurs
+     */
+    public long position(byte[] pattern, long start) throws SQLException {
+        return position(pattern, start, false);
+    }
+
+    /**
+     * Provides support for pattern searching methods.
+     * <p/>
+     * The search uses the Boyer-Moore-Horspool algorithm. Disk and off-heap
+     * data is searched a window at a time, the window overlapping the previous
+     * one by the pattern length.
+     *
+     * @param pattern the byte array containg the search pattern
+     * @param start   the start position in the BLOB (from 1)
+     * @param unicode true if the buffer and pattern hold UTF-16 data (a CLOB),
+     *                i.e. only matches starting at even offsets are valid
+     * @return the <code>long</code> start index for the pattern (from 1) or -1
      *         if the pattern is not found.
      * @throws SQLException if an error occurs
      */
-    public int position(byte[] pattern, long start) throws SQLException {
+    public long position(byte[] pattern, long start, boolean unicode)
+            throws SQLException {
         try {
             start--;
             if (start < 0) {
@@ -1236,37 +1513,82 @@ public class BlobBuffer {
                 // Impossible for there to be a match
                 return -1;
             }
-            // FIXME Implement a better (O(n)) search algorithm
-            int limit = length - pattern.length;
-            if (blobFile == null) {
-                for (int i = (int) start; i <= limit; i++) {
-                    int p;
-                    for (p = 0;
-                         p < pattern.length && buffer[i + p] == pattern[p];
-                         p++);
-                    if (p == pattern.length) {
-                        return i + 1;
+            int alignMask = unicode ? 1 : 0;
+            // Distance from the last occurrence of each byte value to the
+            // end of the pattern, the last byte excluded
+            int[] skip = new int[256];
+            Arrays.fill(skip, pattern.length);
+            for (int i = 0; i < pattern.length - 1; i++) {
+                skip[pattern[i] & 0xFF] = pattern.length - 1 - i;
+            }
+            if (storage.file == null && storage.chunks == null) {
+                int i = indexOf(buffer, (int) start, (int) length, 0,
+                        pattern, skip, alignMask);
+                return (i < 0) ? -1 : i + 1;
+            }
+            open();
+            try {
+                byte[] window = new byte[Math.max(SEARCH_WINDOW, pattern.length * 2)];
+                long base = start;
+                int valid = 0;
+                while (base + valid < length) {
+                    // Fill the window
+                    int res;
+                    while (valid < window.length && (res = read(base + valid,
+                            window, valid, window.length - valid)) > 0) {
+                        valid += res;
                     }
-                }
-            } else {
-                open();
-                for (int i = (int) start; i <= limit; i++) {
-                    int p;
-                    for (p = 0;
-                         p < pattern.length && read(i + p) == (pattern[p] & 0xFF);
-                         p++);
-                    if (p == pattern.length) {
-                        close();
-                        return i + 1;
+                    int i = indexOf(window, 0, valid, base, pattern, skip,
+                            alignMask);
+                    if (i >= 0) {
+                        return base + i + 1;
                     }
+                    // A match may start within the last pattern length - 1
+                    // bytes, keep them
+                    int keep = Math.min(valid, pattern.length - 1);
+                    System.arraycopy(window, valid - keep, window, 0, keep);
+                    base += valid - keep;
+                    valid = keep;
                 }
+                return -1;
+            } finally {
                 close();
             }
-            return -1;
         } catch (IOException e) {
             throw new SQLException(Messages.get("error.generic.ioerror",
                     e.getMessage()),
                     "HY000");
         }
     }
+
+    /**
+     * Searches a byte array for a pattern using the Boyer-Moore-Horspool
+     * algorithm.
+     *
+     * @param data      the data to search
+     * @param from      the start offset in the data
+     * @param to        the end offset in the data (exclusive)
+     * @param base      the position of the data in the BLOB
+     * @param pattern   the pattern to search for
+     * @param skip      the bad character shift table of the pattern
+     * @param alignMask the mask of the BLOB position bits that must be 0 for
+     *                  a valid match
+     * @return the offset in the data of the first match or -1
+     */
+    private static int indexOf(byte[] data, int from, int to, long base,
+                               byte[] pattern, int[] skip, int alignMask) {
+        int last = pattern.length - 1;
+        for (int i = from; i <= to - pattern.length; i += skip[data[i + last] & 0xFF]) {
+            int p = last;
+            while (data[i + p] == pattern[p]) {
+                if (p-- == 0) {
+                    if (((base + i) & alignMask) == 0) {
+                        return i;
+                    }
+                    break;
+                }
+            }
+        }
+        return -1;
+    }
 }
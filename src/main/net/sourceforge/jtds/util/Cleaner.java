@@ -0,0 +1,140 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.util;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Releases resources of objects that have become unreachable, as a
+ * replacement for <code>finalize()</code>.
+ * <p/>
+ * An action registered for an object is run by a daemon thread once the
+ * object has become phantom reachable, unless it has been run or cancelled
+ * explicitly before. Unlike finalizable objects, the object itself is
+ * collected right away; the action must therefore not refer to it, only to
+ * the resources to release.
+ */
+public final class Cleaner {
+
+    /**
+     * A registered cleanup action.
+     */
+    public interface Cleanable {
+        /**
+         * Runs the action now, unless it has already been run or cancelled.
+         */
+        void clean();
+
+        /**
+         * Unregisters the action without running it.
+         */
+        void cancel();
+    }
+
+    /** The queue the collected objects' references are enqueued in. */
+    private static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    /** The pending references, keeping them reachable themselves. */
+    private static final Set<Ref> pending =
+            Collections.newSetFromMap(new ConcurrentHashMap<Ref, Boolean>());
+    /** The cleaner thread, started with the first registration. */
+    private static Thread thread;
+
+    private Cleaner() {
+        // Only static methods
+    }
+
+    /**
+     * Registers an action to be run when an object has become unreachable.
+     *
+     * @param owner  the object
+     * @param action the action, must not refer to <code>owner</code>
+     * @return the <code>Cleanable</code> to run or cancel the action early
+     */
+    public static Cleanable register(Object owner, Runnable action) {
+        startThread();
+        Ref ref = new Ref(owner, action);
+        pending.add(ref);
+        return ref;
+    }
+
+    /**
+     * Retrieves the number of registered actions that have not been run yet.
+     *
+     * @return the number of pending actions
+     */
+    public static int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Starts the cleaner thread, if not running.
+     */
+    private static synchronized void startThread() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread("jTDS Cleaner") {
+            public void run() {
+                while (true) {
+                    try {
+                        ((Ref) queue.remove()).clean();
+                    } catch (InterruptedException e) {
+                        // Ignore, the thread runs for the lifetime of the VM
+                    }
+                }
+            }
+        };
+        // Ensure that this thread does not prevent the VM from exiting
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * A registered action.
+     */
+    private static final class Ref extends PhantomReference<Object>
+            implements Cleanable {
+        private final Runnable action;
+
+        Ref(Object owner, Runnable action) {
+            super(owner, queue);
+            this.action = action;
+        }
+
+        public void clean() {
+            if (pending.remove(this)) {
+                clear();
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    Logger.logException(e);
+                }
+            }
+        }
+
+        public void cancel() {
+            if (pending.remove(this)) {
+                clear();
+            }
+        }
+    }
+}
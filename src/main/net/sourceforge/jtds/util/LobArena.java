@@ -0,0 +1,235 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Driver-wide pool of off-heap memory for LOB data.
+ * <p/>
+ * Large LOB values are stored by {@link BlobBuffer} in fixed size chunks of
+ * direct memory drawn from this arena instead of growing heap arrays or
+ * temporary files. The total size of the chunks in use by all connections is
+ * limited by a global budget, set from the <code>lobMemory</code> URL
+ * property. Only when the budget is exhausted do LOBs spill to disk. Released
+ * chunks are kept for reuse as long as they fit into the budget, as direct
+ * memory is expensive to allocate.
+ * <p/>
+ * Usage is reported by {@link #getStatistics()} and the individual getters.
+ */
+public final class LobArena {
+
+    /**
+     * The size of a chunk (must be power of 2).
+     */
+    public static final int CHUNK_SIZE = 8192;
+    /**
+     * The number of bits of the offset within a chunk.
+     */
+    static final int CHUNK_SHIFT = 13;
+
+    /**
+     * The global memory budget in bytes.
+     */
+    private static volatile long budget = 16384 * 1024L;
+    /**
+     * Whether the budget has been set, see {@link #requestBudget(long)}.
+     */
+    private static boolean configured;
+    /**
+     * The number of bytes in chunks handed out.
+     */
+    private static final AtomicLong used = new AtomicLong();
+    /**
+     * The peak of {@link #used}.
+     */
+    private static final AtomicLong peak = new AtomicLong();
+    /**
+     * The number of chunks handed out so far.
+     */
+    private static final AtomicLong allocations = new AtomicLong();
+    /**
+     * The number of chunk requests refused for lack of budget.
+     */
+    private static final AtomicLong refusals = new AtomicLong();
+    /**
+     * Released chunks available for reuse.
+     */
+    private static final ConcurrentLinkedQueue<ByteBuffer> free =
+            new ConcurrentLinkedQueue<ByteBuffer>();
+    /**
+     * The number of chunks in {@link #free}.
+     */
+    private static final AtomicInteger freeCount = new AtomicInteger();
+
+    private LobArena() {
+        // Only static methods
+    }
+
+    /**
+     * Sets the global memory budget for all connections.
+     *
+     * @param budget the budget in bytes, 0 to store LOBs on disk only
+     */
+    public static synchronized void setBudget(long budget) {
+        configured = true;
+        LobArena.budget = budget;
+        trim();
+    }
+
+    /**
+     * Requests a global memory budget on behalf of a connection. The first
+     * request (or {@link #setBudget(long)}) sets the budget, later requests
+     * can only raise it, so the largest budget requested by any connection
+     * applies to all of them.
+     *
+     * @param budget the budget in bytes, 0 to store LOBs on disk only
+     */
+    public static synchronized void requestBudget(long budget) {
+        if (!configured || budget > LobArena.budget) {
+            configured = true;
+            LobArena.budget = budget;
+            trim();
+        }
+    }
+
+    /**
+     * Drops pooled chunks that no longer fit into the budget.
+     */
+    private static void trim() {
+        while (used.get() + (long) freeCount.get() * CHUNK_SIZE > budget
+                && free.poll() != null) {
+            freeCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Retrieves the global memory budget.
+     *
+     * @return the budget in bytes
+     */
+    public static long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Allocates a chunk, if the budget allows.
+     *
+     * @return a cleared chunk of <code>CHUNK_SIZE</code> bytes or
+     *         <code>null</code> if the budget is exhausted
+     */
+    static ByteBuffer allocate() {
+        long size;
+        do {
+            size = used.get();
+            if (size + CHUNK_SIZE > budget) {
+                refusals.incrementAndGet();
+                return null;
+            }
+        } while (!used.compareAndSet(size, size + CHUNK_SIZE));
+
+        size += CHUNK_SIZE;
+        long max;
+        while (size > (max = peak.get()) && !peak.compareAndSet(max, size)) {
+            // Retry
+        }
+        allocations.incrementAndGet();
+
+        ByteBuffer chunk = free.poll();
+        if (chunk == null) {
+            return ByteBuffer.allocateDirect(CHUNK_SIZE);
+        }
+        freeCount.decrementAndGet();
+        chunk.clear();
+        return chunk;
+    }
+
+    /**
+     * Returns a chunk to the arena. The chunk must not be used any more.
+     *
+     * @param chunk a chunk obtained from {@link #allocate()}
+     */
+    static void release(ByteBuffer chunk) {
+        long size = used.addAndGet(-CHUNK_SIZE);
+        if (size + ((long) freeCount.get() + 1) * CHUNK_SIZE <= budget) {
+            freeCount.incrementAndGet();
+            free.offer(chunk);
+        }
+    }
+
+    /**
+     * Retrieves the memory in use by LOBs.
+     *
+     * @return the number of bytes in chunks handed out
+     */
+    public static long getUsage() {
+        return used.get();
+    }
+
+    /**
+     * Retrieves the peak memory usage.
+     *
+     * @return the maximum number of bytes in chunks handed out
+     */
+    public static long getPeakUsage() {
+        return peak.get();
+    }
+
+    /**
+     * Retrieves the memory held for reuse.
+     *
+     * @return the number of bytes in released chunks kept for reuse
+     */
+    public static long getPooled() {
+        return (long) freeCount.get() * CHUNK_SIZE;
+    }
+
+    /**
+     * Retrieves the number of chunks handed out so far.
+     *
+     * @return the number of allocations
+     */
+    public static long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * Retrieves the number of chunk requests that had to be refused, causing
+     * a LOB to spill to disk.
+     *
+     * @return the number of refused allocations
+     */
+    public static long getRefusals() {
+        return refusals.get();
+    }
+
+    /**
+     * Returns a summary of the arena usage, e.g. <code>"2048K of 16384K used,
+     * peak 4096K, 1024K pooled, 768 allocations, 0 refused"</code>.
+     *
+     * @return the statistics as a <code>String</code>
+     */
+    public static String getStatistics() {
+        return getUsage() / 1024 + "K of " + getBudget() / 1024 + "K used, peak "
+                + getPeakUsage() / 1024 + "K, " + getPooled() / 1024 + "K pooled, "
+                + getAllocations() + " allocations, " + getRefusals() + " refused";
+    }
+}
@@ -0,0 +1,248 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A temporary file used to spill LOB data or queued network packets to disk.
+ * <p/>
+ * Instead of creating and deleting a file for each spilling
+ * {@link BlobBuffer} or socket queue, released files are truncated and kept
+ * in a small driver-wide pool for reuse. Files left in the pool are deleted
+ * when the VM exits.
+ * <p/>
+ * Usage is reported by {@link #getStatistics()} and the individual getters.
+ */
+public final class SpillFile {
+
+    /**
+     * The maximum number of released files kept for reuse.
+     */
+    static final int MAX_POOLED = 16;
+
+    /**
+     * Released files available for reuse.
+     */
+    private static final ConcurrentLinkedQueue<SpillFile> pool =
+            new ConcurrentLinkedQueue<SpillFile>();
+    /**
+     * The number of files in {@link #pool}.
+     */
+    private static final AtomicInteger pooled = new AtomicInteger();
+    /**
+     * The number of files in use.
+     */
+    private static final AtomicInteger live = new AtomicInteger();
+    /**
+     * The number of files created so far.
+     */
+    private static final AtomicLong created = new AtomicLong();
+    /**
+     * The number of files taken from the pool so far.
+     */
+    private static final AtomicLong reused = new AtomicLong();
+    /**
+     * True once the shutdown hook deleting pooled files is installed.
+     */
+    private static final AtomicBoolean hookInstalled = new AtomicBoolean();
+
+    /** The file. */
+    private final File file;
+    /** The directory the file was created in, <code>null</code> for the default. */
+    private final File dir;
+    /** The open file, or <code>null</code>. */
+    private RandomAccessFile raFile;
+    /** True while the file is in use. */
+    private final AtomicBoolean inUse = new AtomicBoolean(true);
+
+    private SpillFile(File file, File dir) {
+        this.file = file;
+        this.dir = dir;
+    }
+
+    /**
+     * Obtains an empty spill file, from the pool if possible.
+     *
+     * @param dir the directory to create the file in, or <code>null</code>
+     *            for the default temporary directory
+     * @return the file, which must be released by {@link #release()}
+     * @throws IOException if the file cannot be created
+     */
+    public static SpillFile acquire(File dir) throws IOException {
+        for (SpillFile f : pool) {
+            if ((dir == null ? f.dir == null : dir.equals(f.dir)) && pool.remove(f)) {
+                pooled.decrementAndGet();
+                f.inUse.set(true);
+                live.incrementAndGet();
+                reused.incrementAndGet();
+                return f;
+            }
+        }
+
+        // deleteOnExit() is not used, memory leak, see http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6664633
+        SpillFile f = new SpillFile(File.createTempFile("jtds", ".tmp", dir), dir);
+        live.incrementAndGet();
+        created.incrementAndGet();
+        return f;
+    }
+
+    /**
+     * Retrieves the underlying file.
+     *
+     * @return the file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Opens the file for reading and writing, if not already open.
+     *
+     * @return the open file
+     * @throws IOException if the file cannot be opened
+     */
+    public synchronized RandomAccessFile open() throws IOException {
+        if (raFile == null) {
+            raFile = new RandomAccessFile(file, "rw");
+        }
+        return raFile;
+    }
+
+    /**
+     * Closes the file, keeping its content.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void close() throws IOException {
+        if (raFile != null) {
+            RandomAccessFile tmp = raFile;
+            raFile = null;
+            tmp.close();
+        }
+    }
+
+    /**
+     * Releases the file, discarding its content. The file is returned to the
+     * pool or deleted. Any further calls are ignored.
+     */
+    public void release() {
+        if (!inUse.compareAndSet(true, false)) {
+            return;
+        }
+        live.decrementAndGet();
+
+        try {
+            synchronized (this) {
+                open().setLength(0);
+                close();
+            }
+            if (pooled.incrementAndGet() <= MAX_POOLED) {
+                installHook();
+                pool.offer(this);
+                return;
+            }
+            pooled.decrementAndGet();
+        } catch (IOException e) {
+            // Ignore, the file is deleted
+        }
+
+        delete();
+    }
+
+    /**
+     * Closes and deletes the file.
+     */
+    private void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        file.delete();
+    }
+
+    /**
+     * Makes sure pooled files do not outlive the VM.
+     */
+    private static void installHook() {
+        if (hookInstalled.compareAndSet(false, true)) {
+            Runtime.getRuntime().addShutdownHook(new Thread("jTDS SpillFile cleanup") {
+                public void run() {
+                    SpillFile f;
+                    while ((f = pool.poll()) != null) {
+                        f.delete();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Retrieves the number of spill files in use.
+     *
+     * @return the number of live files
+     */
+    public static int getLiveCount() {
+        return live.get();
+    }
+
+    /**
+     * Retrieves the number of released spill files kept for reuse.
+     *
+     * @return the number of pooled files
+     */
+    public static int getPooledCount() {
+        return pooled.get();
+    }
+
+    /**
+     * Retrieves the number of spill files created so far.
+     *
+     * @return the number of created files
+     */
+    public static long getCreatedCount() {
+        return created.get();
+    }
+
+    /**
+     * Retrieves the number of times a pooled spill file was reused.
+     *
+     * @return the number of reused files
+     */
+    public static long getReusedCount() {
+        return reused.get();
+    }
+
+    /**
+     * Returns a summary of the spill file usage, e.g. <code>"2 live, 14
+     * pooled, 16 created, 830 reused"</code>.
+     *
+     * @return the statistics as a <code>String</code>
+     */
+    public static String getStatistics() {
+        return getLiveCount() + " live, " + getPooledCount() + " pooled, "
+                + getCreatedCount() + " created, " + getReusedCount() + " reused";
+    }
+}
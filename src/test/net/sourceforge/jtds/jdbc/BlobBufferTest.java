@@ -0,0 +1,299 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import net.sourceforge.jtds.util.BlobBuffer;
+import net.sourceforge.jtds.util.LobArena;
+import net.sourceforge.jtds.util.SpillFile;
+
+/**
+ * Tests the off-heap and disk backed storage of the {@link BlobBuffer}.
+ */
+public class BlobBufferTest extends TestCase {
+
+    private static final File TMP = new File(System.getProperty("java.io.tmpdir"));
+
+    private long budget;
+
+    protected void setUp() {
+        // store on disk unless a test sets a budget
+        budget = LobArena.getBudget();
+        LobArena.setBudget(0);
+    }
+
+    protected void tearDown() {
+        LobArena.setBudget(budget);
+    }
+
+    /**
+     * Random writes and reads through a small page cache have to match the
+     * same operations on a plain byte array.
+     */
+    public void testRandomAccess() throws Exception {
+        BlobBuffer buf = new BlobBuffer(TMP, 0, 512, 4);
+        byte[] expected = new byte[64 * 1024];
+        Random rnd = new Random(42);
+        rnd.nextBytes(expected);
+
+        // 512 byte chunks go directly to the file, smaller ones through the cache
+        OutputStream out = buf.setBinaryStream(1, false);
+        for (int i = 0; i < expected.length; i += 100) {
+            out.write(expected, i, Math.min(100, expected.length - i));
+        }
+        out.close();
+        assertEquals(expected.length, buf.getLength());
+
+        for (int i = 0; i < 2000; i++) {
+            int pos = rnd.nextInt(expected.length);
+            int len = rnd.nextInt(2000);
+            len = Math.min(len, expected.length - pos);
+            if (rnd.nextBoolean()) {
+                byte[] data = new byte[len];
+                rnd.nextBytes(data);
+                System.arraycopy(data, 0, expected, pos, len);
+                buf.setBytes(pos + 1, data, 0, len, true);
+            } else {
+                byte[] data = buf.getBytes(pos + 1, len);
+                byte[] exp = new byte[len];
+                System.arraycopy(expected, pos, exp, 0, len);
+                assertTrue(Arrays.equals(exp, data));
+            }
+        }
+
+        assertTrue(Arrays.equals(expected, buf.getBytes(1, expected.length)));
+        assertEquals(4 * 512 + 7, buf.position(new byte[] {expected[4 * 512 + 6], expected[4 * 512 + 7], expected[4 * 512 + 8]}, 4 * 512 + 1));
+        buf.truncate(0);
+    }
+
+    /**
+     * Data is kept off-heap while the budget allows and moved to disk,
+     * without loss, once it is exhausted.
+     */
+    public void testArena() throws Exception {
+        LobArena.setBudget(4 * LobArena.CHUNK_SIZE);
+        long usage = LobArena.getUsage();
+        long refusals = LobArena.getRefusals();
+
+        byte[] data = new byte[3 * LobArena.CHUNK_SIZE - 10];
+        new Random(3).nextBytes(data);
+        BlobBuffer buf1 = new BlobBuffer(TMP, 0);
+        assertEquals(data.length, buf1.setBytes(1, data, 0, data.length, true));
+        assertEquals(usage + 3 * LobArena.CHUNK_SIZE, LobArena.getUsage());
+        assertTrue(Arrays.equals(data, buf1.getBytes(1, data.length)));
+        assertEquals(101, buf1.position(new byte[] {data[100], data[101]}, 1));
+
+        // the second buffer exceeds the budget and spills to disk
+        BlobBuffer buf2 = new BlobBuffer(TMP, 0);
+        OutputStream out = buf2.setBinaryStream(1, false);
+        for (int i = 0; i < data.length; i++) {
+            out.write(data[i]);
+        }
+        out.close();
+        assertTrue(LobArena.getRefusals() > refusals);
+        assertEquals(usage + 3 * LobArena.CHUNK_SIZE, LobArena.getUsage());
+        assertTrue(Arrays.equals(data, buf2.getBytes(1, data.length)));
+
+        buf1.truncate(0);
+        buf2.truncate(0);
+        assertEquals(usage, LobArena.getUsage());
+        assertTrue(LobArena.getPeakUsage() >= 4 * LobArena.CHUNK_SIZE);
+        assertEquals(4 * LobArena.CHUNK_SIZE, LobArena.getPooled());
+        assertTrue(LobArena.getStatistics().startsWith(usage / 1024 + "K of 32K used"));
+
+        // connections can only raise the budget
+        LobArena.requestBudget(LobArena.CHUNK_SIZE);
+        assertEquals(4 * LobArena.CHUNK_SIZE, LobArena.getBudget());
+        LobArena.requestBudget(8 * LobArena.CHUNK_SIZE);
+        assertEquals(8 * LobArena.CHUNK_SIZE, LobArena.getBudget());
+    }
+
+    /**
+     * Disk buffers are addressed by <code>long</code> pointers.
+     */
+    public void testBeyond2GB() throws Exception {
+        BlobBuffer buf = new BlobBuffer(TMP, 0);
+        buf.setBytes(1, new byte[] {1, 2, 3}, 0, 3, true);
+
+        // skip ahead rather than writing 3GB, the file is sparse
+        long pos = 3L << 30;
+        buf.setLength(pos);
+        byte[] data = "beyond 2GB".getBytes("ASCII");
+        assertEquals(data.length, buf.setBytes(pos + 1, data, 0, data.length, true));
+
+        assertEquals(pos + data.length, buf.getLength());
+        assertTrue(Arrays.equals(data, buf.getBytes(pos + 1, data.length)));
+        assertEquals(pos + 1, buf.position(data, pos - 100));
+
+        InputStream in = buf.getBinaryStream(false);
+        assertEquals(1, in.read());
+        assertEquals(2, in.read());
+        in.close();
+
+        buf.truncate(0);
+        assertEquals(0, buf.getLength());
+    }
+
+    /**
+     * Released disk files are reused, and the files of unreachable buffers
+     * are released without an explicit <code>truncate(0)</code>.
+     */
+    public void testSpillFiles() throws Exception {
+        byte[] data = new byte[1000];
+        new Random(5).nextBytes(data);
+
+        BlobBuffer buf = new BlobBuffer(TMP, 0);
+        buf.setBytes(1, data, 0, data.length, true);
+        int live = SpillFile.getLiveCount();
+        buf.truncate(0);
+        assertEquals(live - 1, SpillFile.getLiveCount());
+        assertTrue(SpillFile.getPooledCount() > 0);
+
+        long created = SpillFile.getCreatedCount();
+        long reused = SpillFile.getReusedCount();
+        buf.setBytes(1, data, 0, data.length, true);
+        assertEquals(created, SpillFile.getCreatedCount());
+        assertEquals(reused + 1, SpillFile.getReusedCount());
+        // the recycled file must not return stale data
+        assertTrue(Arrays.equals(data, buf.getBytes(1, data.length)));
+        assertEquals(data.length, buf.getLength());
+
+        // neither the buffer nor an open stream is closed explicitly
+        InputStream in = buf.getBinaryStream(false);
+        assertEquals(data[0] & 0xFF, in.read());
+        in = null;
+        buf = null;
+        for (int i = 0; i < 100 && SpillFile.getLiveCount() >= live; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(live - 1, SpillFile.getLiveCount());
+        assertTrue(SpillFile.getStatistics().startsWith(live - 1 + " live, "));
+    }
+
+    /**
+     * Pattern searches in memory, off-heap and on disk have to find the same
+     * matches as a naive search, also across search windows.
+     */
+    public void testPosition() throws Exception {
+        byte[] data = new byte[200000];
+        Random rnd = new Random(4);
+        for (int i = 0; i < data.length; i++) {
+            // small alphabet for many partial matches
+            data[i] = (byte) ('a' + rnd.nextInt(3));
+        }
+
+        BlobBuffer mem = new BlobBuffer(TMP, data.length);
+        mem.setBytes(1, data, 0, data.length, true);
+        BlobBuffer disk = new BlobBuffer(TMP, 0);
+        disk.setBytes(1, data, 0, data.length, true);
+        LobArena.setBudget(data.length + LobArena.CHUNK_SIZE);
+        BlobBuffer arena = new BlobBuffer(TMP, 0);
+        arena.setBytes(1, data, 0, data.length, true);
+
+        for (int i = 0; i < 200; i++) {
+            int len = 1 + rnd.nextInt(12);
+            int at = rnd.nextInt(data.length - len);
+            byte[] pattern = new byte[len];
+            System.arraycopy(data, at, pattern, 0, len);
+            long start = 1 + rnd.nextInt(data.length - 1);
+            long expected = naivePosition(data, pattern, start);
+            assertEquals(expected, mem.position(pattern, start));
+            assertEquals(expected, disk.position(pattern, start));
+            assertEquals(expected, arena.position(pattern, start));
+        }
+        assertEquals(-1, disk.position("abcabcabcabcabcabcabcabc".getBytes("ASCII"), 1));
+
+        // matches at odd offsets (even positions) are not valid in UTF-16 data
+        byte[] pattern = {'b', 'c'};
+        long first = naivePosition(data, pattern, 1);
+        long aligned = first;
+        while (aligned % 2 == 0) {
+            aligned = naivePosition(data, pattern, aligned + 1);
+        }
+        assertEquals(first, disk.position(pattern, 1));
+        assertEquals(aligned, disk.position(pattern, 1, true));
+        assertEquals(aligned, mem.position(pattern, 1, true));
+
+        mem.truncate(0);
+        disk.truncate(0);
+        arena.truncate(0);
+    }
+
+    private static long naivePosition(byte[] data, byte[] pattern, long start) {
+        for (int i = (int) start - 1; i <= data.length - pattern.length; i++) {
+            int p = 0;
+            while (p < pattern.length && data[i + p] == pattern[p]) {
+                p++;
+            }
+            if (p == pattern.length) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A match at the very end of a long disk buffer, preceded by partial
+     * matches across all search windows, has to be found.
+     */
+    public void testPositionAtEnd() throws Exception {
+        byte[] data = new byte[1024 * 1024];
+        Arrays.fill(data, (byte) 'a');
+        byte[] pattern = "aaaaaaaaaaaaaaab".getBytes("ASCII");
+        System.arraycopy(pattern, 0, data, data.length - pattern.length, pattern.length);
+        BlobBuffer buf = new BlobBuffer(TMP, 0);
+        buf.setBytes(1, data, 0, data.length, true);
+
+        assertEquals(data.length - pattern.length + 1, buf.position(pattern, 1));
+        assertEquals(data.length - 1, buf.position("ab".getBytes("ASCII"), data.length - 100));
+        assertEquals(-1, buf.position("ab".getBytes("ASCII"), data.length));
+        buf.truncate(0);
+    }
+
+    /**
+     * Random single byte reads clustered around a few hot spots have to
+     * return the right data with the default page cache and with a single
+     * 1KB page.
+     */
+    public void testRandomReads() throws Exception {
+        randomReads(new BlobBuffer(TMP, 0, 1024, 1));
+        randomReads(new BlobBuffer(TMP, 0));
+    }
+
+    private void randomReads(BlobBuffer buf) throws Exception {
+        byte[] data = new byte[100 * 1024];
+        new Random(1).nextBytes(data);
+        buf.setBytes(1, data, 0, data.length, true);
+
+        Random rnd = new Random(2);
+        for (int i = 0; i < 5000; i++) {
+            int pos = (rnd.nextInt(8) * 12000 + rnd.nextInt(4000)) % data.length;
+            assertEquals(data[pos], buf.getBytes(pos + 1, 1)[0]);
+        }
+        buf.truncate(0);
+    }
+
+}
@@ -0,0 +1,156 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the conversion tables of {@link CharsetInfo}.
+ */
+public class CharsetInfoTest extends TestCase {
+
+    private static final String[] SINGLE_BYTE = {
+        "ISO_1", "ISO15", "ISO88595", "CP437", "CP850", "CP1250", "CP1251",
+        "CP1252", "CP1253", "CP1256", "CP1257"};
+
+    /**
+     * Table conversions in single-byte charsets have to produce the same
+     * result as the <code>String</code> conversions.
+     */
+    public void testTables() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (char c = 0; c < 0xD800; c += 7) {
+            sb.append(c);
+        }
+        String text = sb.toString();
+        byte[] all = new byte[256];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = (byte) i;
+        }
+
+        for (String name : SINGLE_BYTE) {
+            CharsetInfo info = CharsetInfo.getCharset(name);
+            assertNotNull(name, info.getEncodeTable());
+            assertTrue(name, info.isAsciiCompatible());
+            String cs = info.getCharset();
+
+            byte[] expected = text.getBytes(cs);
+            byte[] table = info.getEncodeTable();
+            byte[] actual = new byte[text.length()];
+            for (int i = 0; i < actual.length; i++) {
+                actual[i] = table[text.charAt(i)];
+            }
+            assertTrue(name, Arrays.equals(expected, actual));
+
+            char[] decode = info.getDecodeTable();
+            char[] chars = new char[all.length];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = decode[all[i] & 0xFF];
+            }
+            assertEquals(name, new String(all, cs), new String(chars));
+        }
+    }
+
+    /**
+     * Multi-byte charsets have no tables but are still resolved.
+     */
+    public void testMultiByte() throws Exception {
+        CharsetInfo info = CharsetInfo.getCharset("CP932");
+        assertNull(info.getEncodeTable());
+        assertNull(info.getDecodeTable());
+        assertNotNull(info.getJavaCharset());
+        assertTrue(info.isAsciiCompatible());
+
+        info = CharsetInfo.getCharset("UTF8");
+        assertNull(info.getEncodeTable());
+        assertTrue(info.isAsciiCompatible());
+    }
+
+    /**
+     * The encodability check has to agree with a conversion round trip.
+     */
+    public void testCanEncode() throws Exception {
+        String[] values = {"", "plain ascii text", "caf\u00E9", "\u20AC 100",
+            "\u2019quoted\u2019", "\u0080", "\u4E2D\u6587", "ascii prefix \u0416",
+            "\uFFFD", "x?y"};
+        String[] names = {"ISO_1", "CP1252", "CP1251", "CP437", "CP932", "CP936"};
+
+        for (String name : names) {
+            CharsetInfo info = CharsetInfo.getCharset(name);
+            String cs = info.getCharset();
+            for (String value : values) {
+                assertEquals(name + ": " + value,
+                        new String(value.getBytes(cs), cs).equals(value),
+                        info.canEncode(value));
+            }
+        }
+        assertTrue(CharsetInfo.getCharset("UTF8").canEncode("\u4E2D"));
+        assertTrue(CharsetInfo.getCharset("CP1252").canEncode(null));
+
+        assertEquals(0, CharsetInfo.asciiPrefix("\u00E9abc"));
+        assertEquals(17, CharsetInfo.asciiPrefix("0123456789abcdefg\u00E9"));
+        assertEquals(20, CharsetInfo.asciiPrefix("0123456789abcdefghij"));
+    }
+
+    /**
+     * The encodability check has to agree with a conversion round trip for
+     * long ASCII, mostly ASCII and non-ASCII values.
+     */
+    public void testCanEncodeLong() throws Exception {
+        StringBuilder ascii = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            ascii.append((char) ('a' + i % 26));
+        }
+        String[] values = {ascii.toString(),
+            ascii.substring(0, 190) + "\u00E9\u00E8 \u20AC",
+            ascii.toString().replace('e', '\u00E9'),
+            ascii.substring(0, 190) + "\u0416"};
+
+        for (String name : new String[] {"CP1252", "CP936"}) {
+            CharsetInfo info = CharsetInfo.getCharset(name);
+            String cs = info.getCharset();
+            for (String value : values) {
+                assertEquals(name + ": " + value,
+                        new String(value.getBytes(cs), cs).equals(value),
+                        info.canEncode(value));
+            }
+        }
+    }
+
+    /**
+     * Encoding through the table has to match <code>String.getBytes()</code>
+     * for a value without ASCII characters.
+     */
+    public void testEncode() throws Exception {
+        CharsetInfo info = CharsetInfo.getCharset("CP1252");
+        byte[] table = info.getEncodeTable();
+        char[] chars = new char[100];
+        Arrays.fill(chars, '\u00E9');
+        String text = new String(chars);
+
+        byte[] out = new byte[text.length()];
+        for (int j = 0; j < out.length; j++) {
+            out[j] = table[text.charAt(j)];
+        }
+        assertEquals((byte) 0xE9, out[0]);
+        assertTrue(Arrays.equals(text.getBytes(info.getCharset()), out));
+    }
+
+}
@@ -0,0 +1,171 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package net.sourceforge.jtds.jdbc;
+
+import junit.framework.TestCase;
+
+import net.sourceforge.jtds.jdbc.cache.ConcurrentLRUCache;
+
+/**
+ * Tests for the {@link ConcurrentLRUCache} used by the SQL parser.
+ */
+public class ConcurrentLRUCacheTest extends TestCase
+{
+
+   public void testHitsAndMisses()
+   {
+      ConcurrentLRUCache<String,String> cache = new ConcurrentLRUCache<String,String>( 10 );
+
+      assertNull( cache.get( "a" ) );
+      assertTrue( cache.put( "a", "A" ) );
+      assertEquals( "A", cache.get( "a" ) );
+      assertEquals( "A", cache.get( "a" ) );
+
+      assertEquals( 2, cache.getHits() );
+      assertEquals( 1, cache.getMisses() );
+   }
+
+   public void testLimit()
+   {
+      ConcurrentLRUCache<Integer,Integer> cache = new ConcurrentLRUCache<Integer,Integer>( 100 );
+
+      for( int i = 0; i < 1000; i ++ )
+      {
+         // insert twice to pass the admission policy
+         cache.put( i, i );
+         cache.put( i, i );
+      }
+
+      assertEquals( 100, cache.size() );
+   }
+
+   public void testDisabled()
+   {
+      ConcurrentLRUCache<String,String> cache = new ConcurrentLRUCache<String,String>( 0 );
+
+      assertFalse( cache.put( "a", "A" ) );
+      assertNull( cache.get( "a" ) );
+      assertEquals( 0, cache.size() );
+   }
+
+   /**
+    * Test that one-off keys don't evict entries that are in use.
+    */
+   public void testAdmission()
+   {
+      ConcurrentLRUCache<String,String> cache = new ConcurrentLRUCache<String,String>( 10 );
+
+      for( int i = 0; i < 10; i ++ )
+      {
+         cache.put( "hot" + i, "" );
+      }
+
+      for( int i = 0; i < 1000; i ++ )
+      {
+         assertFalse( cache.put( "cold" + i, "" ) );
+      }
+
+      for( int i = 0; i < 10; i ++ )
+      {
+         assertNotNull( cache.get( "hot" + i ) );
+      }
+
+      assertEquals( 1000, cache.getRejected() );
+
+      // a key seen before is admitted, evicting one of the hot entries
+      assertFalse( cache.put( "warm", "" ) );
+      assertTrue( cache.put( "warm", "" ) );
+      assertEquals( 10, cache.size() );
+      assertNotNull( cache.get( "warm" ) );
+   }
+
+   /**
+    * Test that recently used entries survive eviction.
+    */
+   public void testEviction()
+   {
+      ConcurrentLRUCache<Integer,Integer> cache = new ConcurrentLRUCache<Integer,Integer>( 10 );
+
+      for( int i = 0; i < 10; i ++ )
+      {
+         cache.put( i, i );
+      }
+
+      // keep entry 5 in use
+      for( int i = 10; i < 100; i ++ )
+      {
+         assertNotNull( cache.get( 5 ) );
+         cache.put( i, i );
+         cache.put( i, i );
+      }
+
+      assertNotNull( cache.get( 5 ) );
+      assertEquals( 10, cache.size() );
+   }
+
+   public void testConcurrentAccess()
+      throws Exception
+   {
+      final ConcurrentLRUCache<Integer,Integer> cache = new ConcurrentLRUCache<Integer,Integer>( 64 );
+      final Throwable[] error = new Throwable[1];
+
+      Thread[] threads = new Thread[8];
+
+      for( int t = 0; t < threads.length; t ++ )
+      {
+         final int seed = t;
+
+         threads[t] = new Thread()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  for( int i = 0; i < 100000; i ++ )
+                  {
+                     Integer key = ( i * 31 + seed ) % 128;
+                     Integer value = cache.get( key );
+
+                     if( value == null )
+                        cache.put( key, key );
+                     else
+                        assertEquals( key, value );
+                  }
+               }
+               catch( Throwable e )
+               {
+                  error[0] = e;
+               }
+            }
+         };
+
+         threads[t].start();
+      }
+
+      for( int t = 0; t < threads.length; t ++ )
+      {
+         threads[t].join();
+      }
+
+      assertNull( String.valueOf( error[0] ), error[0] );
+      assertTrue( cache.size() <= 64 );
+      assertEquals( 800000, cache.getHits() + cache.getMisses() );
+   }
+
+}
@@ -20,11 +20,19 @@ package net.sourceforge.jtds.jdbc;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 import java.util.Enumeration;
 
@@ -311,6 +319,183 @@ public class ConnectionTest extends UnitTestBase
       con.close();
    }
 
+   /**
+    * Test that {@link Connection#isValid(int)} checks idle connections with
+    * the server and reports closed connections as invalid.
+    */
+   public void testIsValid() throws Exception
+   {
+      Connection con = getConnectionOverrideProperties( new Properties() );
+
+      try
+      {
+         assertTrue( con.isValid( 0 ) );
+
+         // idle long enough to be checked with the server
+         Thread.sleep( 1100 );
+         assertTrue( con.isValid( 5 ) );
+
+         try
+         {
+            con.isValid( -1 );
+            fail( "negative timeout accepted" );
+         }
+         catch( SQLException e )
+         {
+            assertEquals( "HY092", e.getSQLState() );
+         }
+      }
+      finally
+      {
+         con.close();
+      }
+
+      assertFalse( con.isValid( 0 ) );
+   }
+
+   /**
+    * Test that a broken connection with <code>connectionRecovery</code> set
+    * stays open if the server can't be reached, is recovered on a later use
+    * and gets the <code>SET</code> options of the application replayed.
+    */
+   public void testRecovery() throws Exception
+   {
+      final String host = props.getProperty( "SERVERNAME" );
+      final int port = Integer.parseInt( props.getProperty( "PORTNUMBER", "1433" ) );
+      final ServerSocket server = new ServerSocket( 0 );
+      final List<Socket> sockets = Collections.synchronizedList( new ArrayList<Socket>() );
+      final boolean[] refuse = new boolean[1];
+
+      // a proxy between driver and server that can be cut off at will
+      Thread proxy = new Thread()
+      {
+         @Override
+         public void run()
+         {
+            try
+            {
+               while( true )
+               {
+                  Socket client = server.accept();
+                  if( refuse[0] )
+                  {
+                     client.close();
+                     continue;
+                  }
+                  Socket target = new Socket( host, port );
+                  sockets.add( client );
+                  sockets.add( target );
+                  pipe( client, target );
+                  pipe( target, client );
+               }
+            }
+            catch( IOException e )
+            {
+               // server socket closed
+            }
+         }
+      };
+      proxy.setDaemon( true );
+      proxy.start();
+
+      Properties p = (Properties) props.clone();
+      p.setProperty( "connectionRecovery", "true" );
+      String url = "jdbc:jtds:sqlserver://localhost:" + server.getLocalPort() + "/" + props.getProperty( "DATABASENAME" );
+      Connection con = DriverManager.getConnection( url, p );
+
+      try
+      {
+         Statement stmt = con.createStatement();
+         stmt.execute( "SET DATEFIRST 3" );
+         stmt.close();
+
+         // cut the network connection and refuse to reconnect
+         refuse[0] = true;
+         cutOff( sockets );
+
+         try
+         {
+            con.createStatement().executeQuery( "SELECT 1" );
+            fail( "network failure not reported" );
+         }
+         catch( SQLException e )
+         {
+            // the statement itself fails
+         }
+
+         try
+         {
+            con.createStatement();
+            fail( "recovery succeeded without server" );
+         }
+         catch( SQLException e )
+         {
+            // expected, the server can't be reached
+         }
+         assertFalse( con.isClosed() );
+
+         // let the next recovery succeed
+         refuse[0] = false;
+         stmt = con.createStatement();
+         ResultSet rs = stmt.executeQuery( "SELECT @@DATEFIRST" );
+         assertTrue( rs.next() );
+         assertEquals( 3, rs.getInt( 1 ) );
+         stmt.close();
+      }
+      finally
+      {
+         con.close();
+         server.close();
+         cutOff( sockets );
+      }
+   }
+
+   /**
+    * Copies all data received from one socket to another in a daemon thread.
+    */
+   private static void pipe( final Socket from, final Socket to )
+   {
+      Thread thread = new Thread()
+      {
+         @Override
+         public void run()
+         {
+            byte[] buffer = new byte[4096];
+            try
+            {
+               InputStream in = from.getInputStream();
+               OutputStream out = to.getOutputStream();
+               for( int n; ( n = in.read( buffer ) ) != -1; )
+               {
+                  out.write( buffer, 0, n );
+                  out.flush();
+               }
+            }
+            catch( IOException e )
+            {
+               // socket closed
+            }
+         }
+      };
+      thread.setDaemon( true );
+      thread.start();
+   }
+
+   /**
+    * Closes and forgets all sockets in the list.
+    */
+   private static void cutOff( List<Socket> sockets ) throws IOException
+   {
+      synchronized( sockets )
+      {
+         for( Socket socket : sockets )
+         {
+            socket.close();
+         }
+         sockets.clear();
+      }
+   }
+
    /**
     * Test for bug [1755448], login failure leaves unclosed sockets.
     */
@@ -483,6 +483,90 @@ public abstract class DefaultPropertiesTestLibrary extends TestCase {
     }
 
 
+    /**
+     * Test the <code>parserCacheSize</code> property.
+     */
+    public void test_parserCacheSize() {
+        String fieldName = "parserCacheSize";
+        String messageKey = Driver.PARSERCACHESIZE;
+        String expectedValue = DefaultProperties.PARSER_CACHE_SIZE;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+
+    /**
+     * Test the <code>multiSubnetFailover</code> property.
+     */
+    public void test_multiSubnetFailover() {
+        String fieldName = "multiSubnetFailover";
+        String messageKey = Driver.MULTISUBNETFAILOVER;
+        String expectedValue = DefaultProperties.MULTISUBNETFAILOVER;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+
+    /**
+     * Test the <code>connectionRecovery</code> property.
+     */
+    public void test_connectionRecovery() {
+        String fieldName = "connectionRecovery";
+        String messageKey = Driver.CONNECTIONRECOVERY;
+        String expectedValue = DefaultProperties.CONNECTIONRECOVERY;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+
+    /**
+     * Test the <code>streamLOBs</code> property.
+     */
+    public void test_streamLOBs() {
+        String fieldName = "streamLOBs";
+        String messageKey = Driver.STREAMLOBS;
+        String expectedValue = DefaultProperties.STREAM_LOBS;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+
+    /**
+     * Test the <code>lobMemory</code> property.
+     */
+    public void test_lobMemory() {
+        String fieldName = "lobMemory";
+        String messageKey = Driver.LOBMEMORY;
+        String expectedValue = DefaultProperties.LOB_MEMORY;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+
+    /**
+     * Test the <code>lobLocators</code> property.
+     */
+    public void test_lobLocators() {
+        String fieldName = "lobLocators";
+        String messageKey = Driver.LOBLOCATORS;
+        String expectedValue = DefaultProperties.LOB_LOCATORS;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+
     /**
      * Assert that the <code>expected</code> property value is set using
      * a given <code>url</code> and <code>tdsVersion</code> property.
@@ -180,7 +180,8 @@ public class DriverUnitTest extends UnitTestBase {
             String.valueOf(TdsCore.UNPREPARED),
             String.valueOf(TdsCore.TEMPORARY_STORED_PROCEDURES),
             String.valueOf(TdsCore.EXECUTE_SQL),
-            String.valueOf(TdsCore.PREPARE)
+            String.valueOf(TdsCore.PREPARE),
+            String.valueOf(TdsCore.PREPEXEC)
         };
         String[] expectedServerTypeChoices = new String[]{
             String.valueOf(Driver.SQLSERVER),
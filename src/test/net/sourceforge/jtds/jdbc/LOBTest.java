@@ -23,6 +23,9 @@ import java.util.*;
 
 import junit.framework.Assert;
 
+import net.sourceforge.jtds.util.LobArena;
+import net.sourceforge.jtds.util.SpillFile;
+
 //
 // MJH - Changes for new jTDS version
 // Amended many lines such as those in testBlobSetNull6
@@ -3212,6 +3215,229 @@ public class LOBTest extends TestBase {
         assertEquals("ABCDEFGH", new String(bbuf));
     }
 
+    /**
+     * Test that large LOB values are read directly from the network with
+     * <code>streamLOBs</code> and that skipped values remain accessible.
+     */
+    public void testStreamLOBs() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Messages.get(Driver.STREAMLOBS), "true");
+        props.setProperty(Messages.get(Driver.LOBBUFFER), "1024");
+        Connection con = getConnection(props);
+
+        try {
+            byte[] data = new byte[10000];
+            char[] chars = new char[10000];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+                chars[i] = (char) ('A' + i % 26);
+            }
+            String text = new String(chars);
+
+            Statement stmt = con.createStatement();
+            stmt.execute("CREATE TABLE #streamlobs (id int, img image, txt text, ntx ntext, tail int)");
+            PreparedStatement pstmt = con.prepareStatement(
+                    "INSERT INTO #streamlobs VALUES (?, ?, ?, ?, ?)");
+            for (int i = 1; i <= 3; i++) {
+                pstmt.setInt(1, i);
+                pstmt.setBytes(2, data);
+                pstmt.setString(3, text);
+                pstmt.setString(4, text);
+                pstmt.setInt(5, -i);
+                assertEquals(1, pstmt.executeUpdate());
+            }
+            pstmt.close();
+
+            ResultSet rs = stmt.executeQuery("SELECT * FROM #streamlobs ORDER BY id");
+
+            // read all columns in order, the LOBs as streams
+            assertTrue(rs.next());
+            assertEquals(1, rs.getInt(1));
+            compareInputStreams(new ByteArrayInputStream(data), rs.getBinaryStream(2));
+            compareReaders(new StringReader(text), rs.getCharacterStream(3));
+            compareReaders(new StringReader(text), rs.getCharacterStream(4));
+            assertEquals(-1, rs.getInt(5));
+
+            // skip the LOBs, they are buffered
+            assertTrue(rs.next());
+            assertEquals(-2, rs.getInt(5));
+            assertTrue(compare(data, rs.getBytes(2)));
+            assertEquals(text, rs.getString(4));
+
+            // start reading a stream and move on
+            assertTrue(rs.next());
+            InputStream is = rs.getBinaryStream(2);
+            assertEquals(0, is.read());
+            assertEquals(text, rs.getString(3));
+            try {
+                is.read();
+                fail("Stream not closed");
+            } catch (IOException e) {
+                // Expected
+            }
+            try {
+                rs.getBytes(2);
+                fail("Value still available");
+            } catch (SQLException e) {
+                assertEquals("HY010", e.getSQLState());
+            }
+            assertEquals(-3, rs.getInt(5));
+
+            assertFalse(rs.next());
+            rs.close();
+            stmt.close();
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that large LOB values are read in ranges through their text
+     * pointer with <code>lobLocators</code>, and in full where required, and
+     * that only the start of locatable values is transferred once a query is
+     * known to return nothing else.
+     */
+    public void testLobLocators() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Messages.get(Driver.LOBLOCATORS), "true");
+        props.setProperty(Messages.get(Driver.LOBBUFFER), "1024");
+        Connection con = getConnection(props);
+
+        dropTable("jtdsLobLocators");
+        try {
+            byte[] data = new byte[10000];
+            char[] chars = new char[10000];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+                chars[i] = (char) ('A' + i % 26);
+            }
+            String text = new String(chars);
+
+            Statement stmt = con.createStatement();
+            stmt.execute("CREATE TABLE jtdsLobLocators (id int, img image, txt text, ntx ntext)");
+            PreparedStatement pstmt = con.prepareStatement(
+                    "INSERT INTO jtdsLobLocators VALUES (1, ?, ?, ?)");
+            pstmt.setBytes(1, data);
+            pstmt.setString(2, text);
+            pstmt.setString(3, text);
+            assertEquals(1, pstmt.executeUpdate());
+            pstmt.close();
+
+            // the first execution finds all LOB columns locatable, the second
+            // one is sent with a TEXTSIZE of lobBuffer
+            for (int run = 0; run < 2; run++) {
+                long allocations = LobArena.getAllocations();
+                long spills = SpillFile.getCreatedCount();
+
+                ResultSet rs = stmt.executeQuery("SELECT * FROM jtdsLobLocators");
+                assertEquals(run == 0 ? 0 : 1024, ((JtdsConnection) con).getTextSize());
+                assertTrue(rs.next());
+                Blob blob = rs.getBlob(2);
+                Clob clob = rs.getClob(3);
+                Clob nclob = rs.getClob(4);
+
+                // ranges within and beyond the kept prefix
+                assertTrue(compare(Arrays.copyOfRange(data, 0, 100), blob.getBytes(1, 100)));
+                assertTrue(compare(Arrays.copyOfRange(data, 5000, 5100), blob.getBytes(5001, 100)));
+                assertTrue(compare(Arrays.copyOfRange(data, 9950, 10000), blob.getBytes(9951, 100)));
+                assertEquals(data.length, blob.length());
+                assertEquals(text.substring(7000, 7010), clob.getSubString(7001, 10));
+                assertEquals(text.length(), clob.length());
+                assertEquals(text.length(), nclob.length());
+                assertEquals(text.substring(100, 200), nclob.getSubString(101, 100));
+                assertEquals(text.substring(600, 4000), nclob.getSubString(601, 3400));
+
+                // the values have neither been buffered in memory nor on disk
+                assertEquals(allocations, LobArena.getAllocations());
+                assertEquals(spills, SpillFile.getCreatedCount());
+
+                // whole values
+                compareInputStreams(new ByteArrayInputStream(data), blob.getBinaryStream());
+                assertEquals(text, rs.getString(3));
+                compareReaders(new StringReader(text), nclob.getCharacterStream());
+                assertEquals(5001, nclob.position(text.substring(5000, 5026), 4990));
+
+                assertFalse(rs.next());
+                rs.close();
+            }
+
+            // aliased columns are located, expressions and MAX values, which
+            // have no usable text pointer, are never cut off
+            String[] queries = {
+                "SELECT img AS picture, CAST(txt AS text) AS copy FROM jtdsLobLocators",
+                "SELECT bin, txt FROM jtdsLobLocators"};
+            int count = 1;
+            if (con.getMetaData().getDatabaseMajorVersion() >= 9) {
+                stmt.execute("ALTER TABLE jtdsLobLocators ADD bin varbinary(max)");
+                stmt.execute("UPDATE jtdsLobLocators SET bin = img");
+                count = 2;
+            }
+            for (int i = 0; i < count; i++) {
+                for (int run = 0; run < 2; run++) {
+                    ResultSet rs = stmt.executeQuery(queries[i]);
+                    assertTrue(rs.next());
+                    Blob blob = rs.getBlob(1);
+                    Clob clob = rs.getClob(2);
+                    assertEquals(data.length, blob.length());
+                    assertTrue(compare(Arrays.copyOfRange(data, 5000, 5100), blob.getBytes(5001, 100)));
+                    assertEquals(text.length(), clob.length());
+                    assertEquals(text.substring(7000, 7010), clob.getSubString(7001, 10));
+                    assertNull(stmt.getWarnings());
+                    rs.close();
+                }
+                assertEquals(0, ((JtdsConnection) con).getTextSize());
+            }
+            stmt.close();
+        } finally {
+            dropTable("jtdsLobLocators");
+            con.close();
+        }
+    }
+
+    /**
+     * Test setting LOB parameters from streams of unknown length, both short
+     * ones kept in memory and long ones buffered to disk.
+     */
+    public void testUnknownLengthStreams() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Messages.get(Driver.LOBBUFFER), "1024");
+        Connection con = getConnection(props);
+
+        try {
+            Statement stmt = con.createStatement();
+            stmt.execute("CREATE TABLE #unknownlength (id int, img image, txt text, ntx ntext)");
+            PreparedStatement pstmt = con.prepareStatement(
+                    "INSERT INTO #unknownlength VALUES (?, ?, ?, ?)");
+
+            int[] sizes = {0, 100, 1024, 100000};
+            for (int i = 0; i < sizes.length; i++) {
+                byte[] data = new byte[sizes[i]];
+                char[] chars = new char[sizes[i]];
+                for (int j = 0; j < data.length; j++) {
+                    data[j] = (byte) j;
+                    chars[j] = (char) ('A' + j % 26);
+                }
+                pstmt.setInt(1, i);
+                pstmt.setBinaryStream(2, new ByteArrayInputStream(data));
+                pstmt.setAsciiStream(3, new ByteArrayInputStream(new String(chars).getBytes("ASCII")));
+                pstmt.setCharacterStream(4, new StringReader(new String(chars)));
+                assertEquals(1, pstmt.executeUpdate());
+
+                ResultSet rs = stmt.executeQuery("SELECT * FROM #unknownlength WHERE id = " + i);
+                assertTrue(rs.next());
+                assertTrue(compare(data, rs.getBytes(2)));
+                assertEquals(new String(chars), rs.getString(3));
+                assertEquals(new String(chars), rs.getString(4));
+                rs.close();
+            }
+
+            pstmt.close();
+            stmt.close();
+        } finally {
+            con.close();
+        }
+    }
+
     private byte[] getBlobTestData() {
         return blobData;
     }
@@ -208,5 +208,42 @@ public class NtlmAuthTest extends TestBase {
         assertTrue(Arrays.equals(answer, expected));
     }
 
+    /**
+     * Tests that the cached password hash is only used for the password
+     * instance it was computed from and yields the same responses.
+     */
+    public void testCachedHash() throws Exception {
+        final String password = "bark";
+        final String other = new String("park");
+        byte[] challenge = hexToBytes("d990edaf941736af");
+
+        byte[] first = NtlmAuth.answerNtChallenge(password, challenge);
+        assertTrue(Arrays.equals(first, NtlmAuth.answerNtChallenge(password, challenge)));
+        assertTrue(Arrays.equals(first, NtlmAuth.answerNtChallenge(new String(password), challenge)));
+        byte[] second = NtlmAuth.answerNtChallenge(other, challenge);
+        assertFalse(Arrays.equals(first, second));
+        assertTrue(Arrays.equals(second, NtlmAuth.answerNtChallenge(other, challenge)));
+    }
+
+    /**
+     * An NTLMv2 response computed from a cached password hash has to match
+     * the one computed from an uncached password.
+     */
+    public void testCachedNtlmv2Response() throws Exception {
+        String password = "a rather long password, as recommended";
+        byte[] challenge = hexToBytes("d990edaf941736af");
+        byte[] target = hexToBytes("02000c0042004500410045004e0047000000000000000000");
+        byte[] clientNonce = hexToBytes("ffffff0011223344");
+        byte[] expected = NtlmAuth.answerNtlmv2Challenge("DOMAIN", "user",
+                new String(password), challenge, target, clientNonce, 0L);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(Arrays.equals(expected, NtlmAuth.answerNtlmv2Challenge("DOMAIN",
+                    "user", password, challenge, target, clientNonce, 0L)));
+        }
+        assertTrue(Arrays.equals(expected, NtlmAuth.answerNtlmv2Challenge("DOMAIN",
+                "user", new String(password), challenge, target, clientNonce, 0L)));
+    }
+
 }
 
@@ -0,0 +1,109 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import net.sourceforge.jtds.jdbc.SharedSocket.VirtualSocket;
+
+/**
+ * Tests the packet output of {@link RequestStream}.
+ */
+public class RequestStreamTest extends TestCase {
+
+    /**
+     * Collects the packet payloads instead of sending them.
+     */
+    private static class CaptureSocket extends SharedSocket {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        CaptureSocket() {
+            super(null, Driver.TDS70, Driver.SQLSERVER);
+        }
+
+        byte[] sendNetPacket(VirtualSocket vsock, byte[] buffer) {
+            int len = ((buffer[2] & 0xFF) << 8) | (buffer[3] & 0xFF);
+            data.write(buffer, TdsCore.PKT_HDR_LEN, len - TdsCore.PKT_HDR_LEN);
+            return buffer;
+        }
+    }
+
+    /**
+     * Strings and char arrays have to be written as UTF-16LE, also when
+     * characters span packets at odd offsets.
+     */
+    public void testWriteChars() throws Exception {
+        Random rnd = new Random(7);
+        CaptureSocket socket = new CaptureSocket();
+        RequestStream out = new RequestStream(socket, null, 512, 38);
+        out.setPacketType(TdsCore.QUERY_PKT);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+        for (int i = 0; i < 500; i++) {
+            if (rnd.nextBoolean()) {
+                // shift to an odd offset
+                out.write((byte) i);
+                expected.write((byte) i);
+            }
+            char[] chars = new char[rnd.nextInt(600)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = (char) rnd.nextInt(0xD800);
+            }
+            if (rnd.nextBoolean()) {
+                out.write(new String(chars));
+                expected.write(new String(chars).getBytes("UTF-16LE"));
+            } else {
+                int off = chars.length / 3;
+                out.write(chars, off, chars.length - off);
+                expected.write(new String(chars, off, chars.length - off).getBytes("UTF-16LE"));
+            }
+        }
+        out.flush();
+
+        assertTrue(Arrays.equals(expected.toByteArray(), socket.data.toByteArray()));
+    }
+
+    /**
+     * Short and long strings written repeatedly have to fill the packets
+     * without gaps.
+     */
+    public void testWriteRepeated() throws Exception {
+        CaptureSocket socket = new CaptureSocket();
+        RequestStream out = new RequestStream(socket, null, 4096, 38);
+        out.setPacketType(TdsCore.QUERY_PKT);
+        char[] chars = new char[2000];
+        Arrays.fill(chars, 'x');
+        String[] values = {"short value", new String(chars)};
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+        for (int i = 0; i < 100; i++) {
+            for (String value : values) {
+                out.write(value);
+                expected.write(value.getBytes("UTF-16LE"));
+            }
+        }
+        out.flush();
+
+        assertTrue(Arrays.equals(expected.toByteArray(), socket.data.toByteArray()));
+    }
+
+}
@@ -0,0 +1,90 @@
+//jTDS JDBC Driver for Microsoft SQL Server and Sybase
+//Copyright (C) 2004 The jTDS Project
+//
+//This library is free software; you can redistribute it and/or
+//modify it under the terms of the GNU Lesser General Public
+//License as published by the Free Software Foundation; either
+//version 2.1 of the License, or (at your option) any later version.
+//
+//This library is distributed in the hope that it will be useful,
+//but WITHOUT ANY WARRANTY; without even the implied warranty of
+//MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//Lesser General Public License for more details.
+//
+//You should have received a copy of the GNU Lesser General Public
+//License along with this library; if not, write to the Free Software
+//Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the <code>SQLTemplate</code> class used to substitute parameter
+ * markers.
+ */
+public class SQLTemplateTest extends TestCase {
+
+    public SQLTemplateTest(String testName) {
+        super(testName);
+    }
+
+    public void testParamMarkers() {
+        String sql = "SELECT * FROM t WHERE a=? AND b='?' AND c=?";
+        ParamInfo[] params = params(sql, 24, 42);
+
+        assertEquals("SELECT * FROM t WHERE a= @P0  AND b='?' AND c= @P1 ",
+                new SQLTemplate(sql, params).getParamMarkerSql());
+    }
+
+    public void testLeadingAndTrailingText() {
+        assertEquals("EXEC p  @P0 ",
+                new SQLTemplate("EXEC p ?", params("EXEC p ?", 7)).getParamMarkerSql());
+        assertEquals("{?}", new SQLTemplate("{?}", params("{?}")).getParamMarkerSql());
+    }
+
+    /**
+     * Test that parameters without marker (e.g. the return value of a stored
+     * procedure call) don't get a slot but keep their index.
+     */
+    public void testUnmarkedParameter() {
+        String sql = "EXEC p ?, ?";
+        ParamInfo[] params = new ParamInfo[] {
+                new ParamInfo(-1, true), new ParamInfo(7, true), new ParamInfo(10, true)};
+
+        assertEquals("EXEC p  @P1 ,  @P2 ",
+                new SQLTemplate(sql, params).getParamMarkerSql());
+    }
+
+    public void testMatches() {
+        String sql = "UPDATE t SET a=? WHERE b=?";
+        SQLTemplate template = new SQLTemplate(sql, params(sql, 15, 25));
+
+        assertTrue(template.matches(new String(sql), params(sql, 15, 25)));
+        assertFalse(template.matches(sql, params(sql, 15)));
+        assertFalse(template.matches(sql, new ParamInfo[] {
+                new ParamInfo(15, true), new ParamInfo(24, true)}));
+        assertFalse(template.matches(sql + ' ', params(sql, 15, 25)));
+    }
+
+    public void testCachedTemplate() {
+        String sql = "SELECT ? FROM t WHERE a=?";
+        SQLTemplate template = SQLParser.getTemplate(sql, params(sql, 7, 24));
+
+        assertSame(template, SQLParser.getTemplate(sql, params(sql, 7, 24)));
+        assertSame(template.getParamMarkerSql(), Support.substituteParamMarkers(sql, params(sql, 7, 24)));
+
+        // different markers for the same SQL must not reuse the template
+        assertEquals("SELECT ? FROM t WHERE a= @P0 ",
+                Support.substituteParamMarkers(sql, params(sql, 24)));
+    }
+
+    private static ParamInfo[] params(String sql, int... positions) {
+        ParamInfo[] params = new ParamInfo[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            assertEquals('?', sql.charAt(positions[i]));
+            params[i] = new ParamInfo(positions[i], true);
+        }
+        return params;
+    }
+}
@@ -0,0 +1,102 @@
+//jTDS JDBC Driver for Microsoft SQL Server and Sybase
+//Copyright (C) 2004 The jTDS Project
+//
+//This library is free software; you can redistribute it and/or
+//modify it under the terms of the GNU Lesser General Public
+//License as published by the Free Software Foundation; either
+//version 2.1 of the License, or (at your option) any later version.
+//
+//This library is distributed in the hope that it will be useful,
+//but WITHOUT ANY WARRANTY; without even the implied warranty of
+//MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//Lesser General Public License for more details.
+//
+//You should have received a copy of the GNU Lesser General Public
+//License along with this library; if not, write to the Free Software
+//Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the <code>StatementKey</code> class used by the statement cache.
+ */
+public class StatementKeyTest extends TestCase {
+
+    public StatementKeyTest(String testName) {
+        super(testName);
+    }
+
+    public void testEqualKeys() {
+        String sql = "SELECT * FROM t WHERE a=? AND b=?";
+        StatementKey k1 = new StatementKey(sql, params("int", "nvarchar(4000)"),
+                Driver.SQLSERVER, "db", true, false);
+        StatementKey k2 = new StatementKey(new String(sql), params("int", "nvarchar(4000)"),
+                Driver.SQLSERVER, "db", false, false);
+
+        // auto commit mode is irrelevant for SQL Server
+        assertEquals(k1, k2);
+        assertEquals(k1.hashCode(), k2.hashCode());
+    }
+
+    public void testDistinctKeys() {
+        String sql = "SELECT * FROM t WHERE a=?";
+        StatementKey base = new StatementKey(sql, params("int"),
+                Driver.SQLSERVER, "db", true, false);
+
+        assertFalse(base.equals(new StatementKey(sql, params("int"),
+                Driver.SQLSERVER, "db", true, true)));
+        assertFalse(base.equals(new StatementKey(sql, params("int"),
+                Driver.SQLSERVER, "db2", true, false)));
+        assertFalse(base.equals(new StatementKey(sql, params("bigint"),
+                Driver.SQLSERVER, "db", true, false)));
+        assertFalse(base.equals(new StatementKey(sql + ' ', params("int"),
+                Driver.SQLSERVER, "db", true, false)));
+    }
+
+    public void testSybaseKeys() {
+        String sql = "SELECT * FROM t WHERE a=?";
+        StatementKey k1 = new StatementKey(sql, params("int"),
+                Driver.SYBASE, "db", true, false);
+
+        // only the chained mode matters for Sybase
+        assertEquals(k1, new StatementKey(sql, params("varchar(255)"),
+                Driver.SYBASE, "other", true, true));
+        assertFalse(k1.equals(new StatementKey(sql, params("int"),
+                Driver.SYBASE, "db", false, false)));
+    }
+
+    /**
+     * Test that a key built from equal but distinct values finds the entry
+     * of a long statement.
+     */
+    public void testLookup() {
+        StringBuilder buf = new StringBuilder(8192);
+        buf.append("SELECT ");
+        for (int i = 0; i < 200; i++) {
+            buf.append("t0.column_").append(i).append(" AS c").append(i).append(", ");
+        }
+        buf.append("t0.id FROM some_schema.some_table t0 WHERE t0.id = ? AND t0.version = ?");
+        String sql = buf.toString();
+
+        HashMap map = new HashMap();
+        map.put(new StatementKey(sql, params("int", "bigint"), Driver.SQLSERVER, "db", true, false), "x");
+
+        assertEquals("x", map.get(new StatementKey(new String(sql), params("int", "bigint"),
+                Driver.SQLSERVER, "db", true, false)));
+        assertNull(map.get(new StatementKey(sql, params("int", "int"),
+                Driver.SQLSERVER, "db", true, false)));
+    }
+
+    private static ParamInfo[] params(String... types) {
+        ParamInfo[] params = new ParamInfo[types.length];
+        for (int i = 0; i < types.length; i++) {
+            params[i] = new ParamInfo(i, true);
+            params[i].sqlType = new String(types[i]);
+        }
+        return params;
+    }
+}
@@ -163,6 +163,12 @@ public class JtdsObjectFactoryTest extends UnitTestBase
       defaults.put( Driver.USER                         , DefaultProperties.USER                  );
       defaults.put( Driver.WSID                         , DefaultProperties.WSID                  );
       defaults.put( Driver.XAEMULATION                  , DefaultProperties.XAEMULATION           );
+      defaults.put( Driver.PARSERCACHESIZE              , DefaultProperties.PARSER_CACHE_SIZE     );
+      defaults.put( Driver.MULTISUBNETFAILOVER          , DefaultProperties.MULTISUBNETFAILOVER   );
+      defaults.put( Driver.CONNECTIONRECOVERY           , DefaultProperties.CONNECTIONRECOVERY    );
+      defaults.put( Driver.STREAMLOBS                   , DefaultProperties.STREAM_LOBS           );
+      defaults.put( Driver.LOBMEMORY                    , DefaultProperties.LOB_MEMORY            );
+      defaults.put( Driver.LOBLOCATORS                  , DefaultProperties.LOB_LOCATORS          );
 
       JtdsObjectFactory jtdsObjectFactory = new JtdsObjectFactory();
 
@@ -215,6 +221,12 @@ public class JtdsObjectFactoryTest extends UnitTestBase
       ds.setUser                         ( "1234" ); assertEquals( "1234", ds.getUser()                          );
       ds.setWsid                         ( "1234" ); assertEquals( "1234", ds.getWsid()                          );
       ds.setXaEmulation                  ( false  ); assertEquals( false , ds.getXaEmulation()                   );
+      ds.setParserCacheSize              ( 123456 ); assertEquals( 123456, ds.getParserCacheSize()               );
+      ds.setMultiSubnetFailover          ( true   ); assertEquals( true  , ds.getMultiSubnetFailover()           );
+      ds.setConnectionRecovery           ( true   ); assertEquals( true  , ds.getConnectionRecovery()            );
+      ds.setStreamLOBs                   ( true   ); assertEquals( true  , ds.getStreamLOBs()                    );
+      ds.setLobMemory                    ( 123456 ); assertEquals( 123456, ds.getLobMemory()                     );
+      ds.setLobLocators                  ( true   ); assertEquals( true  , ds.getLobLocators()                   );
    }
 
    private void checkDefaults( JtdsDataSource ds )
@@ -260,6 +272,12 @@ public class JtdsObjectFactoryTest extends UnitTestBase
       assertEquals( DefaultProperties.USER                 , String.valueOf( ds.getUser()                          ) );
       assertEquals( DefaultProperties.WSID                 , String.valueOf( ds.getWsid()                          ) );
       assertEquals( DefaultProperties.XAEMULATION          , String.valueOf( ds.getXaEmulation()                   ) );
+      assertEquals( DefaultProperties.PARSER_CACHE_SIZE    , String.valueOf( ds.getParserCacheSize()               ) );
+      assertEquals( DefaultProperties.MULTISUBNETFAILOVER  , String.valueOf( ds.getMultiSubnetFailover()           ) );
+      assertEquals( DefaultProperties.CONNECTIONRECOVERY   , String.valueOf( ds.getConnectionRecovery()            ) );
+      assertEquals( DefaultProperties.STREAM_LOBS          , String.valueOf( ds.getStreamLOBs()                    ) );
+      assertEquals( DefaultProperties.LOB_MEMORY           , String.valueOf( ds.getLobMemory()                     ) );
+      assertEquals( DefaultProperties.LOB_LOCATORS         , String.valueOf( ds.getLobLocators()                   ) );
    }
 
 }
\ No newline at end of file
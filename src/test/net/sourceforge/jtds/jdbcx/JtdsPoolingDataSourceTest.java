@@ -0,0 +1,245 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package net.sourceforge.jtds.jdbcx;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import javax.naming.Reference;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import net.sourceforge.jtds.jdbc.Driver;
+import net.sourceforge.jtds.jdbc.Messages;
+import net.sourceforge.jtds.jdbc.TestBase;
+import net.sourceforge.jtds.jdbc.UnitTestBase;
+
+/**
+ * Unit tests for the {@link JtdsPoolingDataSource} class.
+ */
+public class JtdsPoolingDataSourceTest extends UnitTestBase
+{
+
+   public static Test suite()
+   {
+      return new TestSuite( JtdsPoolingDataSourceTest.class );
+   }
+
+   public JtdsPoolingDataSourceTest( String name )
+   {
+      super( name );
+   }
+
+   /**
+    * Test that the pool settings survive a JNDI round trip.
+    */
+   public void testReference()
+      throws Exception
+   {
+      JtdsPoolingDataSource ds = new JtdsPoolingDataSource();
+      ds.setServerName( "server" );
+      ds.setMinPoolSize( 2 );
+      ds.setMaxPoolSize( 7 );
+      ds.setMaxIdleTime( 120 );
+      ds.setValidationInterval( 0 );
+      ds.setSpareConnections( 3 );
+
+      Reference ref = ds.getReference();
+      assertEquals( JtdsPoolingDataSource.class.getName(), ref.getClassName() );
+
+      ds = (JtdsPoolingDataSource) new JtdsObjectFactory().getObjectInstance( ref, null, null, null );
+
+      assertEquals( "server", ds.getServerName() );
+      assertEquals( 2  , ds.getMinPoolSize() );
+      assertEquals( 7  , ds.getMaxPoolSize() );
+      assertEquals( 120, ds.getMaxIdleTime() );
+      assertEquals( 0  , ds.getValidationInterval() );
+      assertEquals( 3  , ds.getSpareConnections() );
+   }
+
+   /**
+    * Test that closed connections are reused and that their state is reset.
+    */
+   public void testPooling()
+      throws Exception
+   {
+      JtdsPoolingDataSource ds = newDataSource();
+      ds.setMaxPoolSize( 2 );
+
+      try
+      {
+         Connection c1 = ds.getConnection();
+         Connection c2 = ds.getConnection();
+         assertEquals( 2, ds.getActiveConnections() );
+
+         c1.setAutoCommit( false );
+         Statement stmt = c1.createStatement();
+         stmt.execute( "create table #pool (id int)" );
+         stmt.close();
+         c1.close();
+
+         assertEquals( 1, ds.getActiveConnections() );
+         assertEquals( 1, ds.getIdleConnections() );
+
+         // the same physical connection, rolled back and in auto commit mode
+         c1 = ds.getConnection();
+         assertTrue( c1.getAutoCommit() );
+         assertEquals( 0, ds.getIdleConnections() );
+
+         c1.close();
+         c2.close();
+         assertEquals( 2, ds.getIdleConnections() );
+      }
+      finally
+      {
+         ds.close();
+      }
+
+      assertEquals( 0, ds.getIdleConnections() );
+   }
+
+   /**
+    * Test that the session of a returned connection is reset by the server.
+    */
+   public void testSessionReset()
+      throws Exception
+   {
+      JtdsPoolingDataSource ds = newDataSource();
+      ds.setMaxPoolSize( 1 );
+
+      try
+      {
+         Connection con = ds.getConnection();
+         DatabaseMetaData meta = con.getMetaData();
+
+         if( ! meta.getDatabaseProductName().startsWith( "Microsoft" ) || meta.getDatabaseMajorVersion() < 8 )
+         {
+            con.close();
+            return;
+         }
+
+         Statement stmt = con.createStatement();
+         stmt.execute( "create table #reset (id int)" );
+         stmt.execute( "set nocount on" );
+         stmt.close();
+         con.close();
+
+         // the same physical connection, without the temporary table
+         con = ds.getConnection();
+         stmt = con.createStatement();
+         ResultSet rs = stmt.executeQuery( "select object_id('tempdb..#reset'), @@OPTIONS & 512" );
+         assertTrue( rs.next() );
+         assertNull( rs.getObject( 1 ) );
+         assertEquals( 0, rs.getInt( 2 ) );
+         rs.close();
+         stmt.close();
+         con.close();
+      }
+      finally
+      {
+         ds.close();
+      }
+   }
+
+   /**
+    * Test that spare connections are opened in the background.
+    */
+   public void testSpareConnections()
+      throws Exception
+   {
+      JtdsPoolingDataSource ds = newDataSource();
+      ds.setMaxPoolSize( 4 );
+      ds.setSpareConnections( 2 );
+
+      try
+      {
+         Connection con = ds.getConnection();
+
+         for( int i = 0; i < 100 && ds.getIdleConnections() < 2; i ++ )
+         {
+            Thread.sleep( 50 );
+         }
+
+         assertEquals( 2, ds.getIdleConnections() );
+         assertTrue( ds.getLoginStatistics().startsWith( "3 logins, lookup " ) );
+         con.close();
+      }
+      finally
+      {
+         ds.close();
+      }
+   }
+
+   /**
+    * Test that an exhausted pool times out.
+    */
+   public void testExhausted()
+      throws Exception
+   {
+      JtdsPoolingDataSource ds = newDataSource();
+      ds.setMaxPoolSize( 1 );
+      ds.setLoginTimeout( 1 );
+
+      try
+      {
+         Connection c1 = ds.getConnection();
+
+         try
+         {
+            ds.getConnection();
+            fail( "pool not exhausted" );
+         }
+         catch( SQLException e )
+         {
+            assertEquals( "08001", e.getSQLState() );
+         }
+
+         c1.close();
+         ds.getConnection().close();
+      }
+      finally
+      {
+         ds.close();
+      }
+   }
+
+   private static JtdsPoolingDataSource newDataSource()
+   {
+      JtdsPoolingDataSource ds = new JtdsPoolingDataSource();
+      ds.setServerName( TestBase.props.getProperty( Messages.get( Driver.SERVERNAME ) ) );
+      ds.setUser( TestBase.props.getProperty( Messages.get( Driver.USER ) ) );
+      ds.setPassword( TestBase.props.getProperty( Messages.get( Driver.PASSWORD ) ) );
+      ds.setDatabaseName( TestBase.props.getProperty( Messages.get( Driver.DATABASENAME ) ) );
+      ds.setTds( TestBase.props.getProperty( Messages.get( Driver.TDS ) ) );
+      ds.setServerType( "2".equals( TestBase.props.getProperty( Messages.get( Driver.SERVERTYPE ) ) ) ? 2 : 1 );
+
+      try
+      {
+         ds.setPortNumber( Integer.parseInt( TestBase.props.getProperty( Messages.get( Driver.PORTNUMBER ) ) ) );
+      }
+      catch( Exception ex )
+      {
+         // Ignore
+      }
+
+      return ds;
+   }
+
+}
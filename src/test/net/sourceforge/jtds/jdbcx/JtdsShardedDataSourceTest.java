@@ -0,0 +1,181 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package net.sourceforge.jtds.jdbcx;
+
+import java.sql.SQLException;
+import javax.sql.ConnectionEvent;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import net.sourceforge.jtds.jdbc.UnitTestBase;
+
+/**
+ * Unit tests for the {@link JtdsShardedDataSource} class.
+ */
+public class JtdsShardedDataSourceTest extends UnitTestBase
+{
+
+   public static Test suite()
+   {
+      return new TestSuite( JtdsShardedDataSourceTest.class );
+   }
+
+   public JtdsShardedDataSourceTest( String name )
+   {
+      super( name );
+   }
+
+   /**
+    * Test that the hash router is stable and uses all shards.
+    */
+   public void testHashRouter()
+   {
+      ShardRouter router = new ShardRouter.HashRouter( "a", "b", "c" );
+      int[] counts = new int[3];
+
+      for( int i = 0; i < 3000; i ++ )
+      {
+         String shard = router.getShard( Integer.valueOf( i ) );
+         assertEquals( shard, router.getShard( Integer.valueOf( i ) ) );
+         counts[shard.charAt( 0 ) - 'a'] ++;
+      }
+
+      for( int i = 0; i < counts.length; i ++ )
+      {
+         assertTrue( counts[i] > 800 );
+      }
+   }
+
+   /**
+    * Test routing by key ranges.
+    */
+   public void testRangeRouter()
+   {
+      ShardRouter router = new ShardRouter.RangeRouter().addRange( 0, "low" ).addRange( 10000, "high" );
+
+      assertNull( router.getShard( -1 ) );
+      assertEquals( "low" , router.getShard( 0 ) );
+      assertEquals( "low" , router.getShard( 9999 ) );
+      assertEquals( "high", router.getShard( 10000 ) );
+   }
+
+   /**
+    * Test that keys without a shard and missing keys are rejected.
+    */
+   public void testNoShard()
+      throws Exception
+   {
+      JtdsShardedDataSource ds = new JtdsShardedDataSource();
+      ds.addShard( "a", new JtdsPoolingDataSource() );
+      ds.addShard( "b", new JtdsPoolingDataSource() );
+      ds.setRouter( new ShardRouter.RangeRouter().addRange( 0, "a" ) );
+
+      try
+      {
+         ds.getConnection( -1 );
+         fail( "no shard expected" );
+      }
+      catch( SQLException e )
+      {
+         assertEquals( "08001", e.getSQLState() );
+      }
+
+      try
+      {
+         ds.getConnection();
+         fail( "shard key expected" );
+      }
+      catch( SQLException e )
+      {
+         assertEquals( "HY009", e.getSQLState() );
+      }
+
+      try
+      {
+         ds.getConnection( "user", "password" );
+         fail( "credentials not supported" );
+      }
+      catch( SQLException e )
+      {
+         assertEquals( "0A000", e.getSQLState() );
+      }
+   }
+
+   /**
+    * Test that connections found broken by the pool count as failures of the
+    * shard.
+    */
+   public void testBrokenConnections()
+      throws Exception
+   {
+      JtdsPoolingDataSource pool = new JtdsPoolingDataSource();
+
+      JtdsShardedDataSource ds = new JtdsShardedDataSource();
+      ds.addShard( "a", pool );
+      ds.setFailureThreshold( 2 );
+
+      ConnectionEvent event = new ConnectionEvent( new PooledConnection( null ), new SQLException( "broken", "08S01" ) );
+
+      pool.connectionFailed( event );
+      assertTrue( ds.isAvailable( "a" ) );
+
+      pool.connectionFailed( event );
+      assertFalse( ds.isAvailable( "a" ) );
+   }
+
+   /**
+    * Test that a shard is marked down after repeated connection failures and
+    * requests fail fast until the retry interval has passed.
+    */
+   public void testShardDown()
+      throws Exception
+   {
+      JtdsPoolingDataSource pool = new JtdsPoolingDataSource();
+      pool.setServerName( "localhost" );
+      pool.setPortNumber( 1 );
+
+      JtdsShardedDataSource ds = new JtdsShardedDataSource();
+      ds.addShard( "a", pool );
+      ds.setFailureThreshold( 2 );
+      ds.setRetryInterval( 60 );
+
+      try
+      {
+         for( int i = 0; i < 3; i ++ )
+         {
+            try
+            {
+               ds.getConnection( "key" );
+               fail( "connection failure expected" );
+            }
+            catch( SQLException e )
+            {
+               assertEquals( i < 2 ? "08S01" : "08001", e.getSQLState() );
+            }
+         }
+
+         assertFalse( ds.isAvailable( "a" ) );
+         assertTrue( ds.getStatistics( "a" ).startsWith( "down, 0 connections, 2 failures" ) );
+      }
+      finally
+      {
+         ds.close();
+      }
+   }
+
+}